@@ -15,9 +15,6 @@
  */
 package okhttp3.benchmarks;
 
-import com.google.caliper.Param;
-import com.google.caliper.model.ArbitraryMeasurement;
-import com.google.caliper.runner.CaliperMain;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -36,20 +33,39 @@ import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
 import okio.Buffer;
 import okio.GzipSink;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
 
 /**
  * This benchmark is fake, but may be useful for certain relative comparisons. It uses a local
  * connection to a MockWebServer to measure how many identical requests per second can be carried
  * over a fixed number of threads.
+ *
+ * <p>Each invocation enqueues one request, waiting first for the client to have room in its job
+ * queue. The reported throughput is therefore the rate at which the client completes requests.
  */
-public class Benchmark extends com.google.caliper.Benchmark {
-  private static final int NUM_REPORTS = 10;
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class Benchmark {
   private static final boolean VERBOSE = false;
 
   private final Random random = new Random(0);
 
   /** Which client to run. */
-  @Param
+  @Param({"OkHttp", "OkHttpAsync", "Apache", "UrlConnection", "Netty"})
   Client client;
 
   /** How many concurrent requests to execute. */
@@ -62,15 +78,15 @@ public class Benchmark extends com.google.caliper.Benchmark {
 
   /** True to use TLS. */
   // TODO: compare different ciphers?
-  @Param
+  @Param({"false", "true"})
   boolean tls;
 
   /** True to use gzip content-encoding for the response body. */
-  @Param
+  @Param({"false", "true"})
   boolean gzip;
 
   /** Don't combine chunked with SPDY_3 or HTTP_2; that's not allowed. */
-  @Param
+  @Param({"false", "true"})
   boolean chunked;
 
   /** The size of the HTTP response body, in uncompressed bytes. */
@@ -84,58 +100,31 @@ public class Benchmark extends com.google.caliper.Benchmark {
   /** Which ALPN protocols are in use. Only useful with TLS. */
   List<Protocol> protocols = Arrays.asList(Protocol.HTTP_1_1);
 
-  public static void main(String[] args) {
-    List<String> allArgs = new ArrayList<>();
-    allArgs.add("--instrument");
-    allArgs.add("arbitrary");
-    allArgs.addAll(Arrays.asList(args));
-
-    CaliperMain.main(Benchmark.class, allArgs.toArray(new String[allArgs.size()]));
-  }
+  private HttpClient httpClient;
+  private MockWebServer server;
+  private HttpUrl url;
 
-  @ArbitraryMeasurement(description = "requests per second")
-  public double run() throws Exception {
+  @Setup public void setUp() throws Exception {
     if (VERBOSE) System.out.println(toString());
-    HttpClient httpClient = client.create();
+    httpClient = client.create();
 
     // Prepare the client & server
     httpClient.prepare(this);
-    MockWebServer server = startServer();
-    HttpUrl url = server.url("/");
-
-    int requestCount = 0;
-    long reportStart = System.nanoTime();
-    long reportPeriod = TimeUnit.SECONDS.toNanos(1);
-    int reports = 0;
-    double best = 0.0;
-
-    // Run until we've printed enough reports.
-    while (reports < NUM_REPORTS) {
-      // Print a report if we haven't recently.
-      long now = System.nanoTime();
-      double reportDuration = now - reportStart;
-      if (reportDuration > reportPeriod) {
-        double requestsPerSecond = requestCount / reportDuration * TimeUnit.SECONDS.toNanos(1);
-        if (VERBOSE) {
-          System.out.println(String.format("Requests per second: %.1f", requestsPerSecond));
-        }
-        best = Math.max(best, requestsPerSecond);
-        requestCount = 0;
-        reportStart = now;
-        reports++;
-      }
+    server = startServer();
+    url = server.url("/");
+  }
 
-      // Fill the job queue with work.
-      while (httpClient.acceptingJobs()) {
-        httpClient.enqueue(url);
-        requestCount++;
-      }
+  @TearDown public void tearDown() throws IOException {
+    server.shutdown();
+  }
 
-      // The job queue is full. Take a break.
+  @org.openjdk.jmh.annotations.Benchmark
+  public void request() throws Exception {
+    // The job queue is full. Take a break.
+    while (!httpClient.acceptingJobs()) {
       sleep(1);
     }
-
-    return best;
+    httpClient.enqueue(url);
   }
 
   @Override public String toString() {
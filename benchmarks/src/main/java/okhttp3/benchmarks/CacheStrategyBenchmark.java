@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.http.CacheStrategy;
+import okhttp3.internal.http.HttpDate;
+import okhttp3.internal.http.OkHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link CacheStrategy.Factory} deciding between a cached response and the network. This
+ * is on the path of every call made with a cache installed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CacheStrategyBenchmark {
+  /** True for a cached response that's still fresh; false for one that needs validation. */
+  @Param({"true", "false"})
+  boolean fresh;
+
+  private Request request;
+  private Response cacheResponse;
+
+  @Setup public void setUp() {
+    long now = System.currentTimeMillis();
+    request = new Request.Builder()
+        .url("https://api.example.com/v1/users/12345")
+        .build();
+    cacheResponse = new Response.Builder()
+        .request(request)
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .header("Date", HttpDate.format(new Date(now - TimeUnit.MINUTES.toMillis(5))))
+        .header("Last-Modified", HttpDate.format(new Date(now - TimeUnit.DAYS.toMillis(1))))
+        .header("ETag", "\"5e1f0c7a3b\"")
+        .header("Cache-Control", fresh ? "max-age=3600" : "max-age=60")
+        .header("Content-Type", "application/json")
+        .header(OkHeaders.SENT_MILLIS, Long.toString(now - TimeUnit.MINUTES.toMillis(5)))
+        .header(OkHeaders.RECEIVED_MILLIS, Long.toString(now - TimeUnit.MINUTES.toMillis(5)))
+        .build();
+  }
+
+  @Benchmark public CacheStrategy get() {
+    return new CacheStrategy.Factory(System.currentTimeMillis(), request, cacheResponse).get();
+  }
+}
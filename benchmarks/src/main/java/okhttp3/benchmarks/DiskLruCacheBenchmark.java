@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.internal.DiskLruCache;
+import okhttp3.internal.ShardedDiskLruCache;
+import okhttp3.internal.io.FileSystem;
+import okio.BufferedSink;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link DiskLruCache} reads and writes against the real file system. Reads run on
+ * several threads to expose contention on the cache, which sharding spreads across several locks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DiskLruCacheBenchmark {
+  /** How many entries are in the cache. */
+  @Param({"100", "10000"})
+  int entryCount;
+
+  /** The size of each entry's second value, in bytes. */
+  @Param({"1024"})
+  int valueByteCount;
+
+  /** How many independent shards the cache spreads its entries across. */
+  @Param({"1", "4"})
+  int shardCount;
+
+  private File directory;
+  private ShardedDiskLruCache cache;
+  private String[] keys;
+  private int next;
+
+  @Setup public void setUp() throws IOException {
+    directory = File.createTempFile("DiskLruCacheBenchmark", "");
+    FileSystem.SYSTEM.delete(directory);
+    cache = ShardedDiskLruCache.create(FileSystem.SYSTEM, directory, 1, 2, Long.MAX_VALUE,
+        shardCount);
+
+    keys = new String[entryCount];
+    for (int i = 0; i < entryCount; i++) {
+      keys[i] = "key" + i;
+      write(keys[i]);
+    }
+  }
+
+  @TearDown public void tearDown() throws IOException {
+    cache.delete();
+  }
+
+  @Benchmark @Threads(4) public long get() throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(keys[(next++ & Integer.MAX_VALUE) % entryCount]);
+    long length = snapshot.getLength(1);
+    snapshot.close();
+    return length;
+  }
+
+  @Benchmark public void edit() throws IOException {
+    write(keys[(next++ & Integer.MAX_VALUE) % entryCount]);
+  }
+
+  private void write(String key) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    BufferedSink metadata = Okio.buffer(editor.newSink(0));
+    metadata.writeUtf8(key);
+    metadata.close();
+    BufferedSink body = Okio.buffer(editor.newSink(1));
+    body.write(new byte[valueByteCount]);
+    body.close();
+    editor.commit();
+  }
+}
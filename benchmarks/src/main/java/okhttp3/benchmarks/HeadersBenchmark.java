@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import okhttp3.Headers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures building and querying {@link Headers} through {@link Headers.Builder}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HeadersBenchmark {
+  /** How many headers to add, beyond a typical set of response headers. */
+  @Param({"0", "20"})
+  int headerCount;
+
+  private String[] namesAndValues;
+  private Headers headers;
+
+  @Setup public void setUp() {
+    String[] typical = {
+        "Date", "Mon, 18 Jan 2016 18:43:27 GMT",
+        "Content-Type", "application/json; charset=utf-8",
+        "Content-Length", "4096",
+        "Cache-Control", "private, max-age=60",
+        "ETag", "\"5e1f0c7a3b\"",
+        "Vary", "Accept-Encoding",
+        "Server", "nginx",
+    };
+    namesAndValues = new String[typical.length + headerCount * 2];
+    System.arraycopy(typical, 0, namesAndValues, 0, typical.length);
+    for (int i = 0; i < headerCount; i++) {
+      namesAndValues[typical.length + i * 2] = "X-Custom-Header-" + i;
+      namesAndValues[typical.length + i * 2 + 1] = "value-" + i;
+    }
+    headers = build();
+  }
+
+  @Benchmark public Headers build() {
+    Headers.Builder builder = new Headers.Builder();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      builder.add(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return builder.build();
+  }
+
+  @Benchmark public Headers addLine() {
+    Headers.Builder builder = new Headers.Builder();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      builder.add(namesAndValues[i] + ": " + namesAndValues[i + 1]);
+    }
+    return builder.build();
+  }
+
+  @Benchmark public String get() {
+    return headers.get("vary");
+  }
+}
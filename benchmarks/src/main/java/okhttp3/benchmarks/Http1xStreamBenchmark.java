@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Headers;
+import okhttp3.internal.Internal;
+import okhttp3.internal.http.Http1xStream;
+import okhttp3.internal.http.StatusLine;
+import okio.Buffer;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures parsing the status line and headers of an HTTP/1.1 response. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Http1xStreamBenchmark {
+  /** How many additional headers were included, beyond the built-in ones. */
+  @Param({"0", "20"})
+  int headerCount;
+
+  private ByteString headerBlock;
+
+  @Setup public void setUp() {
+    Internal.initializeInstanceForTests();
+
+    Buffer buffer = new Buffer()
+        .writeUtf8("Date: Mon, 18 Jan 2016 18:43:27 GMT\r\n")
+        .writeUtf8("Content-Type: application/json; charset=utf-8\r\n")
+        .writeUtf8("Content-Length: 4096\r\n")
+        .writeUtf8("Cache-Control: private, max-age=60\r\n")
+        .writeUtf8("Server: nginx\r\n");
+    for (int i = 0; i < headerCount; i++) {
+      buffer.writeUtf8("X-Custom-Header-" + i + ": value-" + i + "\r\n");
+    }
+    headerBlock = buffer.writeUtf8("\r\n").readByteString();
+  }
+
+  @Benchmark public StatusLine statusLine() throws IOException {
+    return StatusLine.parse("HTTP/1.1 200 OK");
+  }
+
+  @Benchmark public Headers readHeaders() throws IOException {
+    Buffer source = new Buffer().write(headerBlock);
+    return new Http1xStream(null, source, new Buffer()).readHeaders();
+  }
+}
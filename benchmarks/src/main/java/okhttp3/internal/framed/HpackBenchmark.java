@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.framed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding and decoding a typical request header block. Lives in the framed package
+ * because {@link Hpack} is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HpackBenchmark {
+  /** How many additional headers were included, beyond the built-in ones. */
+  @Param({"0", "20"})
+  int headerCount;
+
+  private List<Header> headerBlock;
+  private ByteString encoded;
+
+  @Setup public void setUp() throws IOException {
+    headerBlock = new ArrayList<>();
+    headerBlock.add(new Header(Header.TARGET_METHOD, "GET"));
+    headerBlock.add(new Header(Header.TARGET_PATH, "/v1/users/12345/profile?fields=name,email"));
+    headerBlock.add(new Header(Header.TARGET_AUTHORITY, "api.example.com"));
+    headerBlock.add(new Header(Header.TARGET_SCHEME, "https"));
+    headerBlock.add(new Header("accept-encoding", "gzip"));
+    headerBlock.add(new Header("user-agent", "okhttp/3.1.0"));
+    headerBlock.add(new Header("cookie", "SID=31d4d96e407aad42; lang=en-US; theme=dark"));
+    headerBlock.add(new Header("authorization", "Bearer mF_9.B5f-4.1JqM"));
+    for (int i = 0; i < headerCount; i++) {
+      headerBlock.add(new Header("x-custom-header-" + i, "value-" + i));
+    }
+
+    Buffer buffer = new Buffer();
+    new Hpack.Writer(buffer).writeHeaders(headerBlock);
+    encoded = buffer.readByteString();
+  }
+
+  @Benchmark public Buffer write() throws IOException {
+    Buffer buffer = new Buffer();
+    new Hpack.Writer(buffer).writeHeaders(headerBlock);
+    return buffer;
+  }
+
+  @Benchmark public List<Header> read() throws IOException {
+    Hpack.Reader reader = new Hpack.Reader(4096, new Buffer().write(encoded));
+    reader.readHeaders();
+    return reader.getAndResetHeaderList();
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.framed;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding and decoding Huffman-coded header strings. {@code decodeTree} runs the
+ * tree-walking decoder that preceded the current state table so the two can be compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HuffmanBenchmark {
+  @Param({
+      "gzip, deflate",
+      "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_2) AppleWebKit/537.36 (KHTML, like Gecko)",
+      "SID=31d4d96e407aad42; lang=en-US; theme=dark; _ga=GA1.2.1234567890.1453142607"
+  })
+  String value;
+
+  private final TreeHuffmanDecoder treeDecoder = new TreeHuffmanDecoder();
+  private ByteString decoded;
+  private byte[] encoded;
+  private byte[] out;
+
+  @Setup public void setUp() throws IOException {
+    decoded = ByteString.encodeUtf8(value);
+    Buffer buffer = new Buffer();
+    Huffman.get().encode(decoded, buffer);
+    encoded = buffer.readByteArray();
+    out = new byte[Huffman.maxDecodedLength(encoded.length)];
+  }
+
+  @Benchmark public Buffer encode() throws IOException {
+    Buffer buffer = new Buffer();
+    Huffman.get().encode(decoded, buffer);
+    return buffer;
+  }
+
+  @Benchmark public byte[] decode() throws IOException {
+    return Huffman.get().decode(encoded);
+  }
+
+  /** Decodes the way {@link Hpack.Reader} does, into a reused array. */
+  @Benchmark public int decodeInto() throws IOException {
+    return Huffman.get().decode(encoded, encoded.length, out);
+  }
+
+  @Benchmark public byte[] decodeTree() throws IOException {
+    return treeDecoder.decode(encoded);
+  }
+}
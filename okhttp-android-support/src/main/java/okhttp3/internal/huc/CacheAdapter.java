@@ -15,6 +15,7 @@
  */
 package okhttp3.internal.huc;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.CacheResponse;
@@ -94,6 +95,22 @@ public final class CacheAdapter implements InternalCache {
     // This method is optional.
   }
 
+  @Override public Closeable beginFetch(Request request, long timeoutMillis) {
+    // ResponseCache has no way to wait for another client's fetch, so requests aren't coalesced.
+    return new Closeable() {
+      @Override public void close() {
+      }
+    };
+  }
+
+  @Override public Closeable beginRevalidation(Request request) {
+    // ResponseCache is shared with other clients, so revalidations aren't tracked.
+    return new Closeable() {
+      @Override public void close() {
+      }
+    };
+  }
+
   /**
    * Returns the {@link CacheResponse} from the delegate by converting the OkHttp {@link Request}
    * into the arguments required by the {@link ResponseCache}.
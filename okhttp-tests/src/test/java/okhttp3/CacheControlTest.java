@@ -51,21 +51,24 @@ public final class CacheControlTest {
         .minFresh(3, TimeUnit.SECONDS)
         .onlyIfCached()
         .noTransform()
+        .staleIfError(4, TimeUnit.SECONDS)
         .build();
     assertEquals("no-cache, no-store, max-age=1, max-stale=2, min-fresh=3, only-if-cached, "
-        + "no-transform", cacheControl.toString());
+        + "no-transform, stale-if-error=4", cacheControl.toString());
     assertTrue(cacheControl.noCache());
     assertTrue(cacheControl.noStore());
     assertEquals(1, cacheControl.maxAgeSeconds());
     assertEquals(2, cacheControl.maxStaleSeconds());
     assertEquals(3, cacheControl.minFreshSeconds());
     assertTrue(cacheControl.onlyIfCached());
+    assertEquals(4, cacheControl.staleIfErrorSeconds());
 
     // These members are accessible to response headers only.
     assertEquals(-1, cacheControl.sMaxAgeSeconds());
     assertFalse(cacheControl.isPrivate());
     assertFalse(cacheControl.isPublic());
     assertFalse(cacheControl.mustRevalidate());
+    assertEquals(-1, cacheControl.staleWhileRevalidateSeconds());
   }
 
   @Test public void parseEmpty() throws Exception {
@@ -86,7 +89,8 @@ public final class CacheControlTest {
 
   @Test public void parse() throws Exception {
     String header = "no-cache, no-store, max-age=1, s-maxage=2, private, public, must-revalidate, "
-        + "max-stale=3, min-fresh=4, only-if-cached, no-transform";
+        + "max-stale=3, min-fresh=4, only-if-cached, no-transform, stale-while-revalidate=5, "
+        + "stale-if-error=6";
     CacheControl cacheControl = CacheControl.parse(new Headers.Builder()
         .set("Cache-Control", header)
         .build());
@@ -101,6 +105,8 @@ public final class CacheControlTest {
     assertEquals(4, cacheControl.minFreshSeconds());
     assertTrue(cacheControl.onlyIfCached());
     assertTrue(cacheControl.noTransform());
+    assertEquals(5, cacheControl.staleWhileRevalidateSeconds());
+    assertEquals(6, cacheControl.staleIfErrorSeconds());
     assertEquals(header, cacheControl.toString());
   }
 
@@ -16,6 +16,7 @@
 
 package okhttp3;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.net.CookieManager;
@@ -28,20 +29,29 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import okhttp3.internal.HeldCertificate;
 import okhttp3.internal.Internal;
 import okhttp3.internal.SslContextBuilder;
 import okhttp3.internal.Util;
+import okhttp3.internal.http.CacheRequest;
 import okhttp3.internal.io.InMemoryFileSystem;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
@@ -49,6 +59,7 @@ import okhttp3.mockwebserver.RecordedRequest;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
+import okio.ByteString;
 import okio.GzipSink;
 import okio.Okio;
 import org.junit.After;
@@ -1144,6 +1155,191 @@ public final class CacheTest {
     assertEquals("B", response.body().string());
   }
 
+  @Test public void staleWhileRevalidateServesStaleResponseAndRevalidates() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60, stale-while-revalidate=3600")
+        .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES)));
+    server.enqueue(new MockResponse()
+        .setBody("B")
+        .addHeader("Cache-Control: max-age=60"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+
+    Response response = get(url);
+    assertEquals("A", response.body().string());
+    assertEquals("110 HttpURLConnection \"Response is stale\"", response.header("Warning"));
+
+    server.takeRequest();
+    RecordedRequest revalidation = server.takeRequest();
+    assertNotNull(revalidation.getHeader("If-Modified-Since"));
+    awaitIdle();
+
+    assertEquals("B", get(url).body().string());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void staleWhileRevalidateRetriesAfterRevalidationIsRejected() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60, stale-while-revalidate=3600")
+        .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES)));
+    server.enqueue(new MockResponse()
+        .setBody("B")
+        .addHeader("Cache-Control: max-age=60"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+
+    // The revalidation can't be enqueued, but the stale response is still served.
+    OkHttpClient original = client;
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    client = client.newBuilder()
+        .dispatcher(new Dispatcher(executor))
+        .build();
+    assertEquals("A", get(url).body().string());
+    assertEquals(1, server.getRequestCount());
+
+    // The next stale hit revalidates.
+    client = original;
+    assertEquals("A", get(url).body().string());
+    awaitIdle();
+    assertEquals("B", get(url).body().string());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void staleWhileRevalidateRevalidatesOnceForConcurrentHits() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60, stale-while-revalidate=3600")
+        .addHeader("Last-Modified: " + formatDate(-1, TimeUnit.HOURS))
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES)));
+    server.enqueue(new MockResponse()
+        .setBody("B")
+        .setBodyDelay(500, TimeUnit.MILLISECONDS)
+        .addHeader("Cache-Control: max-age=60"));
+    server.enqueue(new MockResponse()
+        .setBody("C")
+        .addHeader("Cache-Control: max-age=60"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+
+    // Each of these is served stale while the first revalidation is still in flight.
+    assertEquals("A", get(url).body().string());
+    assertEquals("A", get(url).body().string());
+    assertEquals("A", get(url).body().string());
+    awaitIdle();
+
+    assertEquals("B", get(url).body().string());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void staleWhileRevalidateWindowExpires() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60, stale-while-revalidate=60")
+        .addHeader("Date: " + formatDate(-3, TimeUnit.MINUTES)));
+    server.enqueue(new MockResponse()
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    Response response = get(url);
+    assertEquals("B", response.body().string());
+    assertNull(response.header("Warning"));
+  }
+
+  @Test public void staleIfErrorServesStaleResponseOnServerError() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60, stale-if-error=3600")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES)));
+    server.enqueue(new MockResponse()
+        .setResponseCode(503)
+        .setBody("unavailable"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+
+    Response response = get(url);
+    assertEquals(200, response.code());
+    assertEquals("A", response.body().string());
+    assertEquals(Arrays.asList("110 HttpURLConnection \"Response is stale\"",
+        "111 HttpURLConnection \"Revalidation failed\""), response.headers("Warning"));
+    assertEquals(503, response.networkResponse().code());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void staleIfErrorServesStaleResponseWhenServerIsUnreachable() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60, stale-if-error=3600")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES)));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    server.shutdown();
+
+    Response response = get(url);
+    assertEquals("A", response.body().string());
+    assertNull(response.networkResponse());
+    assertEquals(Arrays.asList("110 HttpURLConnection \"Response is stale\"",
+        "111 HttpURLConnection \"Revalidation failed\""), response.headers("Warning"));
+  }
+
+  @Test public void staleIfErrorWindowExpires() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60, stale-if-error=60")
+        .addHeader("Date: " + formatDate(-3, TimeUnit.MINUTES)));
+    server.enqueue(new MockResponse()
+        .setResponseCode(503)
+        .setBody("unavailable"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    Response response = get(url);
+    assertEquals(503, response.code());
+    assertEquals("unavailable", response.body().string());
+  }
+
+  @Test public void requestStaleIfErrorOverridesResponse() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES)));
+    server.enqueue(new MockResponse()
+        .setResponseCode(500));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+
+    Request request = new Request.Builder()
+        .url(url)
+        .cacheControl(new CacheControl.Builder().staleIfError(1, TimeUnit.HOURS).build())
+        .build();
+    Response response = client.newCall(request).execute();
+    assertEquals("A", response.body().string());
+  }
+
+  @Test public void staleIfErrorNotHonoredWithMustRevalidate() throws Exception {
+    server.enqueue(new MockResponse()
+        .setBody("A")
+        .addHeader("Cache-Control: max-age=60, must-revalidate, stale-if-error=3600")
+        .addHeader("Date: " + formatDate(-2, TimeUnit.MINUTES)));
+    server.enqueue(new MockResponse()
+        .setResponseCode(503));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals(503, get(url).code());
+  }
+
   @Test public void requestOnlyIfCachedWithNoResponseCached() throws IOException {
     // (no responses enqueued)
 
@@ -1668,6 +1864,179 @@ public final class CacheTest {
     assertEquals("B", response2.body().string());
   }
 
+  @Test public void varyStoresEachVariant() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    Request frRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "fr-CA")
+        .build();
+    Request enRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "en-US")
+        .build();
+    assertEquals("A", client.newCall(frRequest).execute().body().string());
+    assertEquals("B", client.newCall(enRequest).execute().body().string());
+    assertEquals("A", client.newCall(frRequest).execute().body().string());
+    assertEquals("B", client.newCall(enRequest).execute().body().string());
+    assertEquals(2, server.getRequestCount());
+    assertEquals(2, cache.hitCount());
+
+    // Each variant reports its URL.
+    Iterator<String> urls = cache.urls();
+    assertEquals(url.toString(), urls.next());
+    assertEquals(url.toString(), urls.next());
+    assertFalse(urls.hasNext());
+  }
+
+  @Test public void responseWithoutVaryReplacesVariants() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    Request frRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "fr-CA")
+        .build();
+    assertEquals("A", client.newCall(frRequest).execute().body().string());
+
+    Request forceNetwork = new Request.Builder()
+        .url(url)
+        .cacheControl(CacheControl.FORCE_NETWORK)
+        .build();
+    assertEquals("B", client.newCall(forceNetwork).execute().body().string());
+
+    assertEquals("B", client.newCall(frRequest).execute().body().string());
+    assertEquals("B", get(url).body().string());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void invalidatedVariantsAreNotRestoredByNewIndex() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("A"));
+    server.enqueue(new MockResponse().setBody("POST"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("B"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("C"));
+
+    HttpUrl url = server.url("/");
+    Request frRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "fr-CA")
+        .build();
+    Request enRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "en-US")
+        .build();
+    assertEquals("A", client.newCall(frRequest).execute().body().string());
+
+    Request post = new Request.Builder()
+        .url(url)
+        .post(RequestBody.create(MediaType.parse("text/plain"), "foo"))
+        .build();
+    assertEquals("POST", client.newCall(post).execute().body().string());
+
+    // Storing another variant writes an identical index, but not one that finds the old variant.
+    assertEquals("B", client.newCall(enRequest).execute().body().string());
+    assertEquals("C", client.newCall(frRequest).execute().body().string());
+    assertEquals("B", client.newCall(enRequest).execute().body().string());
+    assertEquals(4, server.getRequestCount());
+  }
+
+  @Test public void replacedVariantsAreNotRestoredByNewIndex() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("C"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("D"));
+
+    HttpUrl url = server.url("/");
+    Request frRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "fr-CA")
+        .build();
+    Request enRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "en-US")
+        .cacheControl(CacheControl.FORCE_NETWORK)
+        .build();
+    Request forceNetwork = new Request.Builder()
+        .url(url)
+        .cacheControl(CacheControl.FORCE_NETWORK)
+        .build();
+    assertEquals("A", client.newCall(frRequest).execute().body().string());
+    assertEquals("B", client.newCall(forceNetwork).execute().body().string());
+    assertEquals("C", client.newCall(enRequest).execute().body().string());
+    assertEquals("D", client.newCall(frRequest).execute().body().string());
+    assertEquals(4, server.getRequestCount());
+  }
+
+  @Test public void varyVariantsInMemoryCache() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .memoryCacheSize(64 * 1024)
+        .fileSystem(fileSystem)
+        .build();
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    Request frRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "fr-CA")
+        .build();
+    Request enRequest = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "en-US")
+        .build();
+    for (int i = 0; i < 3; i++) {
+      assertEquals("A", client.newCall(frRequest).execute().body().string());
+      assertEquals("B", client.newCall(enRequest).execute().body().string());
+    }
+    assertEquals(2, server.getRequestCount());
+    assertEquals(2, cache.memoryHitCount());
+  }
+
   @Test public void varyAsterisk() throws Exception {
     server.enqueue(new MockResponse()
         .addHeader("Cache-Control: max-age=60")
@@ -2110,12 +2479,296 @@ public final class CacheTest {
     assertEquals("3", response.header("Content-Length"));
   }
 
-  @Test public void evictAll() throws Exception {
+  @Test public void entriesAreWrittenInBinaryFormat() throws Exception {
     server.enqueue(new MockResponse()
         .addHeader("Cache-Control: max-age=60")
+        .addHeader("Vary: Accept-Language")
+        .addHeader("content-type: text/plain")
+        .addHeader("X-Custom: abc")
         .setBody("A"));
-    server.enqueue(new MockResponse()
-        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    Request request = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "fr-CA")
+        .build();
+    assertEquals("A", client.newCall(request).execute().body().string());
+
+    BufferedSource metadata = Okio.buffer(fileSystem.source(
+        new File(cache.directory(), Cache.murmur3Hex(url.toString()) + ".0")));
+    assertEquals(0, metadata.readByte());
+    metadata.close();
+
+    Response response = client.newCall(request).execute();
+    assertEquals("A", response.body().string());
+    assertEquals(1, cache.hitCount());
+    assertEquals("text/plain", response.header("content-type"));
+    assertEquals("abc", response.header("X-Custom"));
+    assertEquals("fr-CA", response.cacheResponse().request().header("Accept-Language"));
+
+    Iterator<String> urls = cache.urls();
+    assertEquals(url.toString(), urls.next());
+    assertFalse(urls.hasNext());
+  }
+
+  @Test public void httpsEntriesShareCertificates() throws Exception {
+    HeldCertificate root = new HeldCertificate.Builder()
+        .serialNumber("1")
+        .build();
+    HeldCertificate leaf = new HeldCertificate.Builder()
+        .issuedBy(root)
+        .serialNumber("2")
+        .build();
+    Handshake handshake = Handshake.get(TlsVersion.TLS_1_2,
+        CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,
+        Arrays.<Certificate>asList(leaf.certificate, root.certificate),
+        Collections.<Certificate>emptyList());
+
+    putHttps("https://example.com/a", handshake, "A");
+    putHttps("https://example.com/b", handshake, "B");
+
+    for (String path : Arrays.asList("a", "b")) {
+      Request request = new Request.Builder()
+          .url("https://example.com/" + path)
+          .build();
+      Response response = cache.internalCache.get(request);
+      assertEquals(path.toUpperCase(Locale.US), response.body().string());
+      assertEquals(handshake.peerCertificates(), response.handshake().peerCertificates());
+      assertEquals(TlsVersion.TLS_1_2, response.handshake().tlsVersion());
+    }
+
+    // Each certificate is stored once and isn't reported as a URL.
+    for (Certificate certificate : handshake.peerCertificates()) {
+      String hash = Util.sha256(ByteString.of(certificate.getEncoded())).hex();
+      assertTrue(fileSystem.exists(new File(cache.directory(), "cert-" + hash + ".0")));
+    }
+    Set<String> urls = new LinkedHashSet<>();
+    for (Iterator<String> i = cache.urls(); i.hasNext(); ) {
+      urls.add(i.next());
+    }
+    assertEquals(new LinkedHashSet<>(Arrays.asList(
+        "https://example.com/a", "https://example.com/b")), urls);
+  }
+
+  @Test public void entryWithEvictedCertificateIsRemoved() throws Exception {
+    HeldCertificate certificate = new HeldCertificate.Builder()
+        .serialNumber("1")
+        .build();
+    Handshake handshake = Handshake.get(TlsVersion.TLS_1_2,
+        CipherSuite.TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256,
+        Arrays.<Certificate>asList(certificate.certificate),
+        Collections.<Certificate>emptyList());
+    putHttps("https://example.com/a", handshake, "A");
+
+    String hash = Util.sha256(ByteString.of(certificate.certificate.getEncoded())).hex();
+    fileSystem.delete(new File(cache.directory(), "cert-" + hash + ".0"));
+    cache.close();
+    cache = new Cache(cache.directory(), Integer.MAX_VALUE, fileSystem);
+
+    Request request = new Request.Builder()
+        .url("https://example.com/a")
+        .build();
+    assertNull(cache.internalCache.get(request));
+    assertFalse(cache.urls().hasNext());
+  }
+
+  @Test public void goldenTextEntryIsRewrittenInBinaryFormat() throws Exception {
+    HttpUrl url = server.url("/");
+    String urlKey = Util.md5Hex(url.toString());
+    String entryMetadata = ""
+        + "" + url + "\n"
+        + "GET\n"
+        + "0\n"
+        + "HTTP/1.1 200 OK\n"
+        + "3\n"
+        + "Cache-Control: max-age=0\n"
+        + "ETag: v1\n"
+        + "Content-Length: 3\n";
+    String entryBody = "abc";
+    String journalBody = ""
+        + "libcore.io.DiskLruCache\n"
+        + "1\n"
+        + "201105\n"
+        + "2\n"
+        + "\n"
+        + "CLEAN " + urlKey + " " + entryMetadata.length() + " " + entryBody.length() + "\n";
+    writeFile(cache.directory(), urlKey + ".0", entryMetadata);
+    writeFile(cache.directory(), urlKey + ".1", entryBody);
+    writeFile(cache.directory(), "journal", journalBody);
+    cache.close();
+    cache = new Cache(cache.directory(), Integer.MAX_VALUE, fileSystem);
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED)
+        .addHeader("Cache-Control: max-age=60"));
+    assertEquals(entryBody, get(url).body().string());
+    assertEquals("v1", server.takeRequest().getHeader("If-None-Match"));
+
+    BufferedSource metadata = Okio.buffer(fileSystem.source(
+        new File(cache.directory(), urlKey + ".0")));
+    assertEquals(0, metadata.readByte());
+    metadata.close();
+
+    Response response = get(url);
+    assertEquals(entryBody, response.body().string());
+    assertEquals("max-age=60", response.header("Cache-Control"));
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test public void legacyEntryIsReplacedWhenResponseIsStored() throws Exception {
+    HttpUrl url = server.url("/");
+    String legacyKey = Util.md5Hex(url.toString());
+    String entryMetadata = ""
+        + "" + url + "\n"
+        + "GET\n"
+        + "0\n"
+        + "HTTP/1.1 200 OK\n"
+        + "2\n"
+        + "Cache-Control: max-age=0\n"
+        + "Content-Length: 3\n";
+    String entryBody = "abc";
+    String journalBody = ""
+        + "libcore.io.DiskLruCache\n"
+        + "1\n"
+        + "201105\n"
+        + "2\n"
+        + "\n"
+        + "CLEAN " + legacyKey + " " + entryMetadata.length() + " " + entryBody.length() + "\n";
+    writeFile(cache.directory(), legacyKey + ".0", entryMetadata);
+    writeFile(cache.directory(), legacyKey + ".1", entryBody);
+    writeFile(cache.directory(), "journal", journalBody);
+    cache.close();
+    cache = new Cache(cache.directory(), Integer.MAX_VALUE, fileSystem);
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("def"));
+    assertEquals("def", get(url).body().string());
+
+    String key = Cache.murmur3Hex(url.toString());
+    assertFalse(fileSystem.exists(new File(cache.directory(), legacyKey + ".0")));
+    assertTrue(fileSystem.exists(new File(cache.directory(), key + ".0")));
+    assertEquals("def", get(url).body().string());
+    assertEquals(1, server.getRequestCount());
+
+    // No legacy entries remain, so later lookups don't try their keys.
+    cache.flush();
+    assertEquals("", readFile(cache.directory(), "legacy-keys"));
+  }
+
+  @Test public void legacyKeysArePersistedUntilReplaced() throws Exception {
+    HttpUrl url = server.url("/");
+    String legacyKey = Util.md5Hex(url.toString());
+    String entryMetadata = ""
+        + "" + url + "\n"
+        + "GET\n"
+        + "0\n"
+        + "HTTP/1.1 200 OK\n"
+        + "3\n"
+        + "Cache-Control: max-age=0\n"
+        + "ETag: v1\n"
+        + "Content-Length: 3\n";
+    String entryBody = "abc";
+    String journalBody = ""
+        + "libcore.io.DiskLruCache\n"
+        + "1\n"
+        + "201105\n"
+        + "2\n"
+        + "\n"
+        + "CLEAN " + legacyKey + " " + entryMetadata.length() + " " + entryBody.length() + "\n";
+    writeFile(cache.directory(), legacyKey + ".0", entryMetadata);
+    writeFile(cache.directory(), legacyKey + ".1", entryBody);
+    writeFile(cache.directory(), "journal", journalBody);
+    cache.close();
+    cache = new Cache(cache.directory(), Integer.MAX_VALUE, fileSystem);
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED)
+        .addHeader("Cache-Control: max-age=60"));
+    assertEquals("abc", get(url).body().string());
+    cache.close();
+    assertEquals(legacyKey + "\n", readFile(cache.directory(), "legacy-keys"));
+
+    // Reopening the cache still finds the legacy entry.
+    cache = new Cache(cache.directory(), Integer.MAX_VALUE, fileSystem);
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+    assertEquals("abc", get(url).body().string());
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test public void newCacheHasNoLegacyKeys() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals("A", get(url).body().string());
+    cache.flush();
+    assertEquals("", readFile(cache.directory(), "legacy-keys"));
+  }
+
+  @Test public void keyFunctionSeparatesVariants() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .keyFunction(new Cache.KeyFunction() {
+          @Override public String key(Request request) {
+            String user = request.header("User");
+            return Cache.KeyFunction.DEFAULT.key(request) + (user != null ? "-" + user : "");
+          }
+        })
+        .fileSystem(fileSystem)
+        .build();
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("alice's"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("bob's"));
+
+    HttpUrl url = server.url("/");
+    Request alice = new Request.Builder().url(url).header("User", "alice").build();
+    Request bob = new Request.Builder().url(url).header("User", "bob").build();
+    assertEquals("alice's", client.newCall(alice).execute().body().string());
+    assertEquals("bob's", client.newCall(bob).execute().body().string());
+    assertEquals("alice's", client.newCall(alice).execute().body().string());
+    assertEquals("bob's", client.newCall(bob).execute().body().string());
+    assertEquals(2, cache.hitCount());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void murmur3Hex() throws Exception {
+    assertEquals("00000000000000000000000000000000", Cache.murmur3Hex(""));
+    assertEquals("96a698500b4e98bdb278c9bfc754677d", Cache.murmur3Hex("a"));
+    assertEquals("548cfc581a584f48076f42dc4bbe30df", Cache.murmur3Hex("abcd"));
+    assertEquals("ef8464c206cb30eccc827c3e934dfa4b", Cache.murmur3Hex("abcde"));
+    assertEquals("2803a5bc696daeb2a2b1eb7540d6d1fa", Cache.murmur3Hex("abcdefgh"));
+    assertEquals("861174c40a5e550fd83e090cd899d0f7", Cache.murmur3Hex("http://example.com/"));
+    assertEquals("664c0b00b63ca4c043538b1f686403d1",
+        Cache.murmur3Hex("https://example.com/a?b=c"));
+  }
+
+  @Test public void evictAll() throws Exception {
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .setBody("B"));
 
     HttpUrl url = server.url("/");
     assertEquals("A", get(url).body().string());
@@ -2124,6 +2777,258 @@ public final class CacheTest {
     assertEquals("B", get(url).body().string());
   }
 
+  @Test public void shardCountMustBePositive() throws Exception {
+    try {
+      new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE).shardCount(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void shardedCache() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .shardCount(4)
+        .fileSystem(fileSystem)
+        .build();
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    for (int i = 0; i < 8; i++) {
+      server.enqueue(new MockResponse()
+          .addHeader("Cache-Control: max-age=60")
+          .setBody("v" + i));
+    }
+    for (int i = 0; i < 8; i++) {
+      assertEquals("v" + i, get(server.url("/" + i)).body().string());
+    }
+    for (int i = 0; i < 8; i++) {
+      assertEquals("v" + i, get(server.url("/" + i)).body().string());
+    }
+
+    assertEquals(8, cache.hitCount());
+    Set<String> urls = new LinkedHashSet<>();
+    for (Iterator<String> i = cache.urls(); i.hasNext(); ) {
+      urls.add(i.next());
+    }
+    assertEquals(8, urls.size());
+  }
+
+  @Test public void memoryCacheServesRepeatedReads() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .memoryCacheSize(64 * 1024)
+        .fileSystem(fileSystem)
+        .build();
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals(0, cache.memoryHitCount());
+    assertEquals("A", get(url).body().string()); // Admitted to memory.
+    assertEquals(0, cache.memoryHitCount());
+    Response response = get(url);
+    assertEquals("A", response.body().string());
+    assertEquals(1, response.body().contentLength());
+    assertEquals(1, cache.memoryHitCount());
+    assertEquals(2, cache.hitCount());
+
+    // Evicting the disk cache also clears the memory cache.
+    cache.evictAll();
+    assertEquals("B", get(url).body().string());
+    assertEquals("B", get(url).body().string());
+    assertEquals("B", get(url).body().string());
+    assertEquals(2, cache.memoryHitCount());
+    assertEquals(2, server.getRequestCount());
+  }
+
+  @Test public void memoryCacheIsInvalidatedByPost() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .memoryCacheSize(64 * 1024)
+        .fileSystem(fileSystem)
+        .build();
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse().setBody("POST"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    assertEquals("A", get(url).body().string());
+    assertEquals("A", get(url).body().string());
+
+    Request post = new Request.Builder()
+        .url(url)
+        .post(RequestBody.create(MediaType.parse("text/plain"), "foo"))
+        .build();
+    assertEquals("POST", client.newCall(post).execute().body().string());
+
+    assertEquals("B", get(url).body().string());
+    assertEquals("B", get(url).body().string());
+    assertEquals(0, cache.memoryHitCount());
+  }
+
+  @Test public void updateIgnoresResponseNotFromThisCache() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .memoryCacheSize(64 * 1024)
+        .fileSystem(fileSystem)
+        .build();
+
+    Request request = new Request.Builder()
+        .url(server.url("/"))
+        .build();
+    Response cached = new Response.Builder()
+        .request(request)
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .body(ResponseBody.create(MediaType.parse("text/plain"), "A"))
+        .build();
+    Response networkResponse = cached.newBuilder()
+        .code(304)
+        .message("Not Modified")
+        .body(null)
+        .build();
+    Response network = networkResponse.newBuilder()
+        .networkResponse(networkResponse)
+        .build();
+    cache.internalCache.update(cached, network);
+    assertFalse(cache.urls().hasNext());
+  }
+
+  @Test public void memoryCacheDoesNotKeepResponseReplacedDuringRead() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .memoryCacheSize(64 * 1024)
+        .fileSystem(fileSystem)
+        .build();
+
+    String url = server.url("/").toString();
+    Request request = new Request.Builder().url(url).build();
+    put(url, "A").close();
+
+    // Read the old response while its replacement is being written.
+    BufferedSink replacement = put(url, "B");
+    assertEquals("A", cache.internalCache.get(request).body().string());
+    replacement.close();
+
+    assertEquals("B", cache.internalCache.get(request).body().string());
+    assertEquals("B", cache.internalCache.get(request).body().string());
+  }
+
+  @Test public void concurrentMissesAreCoalesced() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .coalesceRequests(true)
+        .fileSystem(fileSystem)
+        .build();
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    // The first request holds the fetch until its body is read and stored.
+    final HttpUrl url = server.url("/");
+    Response first = get(url);
+
+    ExecutorService executor = Executors.newCachedThreadPool();
+    List<Future<String>> others = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      others.add(executor.submit(new Callable<String>() {
+        @Override public String call() throws Exception {
+          return get(url).body().string();
+        }
+      }));
+    }
+    Thread.sleep(250);
+
+    assertEquals("A", first.body().string());
+    for (Future<String> other : others) {
+      assertEquals("A", other.get());
+    }
+    executor.shutdown();
+    assertEquals(1, server.getRequestCount());
+    assertEquals(1, cache.writeSuccessCount());
+  }
+
+  @Test public void coalescingDoesNotWaitForFetchOnSameThread() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .coalesceRequests(true)
+        .fileSystem(fileSystem)
+        .build();
+    client = client.newBuilder()
+        .cache(cache)
+        .build();
+
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("A"));
+    server.enqueue(new MockResponse()
+        .addHeader("Cache-Control: max-age=60")
+        .setBody("B"));
+
+    HttpUrl url = server.url("/");
+    Response first = get(url);
+    assertEquals("B", get(url).body().string());
+    assertEquals("A", first.body().string());
+    assertEquals(0, cache.coalescedCount());
+  }
+
+  @Test public void requestsWithDifferentHeadersAreNotCoalesced() throws Exception {
+    cache.delete();
+    cache = new Cache.Builder(new File("/cache/"), Integer.MAX_VALUE)
+        .coalesceRequests(true)
+        .fileSystem(fileSystem)
+        .build();
+
+    HttpUrl url = server.url("/");
+    Request english = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "en-US")
+        .build();
+    final Request french = new Request.Builder()
+        .url(url)
+        .header("Accept-Language", "fr-CA")
+        .build();
+
+    // Fetching the French response doesn't wait for the English one, which it might not match.
+    Closeable englishFetch = cache.internalCache.beginFetch(english, 0);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<Closeable> frenchFetch = executor.submit(new Callable<Closeable>() {
+      @Override public Closeable call() throws Exception {
+        return cache.internalCache.beginFetch(french, 0);
+      }
+    });
+    assertNotNull(frenchFetch.get(1, TimeUnit.SECONDS));
+    executor.shutdown();
+    englishFetch.close();
+  }
+
   @Test public void networkInterceptorInvokedForConditionalGet() throws Exception {
     server.enqueue(new MockResponse()
         .addHeader("ETag: v1")
@@ -2327,6 +3232,49 @@ public final class CacheTest {
     return client.newCall(request).execute();
   }
 
+  /** Stores a response for {@code url} and returns its body sink, which commits when closed. */
+  private BufferedSink put(String url, String body) throws IOException {
+    Response networkResponse = new Response.Builder()
+        .request(new Request.Builder().url(url).build())
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .header("Cache-Control", "max-age=60")
+        .build();
+    Response response = networkResponse.newBuilder()
+        .networkResponse(networkResponse)
+        .build();
+    CacheRequest cacheRequest = cache.internalCache.put(response);
+    return Okio.buffer(cacheRequest.body()).writeUtf8(body);
+  }
+
+  private void putHttps(String url, Handshake handshake, String body) throws IOException {
+    Response networkResponse = new Response.Builder()
+        .request(new Request.Builder().url(url).build())
+        .protocol(Protocol.HTTP_1_1)
+        .code(200)
+        .message("OK")
+        .header("Cache-Control", "max-age=60")
+        .handshake(handshake)
+        .build();
+    Response response = networkResponse.newBuilder()
+        .networkResponse(networkResponse)
+        .build();
+    CacheRequest cacheRequest = cache.internalCache.put(response);
+    BufferedSink sink = Okio.buffer(cacheRequest.body());
+    sink.writeUtf8(body);
+    sink.close();
+  }
+
+  private String readFile(File directory, String file) throws IOException {
+    BufferedSource source = Okio.buffer(fileSystem.source(new File(directory, file)));
+    try {
+      return source.readUtf8();
+    } finally {
+      source.close();
+    }
+  }
+
   private void writeFile(File directory, String file, String content) throws IOException {
     BufferedSink sink = Okio.buffer(fileSystem.sink(new File(directory, file)));
     sink.writeUtf8(content);
@@ -2337,6 +3285,13 @@ public final class CacheTest {
    * @param delta the offset from the current date to use. Negative values yield dates in the past;
    * positive values yield dates in the future.
    */
+  /** Waits for background calls, like stale-while-revalidate revalidations, to complete. */
+  private void awaitIdle() throws InterruptedException {
+    while (client.dispatcher().runningCallsCount() > 0) {
+      Thread.sleep(10);
+    }
+  }
+
   private String formatDate(long delta, TimeUnit timeUnit) {
     return formatDate(new Date(System.currentTimeMillis() + timeUnit.toMillis(delta)));
   }
@@ -623,6 +623,15 @@ public final class CallTest {
     assertEquals("AsyncApiTest", server.takeRequest().getHeader("User-Agent"));
   }
 
+  /** Virtual threads are used where available; otherwise this falls back to platform threads. */
+  @Test public void get_Async_VirtualThreads() throws Exception {
+    client = client.newBuilder()
+        .dispatcher(new okhttp3.Dispatcher(true))
+        .virtualThreads(true)
+        .build();
+    get_Async();
+  }
+
   @Test public void exceptionThrownByOnResponseIsRedactedAndLogged() throws Exception {
     server.enqueue(new MockResponse());
 
@@ -15,11 +15,15 @@
  */
 package okhttp3;
 
+import java.lang.ref.WeakReference;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import javax.net.SocketFactory;
 import okhttp3.internal.Internal;
@@ -30,6 +34,8 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public final class ConnectionPoolTest {
@@ -132,6 +138,49 @@ public final class ConnectionPoolTest {
     assertTrue(c2.socket.isClosed());
   }
 
+  @Test public void cleanupEvictsAllExpiredConnectionsAtOnce() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+
+    RealConnection c1 = newConnection(pool, routeA1, 50L);
+    RealConnection c2 = newConnection(pool, routeB1, 60L);
+    RealConnection c3 = newConnection(pool, routeC1, 90L);
+
+    // Running at time 170, the pool evicts c1 and c2 in one pass.
+    assertEquals(0L, pool.cleanup(170L));
+    assertEquals(1, pool.connectionCount());
+    assertTrue(c1.socket.isClosed());
+    assertTrue(c2.socket.isClosed());
+    assertFalse(c3.socket.isClosed());
+
+    // Nothing more can be evicted until time 190.
+    assertEquals(20L, pool.cleanup(170L));
+  }
+
+  @Test public void reusedConnectionIsEvictedByItsNewIdleTime() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+
+    RealConnection c1 = newConnection(pool, routeA1, 50L);
+    RealConnection c2 = newConnection(pool, routeB1, 60L);
+    c1.allocationLimit = 1;
+
+    // Reuse c1, then release it at time 120.
+    synchronized (pool) {
+      assertSame(c1, pool.get(addressA, new StreamAllocation(pool, addressA)));
+      c1.allocations.clear();
+      c1.idleAtNanos = 120L;
+      assertFalse(pool.connectionBecameIdle(c1));
+    }
+
+    // c2 is now the connection that has been idle the longest.
+    assertEquals(30L, pool.cleanup(130L));
+    assertEquals(0L, pool.cleanup(160L));
+    assertTrue(c2.socket.isClosed());
+    assertFalse(c1.socket.isClosed());
+    assertEquals(60L, pool.cleanup(160L));
+  }
+
   @Test public void oldestConnectionsEvictedIfIdleLimitExceeded() throws Exception {
     ConnectionPool pool = new ConnectionPool(2, 100L, TimeUnit.NANOSECONDS);
     pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
@@ -156,6 +205,141 @@ public final class ConnectionPoolTest {
     assertFalse(c3.socket.isClosed());
   }
 
+  @Test public void getReturnsConnectionForAddress() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+
+    RealConnection a1 = newConnection(pool, routeA1, 0L);
+    RealConnection b1 = newConnection(pool, routeB1, 0L);
+    a1.allocationLimit = 1;
+    b1.allocationLimit = 1;
+
+    synchronized (pool) {
+      assertSame(b1, pool.get(addressB, new StreamAllocation(pool, addressB)));
+      assertNull(pool.get(addressB, new StreamAllocation(pool, addressB)));
+      assertNull(pool.get(addressC, new StreamAllocation(pool, addressC)));
+      assertSame(a1, pool.get(addressA, new StreamAllocation(pool, addressA)));
+    }
+  }
+
+  @Test public void mostRecentlyIdleConnectionIsReusedFirst() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+
+    RealConnection c1 = newConnection(pool, routeA1, 0L);
+    RealConnection c2 = newConnection(pool, routeA1, 0L);
+    c1.allocationLimit = 1;
+    c2.allocationLimit = 1;
+
+    synchronized (pool) {
+      assertFalse(pool.connectionBecameIdle(c1));
+      assertSame(c1, pool.get(addressA, new StreamAllocation(pool, addressA)));
+      assertSame(c2, pool.get(addressA, new StreamAllocation(pool, addressA)));
+    }
+    assertEquals(2, pool.connectionCount());
+  }
+
+  @Test public void busyMultiplexedConnectionsAreSpreadAcross() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+    pool.setMultiplexedConnectionLimits(2, 2, Long.MAX_VALUE);
+
+    RealConnection c1 = newConnection(pool, routeA1, 0L);
+    c1.allocationLimit = 100;
+
+    synchronized (pool) {
+      assertSame(c1, pool.get(addressA, new StreamAllocation(pool, addressA)));
+      assertSame(c1, pool.get(addressA, new StreamAllocation(pool, addressA)));
+      assertNull(pool.get(addressA, new StreamAllocation(pool, addressA))); // c1 is busy.
+    }
+
+    RealConnection c2 = newConnection(pool, routeA1, 0L);
+    synchronized (pool) {
+      // While c2 connects the address is at its limit, so c1 takes more streams.
+      assertSame(c1, pool.get(addressA, new StreamAllocation(pool, addressA)));
+    }
+    c2.allocationLimit = 100;
+
+    synchronized (pool) {
+      // New streams go to the least busy connection.
+      assertSame(c2, pool.get(addressA, new StreamAllocation(pool, addressA)));
+      assertSame(c2, pool.get(addressA, new StreamAllocation(pool, addressA)));
+      assertSame(c2, pool.get(addressA, new StreamAllocation(pool, addressA)));
+    }
+    assertEquals(3, c1.allocations.size());
+    assertEquals(3, c2.allocations.size());
+  }
+
+  @Test public void connectingConnectionsAreNotShared() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+    pool.setMultiplexedConnectionLimits(2, 2, Long.MAX_VALUE);
+
+    newConnection(pool, routeA1, 0L);
+    newConnection(pool, routeA1, 0L);
+    synchronized (pool) {
+      // The address is at its limit, but a stream can't wait on a connection that's connecting.
+      assertNull(pool.get(addressA, new StreamAllocation(pool, addressA)));
+    }
+  }
+
+  @Test public void evictionsAreCountedAndReportedByReason() throws Exception {
+    final List<String> events = new ArrayList<>();
+    ConnectionPool.Listener listener = new ConnectionPool.Listener() {
+      @Override public void connectionEvicted(Connection connection,
+          ConnectionPool.EvictionReason reason) {
+        events.add(connection.route().address().url().host() + " " + reason);
+      }
+    };
+    ConnectionPool pool = new ConnectionPool(1, 100L, TimeUnit.NANOSECONDS, listener);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+
+    newConnection(pool, routeA1, 10L);
+    newConnection(pool, routeB1, 20L);
+
+    assertEquals(0L, pool.cleanup(30L));
+    assertEquals(0L, pool.cleanup(120L));
+    assertEquals(Arrays.asList("a IDLE_LIMIT", "b KEEP_ALIVE_EXPIRED"), events);
+
+    RealConnection c1 = newConnection(pool, routeC1, Long.MAX_VALUE);
+    synchronized (pool) {
+      c1.noNewStreams = true;
+      assertTrue(pool.connectionBecameIdle(c1));
+    }
+    newConnection(pool, routeA1, 120L);
+    pool.evictAll();
+
+    assertEquals(Arrays.asList("a IDLE_LIMIT", "b KEEP_ALIVE_EXPIRED", "c NO_NEW_STREAMS",
+        "a EVICT_ALL"), events);
+    assertEquals(1, pool.evictionCount(ConnectionPool.EvictionReason.KEEP_ALIVE_EXPIRED));
+    assertEquals(1, pool.evictionCount(ConnectionPool.EvictionReason.IDLE_LIMIT));
+    assertEquals(1, pool.evictionCount(ConnectionPool.EvictionReason.NO_NEW_STREAMS));
+    assertEquals(1, pool.evictionCount(ConnectionPool.EvictionReason.EVICT_ALL));
+  }
+
+  @Test public void connectionStats() throws Exception {
+    ConnectionPool pool = new ConnectionPool(Integer.MAX_VALUE, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+
+    RealConnection c1 = newConnection(pool, routeA1, Long.MAX_VALUE);
+    c1.successCount = 3;
+    c1.allocationLimit = 4;
+    synchronized (pool) {
+      c1.allocations.add(new WeakReference<>(new StreamAllocation(pool, addressA)));
+    }
+
+    List<ConnectionPool.ConnectionStats> stats = pool.connectionStats();
+    assertEquals(1, stats.size());
+    ConnectionPool.ConnectionStats c1Stats = stats.get(0);
+    assertEquals(addressA, c1Stats.address());
+    assertEquals(Protocol.HTTP_1_1, c1Stats.protocol());
+    assertEquals(3, c1Stats.successCount());
+    assertEquals(1, c1Stats.allocationCount());
+    assertEquals(4, c1Stats.allocationLimit());
+    assertEquals(0L, c1Stats.idleNanos());
+    assertTrue(c1Stats.ageNanos() >= 0L);
+  }
+
   @Test public void leakedAllocation() throws Exception {
     ConnectionPool pool = new ConnectionPool(2, 100L, TimeUnit.NANOSECONDS);
     pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
@@ -170,6 +354,25 @@ public final class ConnectionPoolTest {
     assertTrue(c1.noNewStreams); // Can't allocate once a leak has been detected.
   }
 
+  @Test public void leakedAllocationIsDetectedOnNextCleanup() throws Exception {
+    ConnectionPool pool = new ConnectionPool(2, 100L, TimeUnit.NANOSECONDS);
+    pool.cleanupRunning = true; // Prevent the cleanup runnable from being started.
+
+    RealConnection c1 = newConnection(pool, routeA1, 0L);
+    RealConnection c2 = newConnection(pool, routeA1, 90L); // Idle, but not yet expired.
+    allocateAndLeakAllocation(pool, c1);
+    assertEquals(90L, pool.cleanup(100L));
+
+    // Well within the keep alive duration of the previous cleanup.
+    awaitGarbageCollection();
+    assertEquals(0L, pool.cleanup(101L));
+    assertEquals(Collections.emptyList(), c1.allocations);
+    assertTrue(c1.noNewStreams);
+    assertEquals(1, pool.connectionCount());
+    assertEquals(1, pool.idleConnectionCount());
+    assertTrue(c2.allocations.isEmpty());
+  }
+
   /** Use a helper method so there's no hidden reference remaining on the stack. */
   private void allocateAndLeakAllocation(ConnectionPool pool, RealConnection connection) {
     StreamAllocation leak = new StreamAllocation(pool, connection.route().address());
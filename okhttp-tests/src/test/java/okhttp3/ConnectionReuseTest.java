@@ -235,6 +235,44 @@ public final class ConnectionReuseTest {
     assertEquals(0, server.takeRequest().getSequenceNumber());
   }
 
+  @Test public void prewarmedConnectionsAreReused() throws Exception {
+    server.enqueue(new MockResponse().setBody("a"));
+    server.enqueue(new MockResponse().setBody("b"));
+
+    ConnectionPool connectionPool = new ConnectionPool();
+    client = client.newBuilder()
+        .connectionPool(connectionPool)
+        .build();
+    client.prewarmConnections(server.url("/"), 2);
+    awaitIdleConnectionCount(connectionPool, 2);
+
+    Request request = new Request.Builder()
+        .url(server.url("/"))
+        .build();
+    assertConnectionReused(request, request);
+    assertEquals(2, connectionPool.connectionCount());
+  }
+
+  @Test public void minimumIdleConnectionsAreMaintained() throws Exception {
+    server.enqueue(new MockResponse().setBody("a"));
+
+    ConnectionPool connectionPool = new ConnectionPool();
+    client = client.newBuilder()
+        .connectionPool(connectionPool)
+        .build();
+    client.minimumIdleConnections(server.url("/"), 2);
+    awaitIdleConnectionCount(connectionPool, 2);
+
+    // Taking a connection out of the pool prompts a replacement.
+    Response response = client.newCall(new Request.Builder()
+        .url(server.url("/"))
+        .build()).execute();
+    awaitIdleConnectionCount(connectionPool, 2);
+    assertEquals("a", response.body().string());
+    assertEquals(3, connectionPool.connectionCount());
+    client.minimumIdleConnections(server.url("/"), 0);
+  }
+
   @Test public void connectionsAreNotReusedIfSslSocketFactoryChanges() throws Exception {
     enableHttps();
     server.enqueue(new MockResponse());
@@ -305,6 +343,13 @@ public final class ConnectionReuseTest {
     server.setProtocols(client.protocols());
   }
 
+  private void awaitIdleConnectionCount(ConnectionPool connectionPool, int count)
+      throws Exception {
+    while (connectionPool.idleConnectionCount() != count) {
+      Thread.sleep(10);
+    }
+  }
+
   private void assertConnectionReused(Request... requests) throws Exception {
     for (int i = 0; i < requests.length; i++) {
       Response response = client.newCall(requests[i]).execute();
@@ -9,8 +9,12 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.RealCall.AsyncCall;
 import org.junit.Before;
 import org.junit.Test;
@@ -213,6 +217,42 @@ public final class DispatcherTest {
     assertFalse(a4.isCanceled());
   }
 
+  @Test public void concurrentCallsRespectLimits() throws Exception {
+    final int threadCount = 4;
+    final int callsPerThread = 500;
+    final String[] hosts = {"a", "b", "c", "d", "e"};
+    final ConcurrencyCheckingExecutor checkingExecutor
+        = new ConcurrencyCheckingExecutor(threadCount * callsPerThread);
+    dispatcher = new Dispatcher(checkingExecutor);
+    dispatcher.setMaxRequests(8);
+    dispatcher.setMaxRequestsPerHost(2);
+    client = client.newBuilder()
+        .dispatcher(dispatcher)
+        .build();
+
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      threads[t] = new Thread() {
+        @Override public void run() {
+          for (int i = 0; i < callsPerThread; i++) {
+            String url = "http://" + hosts[i % hosts.length] + "/" + i;
+            client.newCall(newRequest(url)).enqueue(callback);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(checkingExecutor.finished.await(10, TimeUnit.SECONDS));
+    checkingExecutor.shutdown();
+    assertEquals(0, checkingExecutor.violations.get());
+    assertEquals(0, dispatcher.runningCallsCount());
+    assertEquals(0, dispatcher.queuedCallsCount());
+  }
+
   private <T> Set<T> set(T... values) {
     return set(Arrays.asList(values));
   }
@@ -284,6 +324,62 @@ public final class DispatcherTest {
     }
   }
 
+  /**
+   * Finishes calls on a background thread without running them, counting any that start while the
+   * dispatcher's limits are already reached.
+   */
+  class ConcurrencyCheckingExecutor extends AbstractExecutorService {
+    final ExecutorService finisher = Executors.newFixedThreadPool(4);
+    final AtomicInteger running = new AtomicInteger();
+    final ConcurrentHashMap<String, AtomicInteger> runningPerHost = new ConcurrentHashMap<>();
+    final AtomicInteger violations = new AtomicInteger();
+    final CountDownLatch finished;
+
+    ConcurrencyCheckingExecutor(int callCount) {
+      this.finished = new CountDownLatch(callCount);
+    }
+
+    @Override public void execute(Runnable command) {
+      final AsyncCall call = (AsyncCall) command;
+      runningPerHost.putIfAbsent(call.host(), new AtomicInteger());
+      final AtomicInteger hostRunning = runningPerHost.get(call.host());
+      if (running.incrementAndGet() > dispatcher.getMaxRequests()) violations.incrementAndGet();
+      if (hostRunning.incrementAndGet() > dispatcher.getMaxRequestsPerHost()) {
+        violations.incrementAndGet();
+      }
+
+      finisher.execute(new Runnable() {
+        @Override public void run() {
+          hostRunning.decrementAndGet();
+          running.decrementAndGet();
+          dispatcher.finished(call);
+          finished.countDown();
+        }
+      });
+    }
+
+    @Override public void shutdown() {
+      finisher.shutdown();
+    }
+
+    @Override public List<Runnable> shutdownNow() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public boolean isShutdown() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public boolean isTerminated() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   private Request newRequest(String url) {
     return new Request.Builder().url(url).build();
   }
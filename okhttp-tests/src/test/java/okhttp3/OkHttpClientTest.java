@@ -27,6 +27,7 @@ import org.junit.Test;
 
 import static okhttp3.TestUtil.defaultClient;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
@@ -77,6 +78,26 @@ public final class OkHttpClientTest {
     }
   }
 
+  @Test public void http2WindowSizes() {
+    OkHttpClient client = defaultClient();
+    assertEquals(16 * 1024 * 1024, client.http2StreamWindowSize());
+    assertEquals(16 * 1024 * 1024, client.http2ConnectionWindowSize());
+    assertFalse(client.http2WindowAutoTuning());
+    assertFalse(client.http2WriterThread());
+
+    OkHttpClient.Builder builder = new OkHttpClient.Builder();
+    try {
+      builder.http2StreamWindowSize(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      builder.http2ConnectionWindowSize(65535);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test public void clonedInterceptorsListsAreIndependent() throws Exception {
     Interceptor interceptor = new Interceptor() {
       @Override public Response intercept(Chain chain) throws IOException {
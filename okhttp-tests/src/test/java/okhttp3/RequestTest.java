@@ -145,6 +145,25 @@ public final class RequestTest {
     assertEquals(Arrays.asList("no-cache"), request.headers("Cache-Control"));
   }
 
+  @Test public void weight() throws Exception {
+    Request request = new Request.Builder()
+        .url("https://square.com")
+        .build();
+    assertEquals(16, request.weight());
+    assertEquals(256, request.newBuilder().weight(256).build().weight());
+
+    try {
+      new Request.Builder().weight(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new Request.Builder().weight(257);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test public void emptyCacheControlClearsAllCacheControlHeaders() throws Exception {
     Request request = new Request.Builder()
         .header("Cache-Control", "foo")
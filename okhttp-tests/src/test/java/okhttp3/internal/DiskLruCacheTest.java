@@ -20,12 +20,15 @@ import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.Executor;
 import okhttp3.internal.io.FileSystem;
+import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.Okio;
@@ -41,6 +44,7 @@ import static okhttp3.internal.DiskLruCache.JOURNAL_FILE;
 import static okhttp3.internal.DiskLruCache.JOURNAL_FILE_BACKUP;
 import static okhttp3.internal.DiskLruCache.MAGIC;
 import static okhttp3.internal.DiskLruCache.VERSION_1;
+import static okhttp3.internal.DiskLruCache.VERSION_2;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
@@ -74,6 +78,14 @@ public final class DiskLruCacheTest {
     toClose.add(cache);
   }
 
+  private void createNewBinaryJournalCache() throws IOException {
+    cache = new DiskLruCache(fileSystem, cacheDir, appVersion, 2, Integer.MAX_VALUE, executor, true);
+    synchronized (cache) {
+      cache.initialize();
+    }
+    toClose.add(cache);
+  }
+
   @Before public void setUp() throws Exception {
     cacheDir = tempDir.getRoot();
     journalFile = new File(cacheDir, JOURNAL_FILE);
@@ -165,6 +177,16 @@ public final class DiskLruCacheTest {
     assertSnapshotValue(snapshot, 1, "DE");
   }
 
+  @Test public void keys() throws Exception {
+    set("a", "a", "a");
+    set("b", "b", "b");
+    DiskLruCache.Editor editor = cache.edit("c");
+    assertEquals(new LinkedHashSet<>(Arrays.asList("a", "b", "c")), cache.keys());
+    editor.abort();
+    cache.remove("a");
+    assertEquals(Collections.singleton("b"), cache.keys());
+  }
+
   @Test public void readAndWriteEntryAcrossCacheOpenAndClose() throws Exception {
     DiskLruCache.Editor creator = cache.edit("k1");
     setString(creator, 0, "A");
@@ -400,6 +422,148 @@ public final class DiskLruCacheTest {
     assertValue("k1", "C", "D");
   }
 
+  @Test public void binaryJournalRoundTrip() throws Exception {
+    cache.close();
+    createNewBinaryJournalCache();
+    String hexKey = "0123456789abcdef0123456789abcdef";
+    set("k1", "A", "B");
+    set(hexKey, "C", "DE");
+    assertValue("k1", "A", "B");
+    cache.remove("k1");
+    cache.close();
+
+    BufferedSource journal = Okio.buffer(fileSystem.source(journalFile));
+    assertEquals(MAGIC, journal.readUtf8LineStrict());
+    assertEquals(VERSION_2, journal.readUtf8LineStrict());
+    assertEquals(appVersion, journal.readInt());
+    assertEquals(2, journal.readInt());
+    journal.skip(1); // DIRTY
+    assertEquals("k1", DiskLruCache.readKey(journal));
+    journal.skip(6); // CLEAN k1 1 1
+    journal.skip(1); // DIRTY
+    journal.require(1);
+    assertEquals(0x80 | 16, journal.buffer().getByte(0) & 0xff); // Packed into 16 bytes.
+    assertEquals(hexKey, DiskLruCache.readKey(journal));
+    journal.close();
+
+    createNewBinaryJournalCache();
+    assertAbsent("k1");
+    assertValue(hexKey, "C", "DE");
+  }
+
+  @Test public void textJournalIsMigratedToBinary() throws Exception {
+    cache.close();
+    writeFile(getCleanFile("k1", 0), "A");
+    writeFile(getCleanFile("k1", 1), "B");
+    createJournal("CLEAN k1 1 1");
+    createNewBinaryJournalCache();
+    assertValue("k1", "A", "B");
+    cache.close();
+
+    BufferedSource journal = Okio.buffer(fileSystem.source(journalFile));
+    assertEquals(MAGIC, journal.readUtf8LineStrict());
+    assertEquals(VERSION_2, journal.readUtf8LineStrict());
+    journal.close();
+
+    createNewBinaryJournalCache();
+    assertValue("k1", "A", "B");
+  }
+
+  @Test public void openBinaryJournalWithTruncatedRecordDiscardsThatRecord() throws Exception {
+    cache.close();
+    createNewBinaryJournalCache();
+    set("k1", "A", "B");
+    cache.close();
+
+    // Drop the last byte of the final CLEAN record.
+    Buffer journal = new Buffer();
+    BufferedSource source = Okio.buffer(fileSystem.source(journalFile));
+    source.readAll(journal);
+    source.close();
+    BufferedSink sink = Okio.buffer(fileSystem.sink(journalFile));
+    sink.write(journal, journal.size() - 1);
+    sink.close();
+
+    createNewBinaryJournalCache();
+    assertAbsent("k1");
+    set("k1", "C", "D");
+    cache.close();
+    createNewBinaryJournalCache();
+    assertValue("k1", "C", "D");
+  }
+
+  @Test public void snapshotIsWrittenOnCloseAndJournalTailIsReplayed() throws Exception {
+    cache.close();
+    createNewBinaryJournalCache();
+    for (int i = 0; i < 1000; i++) {
+      set("k" + i, "a" + i, "b" + i);
+    }
+    cache.close();
+    File snapshotFile = new File(cacheDir, DiskLruCache.SNAPSHOT_FILE);
+    assertTrue(fileSystem.exists(snapshotFile));
+
+    // Corrupt a record covered by the snapshot. It isn't read when the cache is opened.
+    long journalLength = fileSystem.size(journalFile);
+    Buffer journal = new Buffer();
+    BufferedSource source = Okio.buffer(fileSystem.source(journalFile));
+    source.readAll(journal);
+    source.close();
+    Buffer corrupted = new Buffer();
+    journal.copyTo(corrupted, 0, journalLength / 2);
+    corrupted.writeByte(0x7f);
+    journal.copyTo(corrupted, journalLength / 2 + 1, journalLength - journalLength / 2 - 1);
+    BufferedSink sink = Okio.buffer(fileSystem.sink(journalFile));
+    sink.writeAll(corrupted);
+    sink.close();
+
+    createNewBinaryJournalCache();
+    assertValue("k0", "a0", "b0");
+    set("k1000", "c", "d");
+    cache.remove("k999");
+    cache.close();
+
+    createNewBinaryJournalCache();
+    assertValue("k0", "a0", "b0");
+    assertValue("k1000", "c", "d");
+    assertAbsent("k999");
+    assertEquals(4 * 10 + 6 * 90 + 8 * 900 - 8 + 2, cache.size());
+  }
+
+  @Test public void rebuildingJournalDeletesSnapshot() throws Exception {
+    cache.close();
+    createNewBinaryJournalCache();
+    for (int i = 0; i < 1000; i++) {
+      set("k" + i, "a", "b");
+    }
+    cache.close();
+    File snapshotFile = new File(cacheDir, DiskLruCache.SNAPSHOT_FILE);
+    assertTrue(fileSystem.exists(snapshotFile));
+
+    createNewBinaryJournalCache();
+    executor.jobs.clear();
+    for (int i = 0; i < 2000; i++) {
+      assertValue("k0", "a", "b");
+    }
+    executor.jobs.removeFirst().run();
+    assertFalse(fileSystem.exists(snapshotFile));
+    cache.close();
+
+    createNewBinaryJournalCache();
+    assertValue("k999", "a", "b");
+  }
+
+  @Test public void varLongRoundTrip() throws Exception {
+    Buffer buffer = new Buffer();
+    long[] values = {0L, 1L, 127L, 128L, 300L, Integer.MAX_VALUE, Long.MAX_VALUE, -1L};
+    for (long value : values) {
+      DiskLruCache.writeVarLong(buffer, value);
+    }
+    assertEquals(1 + 1 + 1 + 2 + 2 + 5 + 9 + 10, buffer.size());
+    for (long value : values) {
+      assertEquals(value, DiskLruCache.readVarLong(buffer));
+    }
+  }
+
   @Test public void openWithTooManyFileSizesClearsDirectory() throws Exception {
     cache.close();
     generateSomeGarbageFiles();
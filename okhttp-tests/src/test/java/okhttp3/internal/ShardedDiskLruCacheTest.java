@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import okhttp3.internal.io.InMemoryFileSystem;
+import okio.BufferedSink;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ShardedDiskLruCacheTest {
+  @Rule public final InMemoryFileSystem fileSystem = new InMemoryFileSystem();
+
+  private final File cacheDir = new File("/cache");
+  private ShardedDiskLruCache cache;
+
+  @After public void tearDown() throws Exception {
+    if (cache != null) cache.close();
+  }
+
+  @Test public void singleShardUsesDirectoryItself() throws Exception {
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 1);
+    set("k1", "a");
+    cache.close();
+
+    assertTrue(fileSystem.exists(new File(cacheDir, DiskLruCache.JOURNAL_FILE)));
+    assertTrue(fileSystem.exists(new File(cacheDir, "k1.0")));
+  }
+
+  @Test public void entriesAreSpreadAcrossShards() throws Exception {
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 4);
+    for (int i = 0; i < 32; i++) {
+      set("k" + i, "v" + i);
+    }
+    for (int i = 0; i < 32; i++) {
+      assertEquals("v" + i, get("k" + i));
+    }
+
+    int shardsUsed = 0;
+    for (int i = 0; i < 4; i++) {
+      File shardDir = new File(cacheDir, Integer.toString(i));
+      assertTrue(fileSystem.exists(new File(shardDir, DiskLruCache.JOURNAL_FILE)));
+      for (int k = 0; k < 32; k++) {
+        if (fileSystem.exists(new File(shardDir, "k" + k + ".0"))) {
+          shardsUsed++;
+          break;
+        }
+      }
+    }
+    assertEquals(4, shardsUsed);
+    assertEquals(10 * 2 + 22 * 3, cache.size()); // "v0".."v9" are 2 bytes, the rest 3.
+  }
+
+  @Test public void entriesSurviveReopen() throws Exception {
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 3);
+    set("a", "apple");
+    set("b", "banana");
+    cache.close();
+
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 3);
+    assertEquals("apple", get("a"));
+    assertEquals("banana", get("b"));
+    assertTrue(cache.remove("a"));
+    assertNull(cache.get("a"));
+  }
+
+  @Test public void maxSizeIsDividedBetweenShards() throws Exception {
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, 10, 3);
+    assertEquals(10, cache.getMaxSize());
+    cache.setMaxSize(20);
+    assertEquals(20, cache.getMaxSize());
+
+    try {
+      ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, 2, 3);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void snapshotsIteratesAllShards() throws Exception {
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 4);
+    Set<String> expected = new LinkedHashSet<>();
+    for (int i = 0; i < 16; i++) {
+      set("k" + i, "v");
+      expected.add("k" + i);
+    }
+
+    Set<String> actual = new LinkedHashSet<>();
+    for (Iterator<DiskLruCache.Snapshot> i = cache.snapshots(); i.hasNext(); ) {
+      DiskLruCache.Snapshot snapshot = i.next();
+      actual.add(snapshot.key());
+      snapshot.close();
+      if (snapshot.key().equals("k3")) i.remove();
+    }
+    assertEquals(expected, actual);
+    assertNull(cache.get("k3"));
+    assertEquals(15, cache.size());
+  }
+
+  @Test public void deleteRemovesAllShards() throws Exception {
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 2);
+    set("a", "apple");
+    set("b", "banana");
+    cache.delete();
+    assertTrue(cache.isClosed());
+
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 2);
+    assertNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertFalse(fileSystem.exists(new File(new File(cacheDir, "0"), "a.0")));
+  }
+
+  @Test public void changingShardCountDeletesContents() throws Exception {
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 4);
+    set("a", "apple");
+    set("b", "banana");
+    cache.close();
+
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 2);
+    assertNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(0, cache.size());
+    assertFalse(fileSystem.exists(new File(cacheDir, "3")));
+    set("a", "avocado");
+    cache.close();
+
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 2);
+    assertEquals("avocado", get("a"));
+  }
+
+  @Test public void changingFromSingleShardDeletesContents() throws Exception {
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 1);
+    set("a", "apple");
+    cache.close();
+
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 3);
+    assertNull(cache.get("a"));
+    assertFalse(fileSystem.exists(new File(cacheDir, "a.0")));
+    assertFalse(fileSystem.exists(new File(cacheDir, DiskLruCache.JOURNAL_FILE)));
+    set("b", "banana");
+    cache.close();
+
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 1);
+    assertNull(cache.get("b"));
+    assertFalse(fileSystem.exists(new File(cacheDir, ShardedDiskLruCache.SHARDS_FILE)));
+    set("c", "cherry");
+    cache.close();
+
+    cache = ShardedDiskLruCache.create(fileSystem, cacheDir, 100, 1, Integer.MAX_VALUE, 1);
+    assertEquals("cherry", get("c"));
+  }
+
+  private void set(String key, String value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    BufferedSink sink = Okio.buffer(editor.newSink(0));
+    sink.writeUtf8(value);
+    sink.close();
+    editor.commit();
+  }
+
+  private String get(String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    try {
+      return Okio.buffer(snapshot.getSource(0)).readUtf8();
+    } finally {
+      snapshot.close();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.framed;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okio.Buffer;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class CoalescingFrameWriterTest {
+  private final Buffer socket = new Buffer();
+  private final AtomicInteger flushes = new AtomicInteger();
+  private final CoalescingFrameWriter writer = new CoalescingFrameWriter(new Http2(),
+      Okio.buffer(new ForwardingSink(socket) {
+        @Override public void flush() throws IOException {
+          flushes.incrementAndGet();
+          super.flush();
+        }
+      }), true);
+
+  @Test public void loneWriterFlushesImmediately() throws Exception {
+    writer.windowUpdate(3, 1024);
+    assertEquals(1, flushes.get());
+    assertEquals(13, socket.size());
+
+    writer.ping(false, 1, 2);
+    assertEquals(2, flushes.get());
+    assertEquals(13 + 17, socket.size());
+  }
+
+  @Test public void waitingWriterTakesOverFlush() throws Exception {
+    Thread other = new Thread() {
+      @Override public void run() {
+        try {
+          writer.ping(false, 1, 2);
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+
+    writer.lock();
+    try {
+      other.start();
+      while (writer.waitingWriters() == 0) {
+        Thread.sleep(10);
+      }
+
+      // Another writer is queued so this frame waits for it.
+      writer.windowUpdate(3, 1024);
+      assertEquals(0, flushes.get());
+      assertEquals(0, socket.size());
+    } finally {
+      writer.unlock();
+    }
+
+    other.join();
+    assertEquals(1, flushes.get());
+    assertEquals(13 + 17, socket.size());
+  }
+
+  @Test public void flushIsNotDeferredPastMaxDelay() throws Exception {
+    Thread other = new Thread() {
+      @Override public void run() {
+        try {
+          // Holding the writer across several frames makes this thread a waiting writer too.
+          writer.lock();
+          try {
+            writer.ping(false, 1, 2);
+          } finally {
+            writer.unlock();
+          }
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+
+    writer.lock();
+    try {
+      other.start();
+      while (writer.waitingWriters() == 0) {
+        Thread.sleep(10);
+      }
+
+      writer.windowUpdate(3, 1024);
+      assertEquals(0, flushes.get());
+      Thread.sleep(TimeUnit.NANOSECONDS.toMillis(CoalescingFrameWriter.MAX_FLUSH_DELAY_NANOS) + 5);
+    } finally {
+      writer.unlock();
+    }
+
+    // The flush was written on release even though another writer was queued.
+    other.join();
+    assertEquals(2, flushes.get());
+    assertEquals(13 + 17, socket.size());
+  }
+}
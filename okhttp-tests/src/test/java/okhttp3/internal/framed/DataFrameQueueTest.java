@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.framed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Test;
+
+import static okhttp3.TestUtil.headerEntries;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class DataFrameQueueTest {
+  private final Buffer socket = new Buffer();
+  private final CountDownLatch flushed = new CountDownLatch(1);
+  private final FrameWriter frameWriter = new Http2().newWriter(
+      Okio.buffer(new ForwardingSink(socket) {
+        @Override public void flush() throws IOException {
+          super.flush();
+          flushed.countDown();
+        }
+      }), true);
+  private final DataFrameQueue queue = new DataFrameQueue(null, frameWriter, "localhost");
+
+  @After public void tearDown() {
+    queue.close();
+  }
+
+  @Test public void streamsAreServedInTurn() throws Exception {
+    queue.enqueue(3, 16, false, new Buffer().writeUtf8("a1"));
+    queue.enqueue(3, 16, false, new Buffer().writeUtf8("a2"));
+    queue.enqueue(3, 16, true, new Buffer().writeUtf8("a3"));
+    queue.enqueue(5, 16, true, new Buffer().writeUtf8("b1"));
+    queue.enqueue(7, 16, false, new Buffer().writeUtf8("c1"));
+    queue.enqueue(7, 16, true, new Buffer());
+
+    new Thread(queue).start();
+    assertTrue(flushed.await(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("3:a1", "5:b1!", "7:c1", "3:a2", "7:!", "3:a3!"), readFrames());
+  }
+
+  @Test public void streamsAreServedInProportionToWeight() throws Exception {
+    for (int i = 1; i <= 4; i++) {
+      queue.enqueue(3, 16, false, new Buffer().writeUtf8("a" + i));
+      queue.enqueue(5, 64, false, new Buffer().writeUtf8("b" + i));
+    }
+
+    new Thread(queue).start();
+    assertTrue(flushed.await(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("3:a1", "5:b1", "5:b2", "5:b3", "5:b4", "3:a2", "3:a3", "3:a4"),
+        readFrames());
+  }
+
+  @Test public void discardDropsQueuedFramesOfStream() throws Exception {
+    queue.enqueue(3, 16, false, new Buffer().writeUtf8("a1"));
+    queue.enqueue(5, 16, true, new Buffer().writeUtf8("b1"));
+    queue.enqueue(3, 16, true, new Buffer().writeUtf8("a2"));
+    assertEquals(4L, queue.discard(3));
+    assertEquals(0L, queue.discard(3));
+
+    new Thread(queue).start();
+    assertTrue(flushed.await(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("5:b1!"), readFrames());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test public void controlFramesAreWrittenAheadOfData() throws Exception {
+    queue.enqueue(3, 16, false, new Buffer().writeUtf8("a1"));
+    queue.enqueue(3, 16, true, new Buffer().writeUtf8("a2"));
+    queue.enqueueSynStream(false, false, 5, headerEntries("b", "banana"), 16);
+    queue.reset(7, ErrorCode.CANCEL);
+
+    new Thread(queue).start();
+    assertTrue(flushed.await(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("5:HEADERS", "7:RST_STREAM", "3:a1", "3:a2!"), readFrames());
+  }
+
+  @Test public void resetDropsQueuedFramesOfStream() throws Exception {
+    queue.enqueue(3, 16, false, new Buffer().writeUtf8("a1"));
+    queue.enqueue(5, 16, true, new Buffer().writeUtf8("b1"));
+    assertEquals(2L, queue.reset(3, ErrorCode.CANCEL));
+
+    new Thread(queue).start();
+    assertTrue(flushed.await(5, TimeUnit.SECONDS));
+
+    assertEquals(Arrays.asList("3:RST_STREAM", "5:b1!"), readFrames());
+  }
+
+  /**
+   * Returns the frames written, like "3:abc!" for a DATA frame that finishes stream 3, or
+   * "3:HEADERS" for other frames.
+   */
+  private List<String> readFrames() throws IOException {
+    final List<String> result = new ArrayList<>();
+    FrameReader reader = new Http2().newReader(socket, false);
+    while (!socket.exhausted()) {
+      reader.nextFrame(new BaseTestHandler() {
+        @Override public void data(boolean inFinished, int streamId, BufferedSource source,
+            int length) throws IOException {
+          result.add(streamId + ":" + source.readUtf8(length) + (inFinished ? "!" : ""));
+        }
+
+        @Override public void headers(boolean outFinished, boolean inFinished, int streamId,
+            int associatedStreamId, List<Header> headerBlock, HeadersMode headersMode) {
+          result.add(streamId + ":HEADERS");
+        }
+
+        @Override public void rstStream(int streamId, ErrorCode errorCode) {
+          result.add(streamId + ":RST_STREAM");
+        }
+      });
+    }
+    return result;
+  }
+}
@@ -24,6 +24,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static okhttp3.TestUtil.headerEntries;
+import static okhttp3.TestUtil.repeat;
 import static okio.ByteString.decodeHex;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
@@ -37,7 +38,7 @@ public class HpackTest {
 
   @Before public void reset() {
     hpackReader = newReader(bytesIn);
-    hpackWriter = new Hpack.Writer(bytesOut);
+    hpackWriter = new Hpack.Writer(4096, false, bytesOut);
   }
 
   /**
@@ -162,6 +163,33 @@ public class HpackTest {
     checkEntry(entry, ":path", "www.example.com", 52);
   }
 
+  @Test public void huffmanStringStraddlingSegmentBoundary() throws IOException {
+    // A long value ends 6 bytes before the end of the first segment, so the Huffman string that
+    // follows it starts in that segment and ends in the next one. Another long value fills the
+    // next segment so that reading it doesn't compact the two segments into one.
+    String longValue1 = repeat('a', 8182);
+    bytesIn.writeByte(0x04); // Literal not indexed, indexed name (idx = 4) -> :path
+    bytesIn.writeByte(0x7f); // Literal value (len = 8182)
+    bytesIn.writeByte(0xf7);
+    bytesIn.writeByte(0x3e);
+    bytesIn.writeUtf8(longValue1);
+    bytesIn.writeByte(0x04); // Literal not indexed, indexed name (idx = 4) -> :path
+    bytesIn.writeByte(0x8c); // Literal value Huffman encoded 12 bytes
+    bytesIn.write(decodeHex("f1e3c2e5f23a6ba0ab90f4ff"));
+    String longValue2 = repeat('b', 8000);
+    bytesIn.writeByte(0x04); // Literal not indexed, indexed name (idx = 4) -> :path
+    bytesIn.writeByte(0x7f); // Literal value (len = 8000)
+    bytesIn.writeByte(0xc1);
+    bytesIn.writeByte(0x3d);
+    bytesIn.writeUtf8(longValue2);
+
+    hpackReader.readHeaders();
+
+    assertEquals(
+        headerEntries(":path", longValue1, ":path", "www.example.com", ":path", longValue2),
+        hpackReader.getAndResetHeaderList());
+  }
+
   /**
    * http://tools.ietf.org/html/draft-ietf-httpbis-header-compression-12#appendix-C.2.1
    */
@@ -215,9 +243,6 @@ public class HpackTest {
     bytesIn.writeByte(0x0d); // Literal value (len = 13)
     bytesIn.writeUtf8("custom-header");
 
-    hpackWriter.writeHeaders(headerBlock);
-    assertEquals(bytesIn, bytesOut);
-
     hpackReader.readHeaders();
 
     assertEquals(0, hpackReader.headerCount);
@@ -674,7 +699,171 @@ public class HpackTest {
 
   @Test public void lowercaseHeaderNameBeforeEmit() throws IOException {
     hpackWriter.writeHeaders(Arrays.asList(new Header("FoO", "BaR")));
-    assertBytes(0, 3, 'f', 'o', 'o', 3, 'B', 'a', 'R');
+    assertBytes(0x40, 3, 'f', 'o', 'o', 3, 'B', 'a', 'R');
+  }
+
+  @Test public void writerIndexesNewName() throws IOException {
+    hpackWriter.writeHeaders(headerEntries("custom-key", "custom-header"));
+    assertBytes(0x40, 10, 'c', 'u', 's', 't', 'o', 'm', '-', 'k', 'e', 'y',
+        13, 'c', 'u', 's', 't', 'o', 'm', '-', 'h', 'e', 'a', 'd', 'e', 'r');
+
+    assertEquals(1, hpackWriter.headerCount);
+    assertEquals(55, hpackWriter.dynamicTableByteCount);
+    checkEntry(hpackWriter.dynamicTable[hpackWriter.dynamicTable.length - 1],
+        "custom-key", "custom-header", 55);
+  }
+
+  @Test public void writerIndexesIndexedName() throws IOException {
+    hpackWriter.writeHeaders(headerEntries("user-agent", "okhttp"));
+    assertBytes(0x7a, 6, 'o', 'k', 'h', 't', 't', 'p'); // Indexed name (idx = 58).
+
+    assertEquals(1, hpackWriter.headerCount);
+  }
+
+  @Test public void writerReferencesRepeatedHeaders() throws IOException {
+    List<Header> headerBlock = headerEntries(
+        "user-agent", "okhttp",
+        "cookie", "a=b",
+        "custom-key", "custom-header");
+
+    hpackWriter.writeHeaders(headerBlock);
+    bytesOut.clear();
+
+    hpackWriter.writeHeaders(headerBlock);
+    assertBytes(0x80 | 64, 0x80 | 63, 0x80 | 62); // Oldest entries have the highest index.
+  }
+
+  @Test public void writerReferencesStaticTableEntries() throws IOException {
+    hpackWriter.writeHeaders(headerEntries(
+        ":method", "GET",
+        ":method", "POST",
+        ":scheme", "https",
+        ":path", "/",
+        "accept-encoding", "gzip, deflate"));
+    assertBytes(0x82, 0x83, 0x87, 0x84, 0x90);
+
+    assertEquals(0, hpackWriter.headerCount);
+  }
+
+  @Test public void writerDoesNotIndexPseudoHeadersOtherThanAuthority() throws IOException {
+    hpackWriter.writeHeaders(headerEntries(
+        ":path", "/a",
+        ":authority", "b"));
+    assertBytes(0x04, 2, '/', 'a', 0x41, 1, 'b');
+
+    assertEquals(1, hpackWriter.headerCount);
+    checkEntry(hpackWriter.dynamicTable[hpackWriter.dynamicTable.length - 1],
+        ":authority", "b", 43);
+  }
+
+  @Test public void writerEvictsOldestEntries() throws IOException {
+    hpackWriter.setHeaderTableSizeSetting(110); // Enough for 2 headers.
+    hpackWriter.writeHeaders(headerEntries(
+        "custom-foo", "custom-header",
+        "custom-bar", "custom-header",
+        "custom-baz", "custom-header"));
+
+    assertEquals(2, hpackWriter.headerCount);
+    assertEquals(110, hpackWriter.dynamicTableByteCount);
+    int length = hpackWriter.dynamicTable.length;
+    checkEntry(hpackWriter.dynamicTable[length - 1], "custom-bar", "custom-header", 55);
+    checkEntry(hpackWriter.dynamicTable[length - 2], "custom-baz", "custom-header", 55);
+
+    // The reader evicts the same entries, so both sides agree on the next indexed reference.
+    hpackReader.headerTableSizeSetting(110);
+    bytesIn.writeAll(bytesOut);
+    hpackReader.readHeaders();
+    hpackReader.getAndResetHeaderList();
+
+    hpackWriter.writeHeaders(headerEntries("custom-bar", "custom-header"));
+    bytesIn.writeAll(bytesOut);
+    hpackReader.readHeaders();
+    assertEquals(headerEntries("custom-bar", "custom-header"), hpackReader.getAndResetHeaderList());
+  }
+
+  @Test public void writerDynamicallyGrowsBeyond64Entries() throws IOException {
+    hpackWriter.setHeaderTableSizeSetting(16384);
+    for (int i = 0; i < 256; i++) {
+      hpackWriter.writeHeaders(headerEntries("custom-foo-" + i, "custom-header"));
+    }
+
+    assertEquals(256, hpackWriter.headerCount);
+  }
+
+  @Test public void writerEmitsDynamicTableSizeUpdate() throws IOException {
+    hpackWriter.setHeaderTableSizeSetting(2048);
+    hpackWriter.writeHeaders(headerEntries(":method", "GET"));
+    assertBytes(0x3f, 0xe1, 0x0f, 0x82); // Dynamic table size update (size = 2048).
+
+    // Only the first header block carries the update.
+    hpackWriter.writeHeaders(headerEntries(":method", "GET"));
+    assertBytes(0x82);
+  }
+
+  @Test public void writerEmitsSmallestDynamicTableSizeUpdate() throws IOException {
+    hpackWriter.setHeaderTableSizeSetting(2048);
+    hpackWriter.setHeaderTableSizeSetting(0);
+    hpackWriter.setHeaderTableSizeSetting(4000);
+    hpackWriter.writeHeaders(headerEntries(":method", "GET"));
+    assertBytes(0x20, 0x3f, 0x81, 0x1f, 0x82); // Updates (size = 0), then (size = 4000).
+  }
+
+  @Test public void writerShrinkingTableEvictsEntries() throws IOException {
+    hpackWriter.writeHeaders(headerEntries(
+        "custom-foo", "custom-header",
+        "custom-bar", "custom-header"));
+    assertEquals(2, hpackWriter.headerCount);
+
+    hpackWriter.setHeaderTableSizeSetting(55);
+    assertEquals(1, hpackWriter.headerCount);
+
+    hpackWriter.setHeaderTableSizeSetting(0);
+    assertEquals(0, hpackWriter.headerCount);
+    assertEquals(0, hpackWriter.dynamicTableByteCount);
+  }
+
+  @Test public void writerCapsDynamicTableSize() throws IOException {
+    hpackWriter.setHeaderTableSizeSetting(1 << 20);
+    assertEquals(16384, hpackWriter.maxDynamicTableByteCount);
+  }
+
+  @Test public void writerHuffmanEncodesWhenShorter() throws IOException {
+    hpackWriter = new Hpack.Writer(4096, true, bytesOut);
+    hpackWriter.writeHeaders(headerEntries(":authority", "www.example.com"));
+
+    // http://tools.ietf.org/html/draft-ietf-httpbis-header-compression-12#appendix-C.4.1
+    bytesIn.writeByte(0x41); // == Literal indexed ==
+                             // Indexed name (idx = 1) -> :authority
+    bytesIn.writeByte(0x8c); // Literal value Huffman encoded 12 bytes
+    bytesIn.write(decodeHex("f1e3c2e5f23a6ba0ab90f4ff"));
+    assertEquals(bytesIn, bytesOut);
+
+    hpackReader.readHeaders();
+    assertEquals(headerEntries(":authority", "www.example.com"),
+        hpackReader.getAndResetHeaderList());
+  }
+
+  @Test public void writerDoesNotHuffmanEncodeWhenLonger() throws IOException {
+    hpackWriter = new Hpack.Writer(4096, true, bytesOut);
+    hpackWriter.writeHeaders(headerEntries("aaa", "{}"));
+    assertBytes(0x40, 0x82, 0x18, 0xc7, 2, '{', '}'); // 'aaa' is shorter with Huffman; '{}' isn't.
+  }
+
+  @Test public void writerAndReaderRoundTripRepeatedHeaderBlocks() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      List<Header> headerBlock = headerEntries(
+          ":method", "GET",
+          ":path", "/" + i,
+          ":authority", "square.com",
+          ":scheme", "https",
+          "cookie", "c=" + (i % 7),
+          "x-request-id", Integer.toString(i));
+      hpackWriter.writeHeaders(headerBlock);
+      bytesIn.writeAll(bytesOut);
+      hpackReader.readHeaders();
+      assertEquals(headerBlock, hpackReader.getAndResetHeaderList());
+    }
+    assertEquals(hpackWriter.dynamicTableByteCount, hpackReader.dynamicTableByteCount);
   }
 
   @Test public void mixedCaseHeaderNameIsMalformed() throws IOException {
@@ -20,6 +20,7 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import okio.Buffer;
 import okio.BufferedSink;
@@ -276,6 +277,94 @@ public final class Http2ConnectionTest {
     }
   }
 
+  @Test public void configuredWindowSizes() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+    peer.play();
+
+    FramedConnection connection = connectionBuilder(peer, HTTP_2)
+        .streamWindowSize(200)
+        .connectionWindowSize(100_000)
+        .build();
+    assertEquals(200, connection.okHttpSettings.getInitialWindowSize(-1));
+    assertEquals(100_000, connection.connectionWindowSize);
+  }
+
+  @Test public void autoTuningGrowsWindowsToFitBandwidthDelayProduct() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // Write the mocking script.
+    peer.acceptFrame(); // SYN_STREAM
+    peer.sendFrame().synReply(false, 3, headerEntries("a", "android"));
+    peer.sendFrame().data(false, 3, data(200), 200);
+    peer.acceptFrame(); // PING
+    peer.sendFrame().data(false, 3, data(800), 800);
+    peer.sendFrame().ping(true, 1, 0x62647020);
+    peer.acceptFrame(); // SETTINGS
+    peer.play();
+
+    // Play it back.
+    FramedConnection connection = connectionBuilder(peer, HTTP_2)
+        .streamWindowSize(1000)
+        .connectionWindowSize(DEFAULT_INITIAL_WINDOW_SIZE)
+        .windowAutoTuning(true)
+        .build();
+    connection.newStream(headerEntries("b", "banana"), false, true);
+
+    assertEquals(TYPE_HEADERS, peer.takeFrame().type);
+    MockSpdyPeer.InFrame ping = peer.takeFrame();
+    assertEquals(TYPE_PING, ping.type);
+    assertEquals(1, ping.payload1);
+    assertFalse(ping.ack);
+
+    // 800 bytes arrived in the round trip, which is most of the window. Make room for twice that.
+    MockSpdyPeer.InFrame settings = peer.takeFrame();
+    assertEquals(TYPE_SETTINGS, settings.type);
+    assertFalse(settings.ack);
+    assertEquals(1600, settings.settings.getInitialWindowSize(-1));
+    synchronized (connection) {
+      assertEquals(1600, connection.okHttpSettings.getInitialWindowSize(-1));
+      assertEquals(DEFAULT_INITIAL_WINDOW_SIZE, connection.connectionWindowSize);
+    }
+  }
+
+  @Test public void autoTuningGrowsConnectionWindowWhenItIsSmaller() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // Write the mocking script.
+    peer.acceptFrame(); // SYN_STREAM
+    peer.sendFrame().synReply(false, 3, headerEntries("a", "android"));
+    peer.sendFrame().data(false, 3, data(200), 200);
+    peer.acceptFrame(); // PING
+    for (int i = 0; i < 4; i++) {
+      peer.sendFrame().data(false, 3, data(12_000), 12_000);
+    }
+    peer.sendFrame().ping(true, 1, 0x62647020);
+    peer.acceptFrame(); // WINDOW_UPDATE
+    peer.play();
+
+    // Play it back.
+    FramedConnection connection = connectionBuilder(peer, HTTP_2)
+        .streamWindowSize(1_000_000)
+        .connectionWindowSize(DEFAULT_INITIAL_WINDOW_SIZE)
+        .windowAutoTuning(true)
+        .build();
+    connection.newStream(headerEntries("b", "banana"), false, true);
+
+    assertEquals(TYPE_HEADERS, peer.takeFrame().type);
+    assertEquals(TYPE_PING, peer.takeFrame().type);
+
+    // 48000 bytes arrived in the round trip, which is most of the connection's window. Only that
+    // window limits the throughput, so only it grows.
+    MockSpdyPeer.InFrame windowUpdate = peer.takeFrame();
+    assertEquals(TYPE_WINDOW_UPDATE, windowUpdate.type);
+    assertEquals(0, windowUpdate.streamId);
+    assertEquals(96_000 - DEFAULT_INITIAL_WINDOW_SIZE, windowUpdate.windowSizeIncrement);
+    synchronized (connection) {
+      assertEquals(1_000_000, connection.okHttpSettings.getInitialWindowSize(-1));
+      assertEquals(96_000, connection.connectionWindowSize);
+    }
+  }
+
   private Buffer data(int byteCount) {
     return new Buffer().write(new byte[byteCount]);
   }
@@ -352,6 +441,144 @@ public final class Http2ConnectionTest {
     assertEquals(1, data.data.length);
   }
 
+  @Test public void writerThreadWritesDataFrames() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    byte[] buff = new byte[peer.maxOutboundDataLength() + 1];
+    Arrays.fill(buff, (byte) '*');
+
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM
+    peer.sendFrame().synReply(false, 3, headerEntries("a", "android"));
+    peer.acceptFrame(); // DATA
+    peer.acceptFrame(); // DATA
+    peer.acceptFrame(); // DATA
+    peer.play();
+
+    // play it back
+    FramedConnection connection = connectionBuilder(peer, HTTP_2)
+        .writerThread(true)
+        .build();
+    FramedStream stream = connection.newStream(headerEntries("b", "banana"), true, true);
+    BufferedSink out = Okio.buffer(stream.getSink());
+    out.write(buff);
+    out.flush();
+    out.close();
+
+    assertEquals(TYPE_HEADERS, peer.takeFrame().type);
+    MockSpdyPeer.InFrame data = peer.takeFrame();
+    assertEquals(peer.maxOutboundDataLength(), data.data.length);
+    assertFalse(data.inFinished);
+    data = peer.takeFrame();
+    assertEquals(1, data.data.length);
+    assertFalse(data.inFinished);
+    data = peer.takeFrame();
+    assertEquals(0, data.data.length);
+    assertTrue(data.inFinished);
+  }
+
+  @Test public void writerThreadQueuesHeadersAndResets() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM
+    peer.acceptFrame(); // RST_STREAM
+    peer.play();
+
+    // play it back
+    final FramedConnection connection = connectionBuilder(peer, HTTP_2)
+        .writerThread(true)
+        .build();
+
+    // Hold the frame writer like a slow socket write would.
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread slowWriter = new Thread() {
+      @Override public void run() {
+        connection.frameWriter.lock();
+        try {
+          writing.countDown();
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        } finally {
+          try {
+            connection.frameWriter.unlock();
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+        }
+      }
+    };
+    slowWriter.start();
+    writing.await();
+
+    // Opening and canceling a stream doesn't wait for the frame writer.
+    FramedStream stream = connection.newStream(headerEntries("b", "banana"), false, true);
+    stream.close(CANCEL);
+    release.countDown();
+
+    assertEquals(TYPE_HEADERS, peer.takeFrame().type);
+    MockSpdyPeer.InFrame rstStream = peer.takeFrame();
+    assertEquals(TYPE_RST_STREAM, rstStream.type);
+    assertEquals(3, rstStream.streamId);
+  }
+
+  @Test public void weightedStreamSendsPriority() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM with PRIORITY
+    peer.acceptFrame(); // SYN_STREAM
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, 1, 0);
+    peer.play();
+
+    // play it back
+    FramedConnection connection = connection(peer, HTTP_2);
+    FramedStream stream = connection.newStream(headerEntries("b", "banana"), false, true, 64);
+    assertEquals(64, stream.getWeight());
+    FramedStream defaultStream = connection.newStream(headerEntries("c", "cola"), false, true);
+    assertEquals(FramedStream.DEFAULT_WEIGHT, defaultStream.getWeight());
+    connection.ping().roundTripTime(); // Ensure that no other frames were sent.
+
+    // The weight is sent in the HEADERS frame rather than a separate PRIORITY frame.
+    MockSpdyPeer.InFrame weighted = peer.takeFrame();
+    assertEquals(TYPE_HEADERS, weighted.type);
+    assertEquals(3, weighted.streamId);
+    assertEquals(0, weighted.streamDependency);
+    assertEquals(64, weighted.weight);
+    MockSpdyPeer.InFrame synStream = peer.takeFrame();
+    assertEquals(TYPE_HEADERS, synStream.type);
+    assertEquals(5, synStream.streamId);
+    assertEquals(0, synStream.weight);
+    assertEquals(TYPE_PING, peer.takeFrame().type);
+  }
+
+  @Test public void weightedStreamSendsPriorityFromWriterThread() throws Exception {
+    peer.setVariantAndClient(HTTP_2, false);
+
+    // write the mocking script
+    peer.acceptFrame(); // SYN_STREAM with PRIORITY
+    peer.acceptFrame(); // PING
+    peer.sendFrame().ping(true, 1, 0);
+    peer.play();
+
+    // play it back
+    FramedConnection connection = connectionBuilder(peer, HTTP_2)
+        .writerThread(true)
+        .build();
+    connection.newStream(headerEntries("b", "banana"), false, true, 64);
+    MockSpdyPeer.InFrame weighted = peer.takeFrame();
+    assertEquals(TYPE_HEADERS, weighted.type);
+    assertEquals(3, weighted.streamId);
+    assertEquals(64, weighted.weight);
+
+    // Ensure that no other frames were sent.
+    connection.ping().roundTripTime();
+    assertEquals(TYPE_PING, peer.takeFrame().type);
+  }
+
   @Test public void pushPromiseStream() throws Exception {
     peer.setVariantAndClient(HTTP_2, false);
 
@@ -93,6 +93,11 @@ public class Http2Test {
     frame.writeByte(255); // Heaviest weight, zero-indexed.
     frame.writeAll(headerBytes);
 
+    // Check writer sends the same bytes.
+    Buffer out = new Buffer();
+    new Http2.Writer(out, true).synStream(false, false, expectedStreamId, 0, 256, sentHeaders);
+    assertEquals(frame, out);
+
     fr.nextFrame(new BaseTestHandler() {
       @Override public void priority(int streamId, int streamDependency, int weight,
           boolean exclusive) {
@@ -350,6 +355,30 @@ public class Http2Test {
     }
   }
 
+  @Test public void priorityRoundTrip() throws IOException {
+    writeMedium(frame, 5); // length
+    frame.writeByte(Http2.TYPE_PRIORITY);
+    frame.writeByte(Http2.FLAG_NONE);
+    frame.writeInt(expectedStreamId);
+    frame.writeInt(0x80000000 | 3); // Exclusive dependency on stream 3.
+    frame.writeByte(63); // Weight 64, zero-indexed.
+
+    // Check writer sends the same bytes.
+    Buffer out = new Buffer();
+    new Http2.Writer(out, true).priority(expectedStreamId, 3, 64, true);
+    assertEquals(frame, out);
+
+    fr.nextFrame(new BaseTestHandler() {
+      @Override public void priority(int streamId, int streamDependency, int weight,
+          boolean exclusive) {
+        assertEquals(expectedStreamId, streamId);
+        assertEquals(3, streamDependency);
+        assertEquals(64, weight);
+        assertTrue(exclusive);
+      }
+    });
+  }
+
   @Test public void pingRoundTrip() throws IOException {
     final int expectedPayload1 = 7;
     final int expectedPayload2 = 8;
@@ -656,7 +685,8 @@ public class Http2Test {
 
   private Buffer sendHeaderFrames(boolean outFinished, List<Header> headers) throws IOException {
     Buffer out = new Buffer();
-    new Http2.Writer(out, true).headers(outFinished, expectedStreamId, headers);
+    new Http2.Writer(out, true).headers(
+        outFinished, expectedStreamId, FramedStream.DEFAULT_WEIGHT, headers);
     return out;
   }
 
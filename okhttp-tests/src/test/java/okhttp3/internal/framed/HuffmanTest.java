@@ -15,15 +15,16 @@
  */
 package okhttp3.internal.framed;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
+import okio.Buffer;
+import okio.ByteString;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Original version of this class was lifted from {@code com.twitter.hpack.HuffmanTest}.
@@ -42,14 +43,43 @@ public class HuffmanTest {
     assertRoundTrip(buf);
   }
 
+  @Test public void roundTripEverySymbol() throws IOException {
+    byte[] buf = new byte[256];
+    for (int i = 0; i < buf.length; i++) {
+      buf[i] = (byte) i;
+    }
+    assertRoundTrip(buf);
+    for (int i = 0; i < buf.length; i++) {
+      assertRoundTrip(new byte[] {buf[i]});
+      assertRoundTrip(new byte[] {buf[i], buf[255 - i], buf[i]});
+    }
+  }
+
+  @Test public void decodeIntoArray() throws IOException {
+    byte[] in = ByteString.decodeHex("f1e3c2e5f23a6ba0ab90f4ffffff").toByteArray();
+    byte[] out = new byte[Huffman.maxDecodedLength(12)];
+
+    int byteCount = Huffman.get().decode(in, 12, out);
+    assertEquals("www.example.com", ByteString.of(out, 0, byteCount).utf8());
+  }
+
+  @Test public void decodeEosIsAnError() throws IOException {
+    try {
+      Huffman.get().decode(new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+      fail();
+    } catch (IOException expected) {
+      assertEquals("invalid Huffman code", expected.getMessage());
+    }
+  }
+
   private void assertRoundTrip(byte[] buf) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    DataOutputStream dos = new DataOutputStream(baos);
+    ByteString data = ByteString.of(buf);
+    Buffer buffer = new Buffer();
 
-    Huffman.get().encode(buf, dos);
-    assertEquals(baos.size(), Huffman.get().encodedLength(buf));
+    Huffman.get().encode(data, buffer);
+    assertEquals(buffer.size(), Huffman.get().encodedLength(data));
 
-    byte[] decodedBytes = Huffman.get().decode(baos.toByteArray());
+    byte[] decodedBytes = Huffman.get().decode(buffer.readByteArray());
     assertTrue(Arrays.equals(buf, decodedBytes));
   }
 }
@@ -232,6 +232,8 @@ public final class MockSpdyPeer implements Closeable {
     public boolean ack;
     public int payload1;
     public int payload2;
+    public int streamDependency;
+    public int weight;
 
     public InFrame(int sequence, FrameReader reader) {
       this.sequence = sequence;
@@ -253,7 +255,8 @@ public final class MockSpdyPeer implements Closeable {
 
     @Override public void headers(boolean outFinished, boolean inFinished, int streamId,
         int associatedStreamId, List<Header> headerBlock, HeadersMode headersMode) {
-      if (this.type != -1) throw new IllegalStateException();
+      // A HEADERS frame may carry a priority, which is reported first.
+      if (this.type != -1 && this.type != Http2.TYPE_PRIORITY) throw new IllegalStateException();
       this.type = Spdy3.TYPE_HEADERS;
       this.outFinished = outFinished;
       this.inFinished = inFinished;
@@ -304,7 +307,11 @@ public final class MockSpdyPeer implements Closeable {
 
     @Override public void priority(int streamId, int streamDependency, int weight,
         boolean exclusive) {
-      throw new UnsupportedOperationException();
+      if (this.type != -1) throw new IllegalStateException();
+      this.type = Http2.TYPE_PRIORITY;
+      this.streamId = streamId;
+      this.streamDependency = streamDependency;
+      this.weight = weight;
     }
 
     @Override
@@ -148,7 +148,7 @@ public final class Spdy3ConnectionTest {
         ":version", "HTTP/1.1",
         "content-type", "text/html");
     // write the mocking script
-    peer.sendFrame().synStream(false, false, 2, 0, pushHeaders);
+    peer.sendFrame().synStream(false, false, 2, 0, FramedStream.DEFAULT_WEIGHT, pushHeaders);
     peer.acceptFrame(); // SYN_REPLY
     peer.play();
 
@@ -179,7 +179,7 @@ public final class Spdy3ConnectionTest {
 
   @Test public void replyWithNoData() throws Exception {
     // write the mocking script
-    peer.sendFrame().synStream(false, false, 2, 0, headerEntries("a", "android"));
+    peer.sendFrame().synStream(false, false, 2, 0, FramedStream.DEFAULT_WEIGHT, headerEntries("a", "android"));
     peer.acceptFrame(); // SYN_REPLY
     peer.play();
 
@@ -623,9 +623,9 @@ public final class Spdy3ConnectionTest {
 
   @Test public void remoteDoubleSynStream() throws Exception {
     // write the mocking script
-    peer.sendFrame().synStream(false, false, 2, 0, headerEntries("a", "android"));
+    peer.sendFrame().synStream(false, false, 2, 0, FramedStream.DEFAULT_WEIGHT, headerEntries("a", "android"));
     peer.acceptFrame(); // SYN_REPLY
-    peer.sendFrame().synStream(false, false, 2, 0, headerEntries("b", "banana"));
+    peer.sendFrame().synStream(false, false, 2, 0, FramedStream.DEFAULT_WEIGHT, headerEntries("b", "banana"));
     peer.acceptFrame(); // RST_STREAM
     peer.play();
 
@@ -789,7 +789,7 @@ public final class Spdy3ConnectionTest {
     peer.acceptFrame(); // SYN_STREAM 1
     peer.acceptFrame(); // GOAWAY
     peer.acceptFrame(); // PING
-    peer.sendFrame().synStream(false, false, 2, 0, headerEntries("b", "b")); // Should be ignored!
+    peer.sendFrame().synStream(false, false, 2, 0, FramedStream.DEFAULT_WEIGHT, headerEntries("b", "b")); // Should be ignored!
     peer.sendFrame().ping(true, 1, 0);
     peer.play();
 
@@ -16,6 +16,7 @@
 
 package okhttp3.internal.huc;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
@@ -155,6 +156,16 @@ public final class URLEncodingTest {
       public void trackResponse(CacheStrategy cacheStrategy) {
 
       }
+
+      @Override
+      public Closeable beginFetch(Request request, long timeoutMillis) throws IOException {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Closeable beginRevalidation(Request request) throws IOException {
+        throw new UnsupportedOperationException();
+      }
     });
 
     try {
@@ -20,17 +20,28 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import okhttp3.internal.DiskLruCache;
 import okhttp3.internal.InternalCache;
+import okhttp3.internal.ShardedDiskLruCache;
 import okhttp3.internal.Util;
 import okhttp3.internal.http.CacheRequest;
 import okhttp3.internal.http.CacheStrategy;
@@ -139,6 +150,62 @@ public final class Cache implements Closeable, Flushable {
   private static final int ENTRY_BODY = 1;
   private static final int ENTRY_COUNT = 2;
 
+  /** The first byte of binary entries. Entries in the older text format start with a URL. */
+  private static final byte BINARY_MAGIC = 0;
+  private static final int BINARY_VERSION = 1;
+
+  /** The second byte of a URL's variant index, after {@code BINARY_MAGIC}. */
+  private static final int VARIANT_INDEX_VERSION = 2;
+
+  /**
+   * Lists the keys that may still hold entries stored by older releases. Its absence marks a
+   * directory that an older release wrote.
+   */
+  private static final String LEGACY_KEYS_FILE = "legacy-keys";
+
+  /** How many lookups of legacy keys may run before keys of evicted entries are dropped. */
+  private static final int LEGACY_KEYS_PRUNE_INTERVAL = 1024;
+
+  /**
+   * The longest a request waits for a concurrent fetch of the same response. This bounds the wait
+   * of clients that have no read timeout.
+   */
+  private static final long MAX_FETCH_WAIT_MILLIS = 10_000;
+
+  /** Certificates are stored as entries whose keys are this prefix and their SHA-256 in hex. */
+  private static final String CERTIFICATE_KEY_PREFIX = "cert-";
+  private static final int CERTIFICATE_HASH_SIZE = 32;
+
+  /**
+   * Header names that binary entries encode by index. Each name appears in its usual form, followed
+   * by its lowercase form as used by HTTP/2. Only ever append to this list!
+   */
+  private static final String[] INTERNED_HEADER_NAMES;
+  private static final Map<String, Integer> INTERNED_HEADER_INDEXES = new LinkedHashMap<>();
+  static {
+    String[] names = {
+        "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Age",
+        "Access-Control-Allow-Origin", "Allow", "Authorization", "Cache-Control",
+        "Content-Disposition", "Content-Encoding", "Content-Language", "Content-Length",
+        "Content-Location", "Content-Range", "Content-Security-Policy", "Content-Type", "Cookie",
+        "Date", "ETag", "Expires", "Last-Modified", "Link", "Location", "Pragma", "Server",
+        "Set-Cookie", "Strict-Transport-Security", "Transfer-Encoding", "User-Agent", "Vary", "Via",
+        "Warning", "WWW-Authenticate", "X-Content-Type-Options", "X-Frame-Options",
+        "X-XSS-Protection", "OkHttp-Sent-Millis", "OkHttp-Received-Millis",
+        "OkHttp-Selected-Protocol", "OkHttp-Response-Source",
+    };
+    INTERNED_HEADER_NAMES = new String[names.length * 2];
+    for (int i = 0; i < names.length; i++) {
+      INTERNED_HEADER_NAMES[i * 2] = names[i];
+      INTERNED_HEADER_NAMES[i * 2 + 1] = names[i].toLowerCase(Locale.US);
+    }
+    for (int i = 0; i < INTERNED_HEADER_NAMES.length; i++) {
+      if (!INTERNED_HEADER_INDEXES.containsKey(INTERNED_HEADER_NAMES[i])) {
+        INTERNED_HEADER_INDEXES.put(INTERNED_HEADER_NAMES[i], i);
+      }
+    }
+  }
+
   final InternalCache internalCache = new InternalCache() {
     @Override public Response get(Request request) throws IOException {
       return Cache.this.get(request);
@@ -163,9 +230,44 @@ public final class Cache implements Closeable, Flushable {
     @Override public void trackResponse(CacheStrategy cacheStrategy) {
       Cache.this.trackResponse(cacheStrategy);
     }
+
+    @Override public Closeable beginFetch(Request request, long timeoutMillis)
+        throws IOException {
+      return Cache.this.beginFetch(request, timeoutMillis);
+    }
+
+    @Override public Closeable beginRevalidation(Request request) throws IOException {
+      return Cache.this.beginRevalidation(request);
+    }
   };
 
-  private final DiskLruCache cache;
+  /** A lease for a fetch that isn't coalesced with others. */
+  private static final Closeable UNCOALESCED_FETCH = new Closeable() {
+    @Override public void close() {
+    }
+  };
+
+  private final ShardedDiskLruCache cache;
+  private final CertificateStore certificateStore;
+  private final KeyFunction keyFunction;
+
+  /** Entries stored by older releases, or null unless the default key function is used. */
+  private final LegacyKeys legacyKeys;
+
+  /** Generates the nonces of variant indexes. */
+  private final Random random = new Random();
+
+  /** Parsed entries and small bodies of recently read responses, or null if disabled. */
+  private final MemoryCache memoryCache;
+
+  /**
+   * In-flight network fetches by key and request headers, or null if requests aren't coalesced.
+   * Guards itself.
+   */
+  private final Map<String, Fetch> fetches;
+
+  /** Keys of the stale responses being revalidated in the background. Guards itself. */
+  private final Set<String> revalidations = new HashSet<>();
 
   /* read and write statistics, all guarded by 'this' */
   private int writeSuccessCount;
@@ -173,26 +275,95 @@ public final class Cache implements Closeable, Flushable {
   private int networkCount;
   private int hitCount;
   private int requestCount;
+  private int memoryHitCount;
+  private int coalescedCount;
 
   public Cache(File directory, long maxSize) {
-    this(directory, maxSize, FileSystem.SYSTEM);
+    this(new Builder(directory, maxSize));
   }
 
   Cache(File directory, long maxSize, FileSystem fileSystem) {
-    this.cache = DiskLruCache.create(fileSystem, directory, VERSION, ENTRY_COUNT, maxSize);
+    this(new Builder(directory, maxSize).fileSystem(fileSystem));
+  }
+
+  private Cache(Builder builder) {
+    this.cache = ShardedDiskLruCache.create(builder.fileSystem, builder.directory, VERSION,
+        ENTRY_COUNT, builder.maxSize, builder.shardCount);
+    this.certificateStore = new CertificateStore(cache);
+    this.keyFunction = builder.keyFunction;
+    this.legacyKeys = keyFunction == KeyFunction.DEFAULT
+        ? new LegacyKeys(builder.fileSystem, new File(builder.directory, LEGACY_KEYS_FILE))
+        : null;
+    this.memoryCache = builder.memoryCacheSize > 0
+        ? new MemoryCache(builder.memoryCacheSize)
+        : null;
+    this.fetches = builder.coalesceRequests
+        ? new HashMap<String, Fetch>()
+        : null;
+  }
+
+  private String key(Request request) {
+    String key = keyFunction.key(request);
+    if (key.startsWith(CERTIFICATE_KEY_PREFIX)) {
+      throw new IllegalStateException("reserved cache key: " + key);
+    }
+    return key;
+  }
+
+  /**
+   * Returns the snapshot for {@code key}. Caches that use the default key function fall back to
+   * the key that older releases used, so responses they stored remain readable.
+   */
+  private DiskLruCache.Snapshot snapshot(String key, Request request) throws IOException {
+    DiskLruCache.Snapshot result = cache.get(key);
+    if (result == null && legacyKeys != null) {
+      String legacyKey = legacyKeys.key(request);
+      if (legacyKey != null) {
+        result = cache.get(legacyKey);
+        if (result == null) legacyKeys.remove(legacyKey); // Evicted.
+      }
+    }
+    return result;
   }
 
-  private static String urlToKey(Request request) {
-    return Util.md5Hex(request.url().toString());
+  /** Drops any entry for {@code request} that was stored under the key used by older releases. */
+  private void removeLegacyEntry(Request request) throws IOException {
+    if (legacyKeys == null) return;
+    String legacyKey = legacyKeys.key(request);
+    if (legacyKey != null) {
+      cache.remove(legacyKey);
+      legacyKeys.remove(legacyKey);
+    }
   }
 
   Response get(Request request) {
-    String key = urlToKey(request);
+    return get(request, key(request), true);
+  }
+
+  /**
+   * Returns the response stored under {@code key}. If that's a variant index, this returns the
+   * response stored for the variant that {@code request} selects.
+   */
+  private Response get(Request request, String key, boolean primary) {
+    MemoryEntry memoryEntry = null;
+    int memoryGeneration = 0;
+    if (memoryCache != null) {
+      synchronized (memoryCache) {
+        memoryEntry = memoryCache.get(key);
+        memoryGeneration = memoryCache.generation;
+      }
+      if (memoryEntry != null && memoryEntry.body != null) {
+        return memoryResponse(request, memoryEntry,
+            memoryEntry.entry.response(new MemoryResponseBody(memoryEntry)));
+      }
+    }
+
     DiskLruCache.Snapshot snapshot;
     Entry entry;
     try {
-      snapshot = cache.get(key);
+      snapshot = primary ? snapshot(key, request) : cache.get(key);
       if (snapshot == null) {
+        if (memoryEntry != null) invalidateMemory(key); // Evicted from the filesystem.
         return null;
       }
     } catch (IOException e) {
@@ -200,14 +371,41 @@ public final class Cache implements Closeable, Flushable {
       return null;
     }
 
+    if (memoryEntry != null) {
+      // Only the body needs to be read; the metadata is already parsed.
+      Util.closeQuietly(snapshot.getSource(ENTRY_METADATA));
+      return memoryResponse(request, memoryEntry, memoryEntry.entry.response(snapshot));
+    }
+
     try {
-      entry = new Entry(snapshot.getSource(ENTRY_METADATA));
+      BufferedSource metadata = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
+      if (isVariantIndex(metadata)) {
+        VariantIndex index = readVariantIndex(metadata);
+        snapshot.close();
+        if (!primary) return null; // Variants are never indexes.
+        return get(request, variantKey(key, index, request.headers()), false);
+      }
+      entry = Entry.read(metadata, certificateStore);
+    } catch (MissingCertificateException e) {
+      // The entry outlived a certificate that it shares with other entries. Remove it so that this
+      // request fetches the response again, storing its certificates alongside it.
+      Util.closeQuietly(snapshot);
+      try {
+        cache.remove(key);
+      } catch (IOException ignored) {
+      }
+      return null;
     } catch (IOException e) {
       Util.closeQuietly(snapshot);
       return null;
     }
 
-    Response response = entry.response(snapshot);
+    Response response = memoryCache != null
+        ? admitToMemory(key, entry, snapshot, memoryGeneration)
+        : entry.response(snapshot);
+    if (response == null) {
+      return null;
+    }
 
     if (!entry.matches(request, response)) {
       Util.closeQuietly(response.body());
@@ -217,6 +415,46 @@ public final class Cache implements Closeable, Flushable {
     return response;
   }
 
+  private Response memoryResponse(Request request, MemoryEntry memoryEntry, Response response) {
+    if (!memoryEntry.entry.matches(request, response)) {
+      Util.closeQuietly(response.body());
+      return null;
+    }
+
+    trackMemoryHit();
+    return response;
+  }
+
+  /**
+   * Adds {@code entry} to the memory cache and returns its response. Bodies that are small enough
+   * are read fully so that later hits don't need the filesystem at all.
+   */
+  private Response admitToMemory(String key, Entry entry, DiskLruCache.Snapshot snapshot,
+      int generation) {
+    ByteString body = null;
+    if (snapshot.getLength(ENTRY_BODY) <= memoryCache.maxBodySize) {
+      BufferedSource source = Okio.buffer(snapshot.getSource(ENTRY_BODY));
+      try {
+        body = source.readByteString();
+      } catch (IOException e) {
+        Util.closeQuietly(snapshot);
+        return null;
+      }
+      Util.closeQuietly(snapshot);
+    }
+
+    long weight = snapshot.getLength(ENTRY_METADATA) + (body != null ? body.size() : 0L);
+    MemoryEntry memoryEntry = new MemoryEntry(key, entry, body, weight);
+    synchronized (memoryCache) {
+      // Don't remember this entry if it was replaced while we were reading it.
+      if (memoryCache.generation == generation) memoryCache.put(key, memoryEntry);
+    }
+
+    return body != null
+        ? entry.response(new MemoryResponseBody(memoryEntry))
+        : entry.response(snapshot);
+  }
+
   private CacheRequest put(Response response) throws IOException {
     String requestMethod = response.request().method();
 
@@ -240,14 +478,28 @@ public final class Cache implements Closeable, Flushable {
     }
 
     Entry entry = new Entry(response);
+    String key = key(response.request());
+    invalidateMemory(key);
     DiskLruCache.Editor editor = null;
     try {
-      editor = cache.edit(urlToKey(response.request()));
+      removeLegacyEntry(response.request());
+      List<String> varyFields = new ArrayList<>();
+      for (String field : OkHeaders.varyFields(response.headers())) {
+        varyFields.add(field.toLowerCase(Locale.US));
+      }
+      if (!varyFields.isEmpty()) {
+        // Store this variant under its own key, and index the variants by the fields they vary on.
+        VariantIndex index = variantIndex(key, varyFields);
+        if (index == null) return null; // Another call is writing this URL's index.
+        key = variantKey(key, index, entry.varyHeaders);
+        invalidateMemory(key);
+      }
+      editor = cache.edit(key);
       if (editor == null) {
         return null;
       }
-      entry.writeTo(editor);
-      return new CacheRequestImpl(editor);
+      entry.writeTo(editor, certificateStore);
+      return new CacheRequestImpl(key, editor);
     } catch (IOException e) {
       abortQuietly(editor);
       return null;
@@ -255,21 +507,136 @@ public final class Cache implements Closeable, Flushable {
   }
 
   private void remove(Request request) throws IOException {
-    cache.remove(urlToKey(request));
+    String key = key(request);
+    invalidateMemory(key);
+    cache.remove(key);
+    removeLegacyEntry(request);
   }
 
   private void update(Response cached, Response network) {
     Entry entry = new Entry(network);
-    DiskLruCache.Snapshot snapshot = ((CacheResponseBody) cached.body()).snapshot;
+    invalidateMemory(key(network.request()));
+
+    DiskLruCache.Snapshot snapshot = null;
     DiskLruCache.Editor editor = null;
     try {
+      if (cached.body() instanceof CacheResponseBody) {
+        snapshot = ((CacheResponseBody) cached.body()).snapshot;
+        invalidateMemory(snapshot.key());
+      } else if (cached.body() instanceof MemoryResponseBody) {
+        // The cached response was served from memory.
+        String key = ((MemoryResponseBody) cached.body()).memoryEntry.key;
+        invalidateMemory(key);
+        snapshot = snapshot(key, network.request());
+        if (snapshot == null) return;
+      } else {
+        return; // The cached response didn't come from this cache.
+      }
       editor = snapshot.edit(); // Returns null if snapshot is not current.
       if (editor != null) {
-        entry.writeTo(editor);
+        entry.writeTo(editor, certificateStore);
         editor.commit();
+        invalidateMemory(snapshot.key()); // A concurrent read may have remembered the old entry.
       }
     } catch (IOException e) {
       abortQuietly(editor);
+    } finally {
+      if (!(cached.body() instanceof CacheResponseBody)) Util.closeQuietly(snapshot);
+    }
+  }
+
+  /**
+   * Returns the index of the variants stored for a URL at {@code key}, writing a new one if the
+   * current index doesn't vary on {@code varyFields}. Returns null if another call is writing the
+   * index.
+   */
+  private VariantIndex variantIndex(String key, List<String> varyFields) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot != null) {
+      try {
+        BufferedSource metadata = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
+        if (isVariantIndex(metadata)) {
+          VariantIndex index = readVariantIndex(metadata);
+          if (index.varyFields.equals(varyFields)) return index;
+        }
+      } finally {
+        snapshot.close();
+      }
+    }
+
+    VariantIndex index = new VariantIndex(random.nextLong(), varyFields);
+    return writeVariantIndex(key, index) ? index : null;
+  }
+
+  /**
+   * Writes {@code index} to {@code key}, returning false if another call is writing that key. The
+   * format is {@code BINARY_MAGIC}, {@code VARIANT_INDEX_VERSION}, the index's 8-byte nonce, and
+   * then the number of varying fields followed by their names.
+   */
+  private boolean writeVariantIndex(String key, VariantIndex index) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) return false;
+    try {
+      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+      sink.writeByte(BINARY_MAGIC);
+      sink.writeByte(VARIANT_INDEX_VERSION);
+      sink.writeLong(index.nonce);
+      DiskLruCache.writeVarLong(sink, index.varyFields.size());
+      for (String field : index.varyFields) {
+        Entry.writeString(sink, field);
+      }
+      sink.close();
+      editor.newSink(ENTRY_BODY).close();
+      editor.commit();
+      return true;
+    } catch (IOException e) {
+      editor.abort();
+      throw e;
+    }
+  }
+
+  private static boolean isVariantIndex(BufferedSource source) throws IOException {
+    return source.request(2)
+        && source.buffer().getByte(0) == BINARY_MAGIC
+        && source.buffer().getByte(1) == VARIANT_INDEX_VERSION;
+  }
+
+  private static VariantIndex readVariantIndex(BufferedSource source) throws IOException {
+    source.skip(2); // BINARY_MAGIC and VARIANT_INDEX_VERSION.
+    long nonce = source.readLong();
+    long size = DiskLruCache.readVarLong(source);
+    List<String> varyFields = new ArrayList<>();
+    for (long i = 0; i < size; i++) {
+      varyFields.add(Entry.readString(source));
+    }
+    return new VariantIndex(nonce, varyFields);
+  }
+
+  /**
+   * Returns the key of the variant of {@code key} that {@code requestHeaders} select. This hashes
+   * the values of the fields the response varies on, so requests that must match the same stored
+   * response share a key. The index's nonce is hashed too: replacing or removing the index orphans
+   * its variants, even if an identical index is written later. Orphans are evicted like any other
+   * least recently used entry.
+   */
+  private static String variantKey(String key, VariantIndex index, Headers requestHeaders) {
+    StringBuilder result = new StringBuilder(key).append('\n').append(index.nonce);
+    for (int i = 0, size = index.varyFields.size(); i < size; i++) {
+      String field = index.varyFields.get(i);
+      result.append('\n').append(field.toLowerCase(Locale.US)).append(':');
+      for (String value : requestHeaders.values(field)) {
+        result.append('\n').append(' ').append(value);
+      }
+    }
+    return murmur3Hex(result.toString());
+  }
+
+  /** Drops the memory cache's copy of {@code key}, which is about to change. */
+  private void invalidateMemory(String key) {
+    if (memoryCache == null) return;
+    synchronized (memoryCache) {
+      memoryCache.remove(key);
+      memoryCache.generation++;
     }
   }
 
@@ -303,7 +670,9 @@ public final class Cache implements Closeable, Flushable {
    * directory including files that weren't created by the cache.
    */
   public void delete() throws IOException {
+    evictAllFromMemory();
     cache.delete();
+    if (legacyKeys != null) legacyKeys.reset();
   }
 
   /**
@@ -311,7 +680,18 @@ public final class Cache implements Closeable, Flushable {
    * but the corresponding responses will not be stored.
    */
   public void evictAll() throws IOException {
+    evictAllFromMemory();
     cache.evictAll();
+    if (legacyKeys != null) legacyKeys.clear();
+  }
+
+  private void evictAllFromMemory() {
+    certificateStore.evictAllFromMemory();
+    if (memoryCache == null) return;
+    synchronized (memoryCache) {
+      memoryCache.evictAll();
+      memoryCache.generation++;
+    }
   }
 
   /**
@@ -328,6 +708,8 @@ public final class Cache implements Closeable, Flushable {
       final Iterator<DiskLruCache.Snapshot> delegate = cache.snapshots();
 
       String nextUrl;
+      String nextKey;
+      String removeKey;
       boolean canRemove;
 
       @Override public boolean hasNext() {
@@ -337,8 +719,11 @@ public final class Cache implements Closeable, Flushable {
         while (delegate.hasNext()) {
           DiskLruCache.Snapshot snapshot = delegate.next();
           try {
+            if (snapshot.key().startsWith(CERTIFICATE_KEY_PREFIX)) continue;
             BufferedSource metadata = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
-            nextUrl = metadata.readUtf8LineStrict();
+            if (isVariantIndex(metadata)) continue; // Each variant reports its URL.
+            nextUrl = Entry.readUrl(metadata);
+            nextKey = snapshot.key();
             return true;
           } catch (IOException ignored) {
             // We couldn't read the metadata for this snapshot; possibly because the host filesystem
@@ -355,12 +740,14 @@ public final class Cache implements Closeable, Flushable {
         if (!hasNext()) throw new NoSuchElementException();
         String result = nextUrl;
         nextUrl = null;
+        removeKey = nextKey;
         canRemove = true;
         return result;
       }
 
       @Override public void remove() {
         if (!canRemove) throw new IllegalStateException("remove() before next()");
+        invalidateMemory(removeKey);
         delegate.remove();
       }
     };
@@ -384,9 +771,12 @@ public final class Cache implements Closeable, Flushable {
 
   @Override public void flush() throws IOException {
     cache.flush();
+    if (legacyKeys != null) legacyKeys.write();
   }
 
   @Override public void close() throws IOException {
+    evictAllFromMemory();
+    if (legacyKeys != null && !cache.isClosed()) legacyKeys.write();
     cache.close();
   }
 
@@ -414,6 +804,14 @@ public final class Cache implements Closeable, Flushable {
     hitCount++;
   }
 
+  private synchronized void trackMemoryHit() {
+    memoryHitCount++;
+  }
+
+  private synchronized void trackCoalescedRequest() {
+    coalescedCount++;
+  }
+
   public synchronized int networkCount() {
     return networkCount;
   }
@@ -426,13 +824,229 @@ public final class Cache implements Closeable, Flushable {
     return requestCount;
   }
 
+  /**
+   * Returns the number of cached responses whose metadata was served from the memory cache instead
+   * of being read from the filesystem. This is 0 unless {@link Builder#memoryCacheSize} is set.
+   */
+  public synchronized int memoryHitCount() {
+    return memoryHitCount;
+  }
+
+  /**
+   * Returns the number of requests that missed the cache and waited for a concurrent identical
+   * request to fetch the response, rather than fetching it themselves. This is 0 unless {@link
+   * Builder#coalesceRequests} is set.
+   */
+  public synchronized int coalescedCount() {
+    return coalescedCount;
+  }
+
+  /**
+   * Claims the network fetch of {@code request} after a cache miss. If another call is already
+   * fetching the same key with the same request headers this waits for it to store or abandon its
+   * response, up to {@code timeoutMillis} (0 for no limit) and never longer than {@code
+   * MAX_FETCH_WAIT_MILLIS}, and returns null so the caller consults the cache again.
+   *
+   * <p>Requests that differ in any header aren't coalesced: which headers the response varies on
+   * isn't known until it arrives, and a request that doesn't match it would wait only to fetch
+   * again.
+   */
+  private Closeable beginFetch(Request request, long timeoutMillis) throws IOException {
+    if (fetches == null || !request.method().equals("GET")) return UNCOALESCED_FETCH;
+
+    String key = key(request) + "\n" + request.headers();
+    Fetch fetch;
+    synchronized (fetches) {
+      fetch = fetches.get(key);
+      if (fetch == null) {
+        fetch = new Fetch(key);
+        fetches.put(key, fetch);
+        return fetch;
+      }
+
+      // Don't wait for a fetch whose response this thread may be expected to consume.
+      if (fetch.thread == Thread.currentThread()) return UNCOALESCED_FETCH;
+
+      long waitMillis = timeoutMillis != 0
+          ? Math.min(timeoutMillis, MAX_FETCH_WAIT_MILLIS)
+          : MAX_FETCH_WAIT_MILLIS;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+      try {
+        while (!fetch.done) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) break;
+          TimeUnit.NANOSECONDS.timedWait(fetches, remaining);
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+
+    trackCoalescedRequest();
+    return null;
+  }
+
+  /**
+   * Claims the background revalidation of {@code request}, or returns null if it is already being
+   * revalidated. Serving a stale response many times only needs to refresh it once.
+   */
+  private Closeable beginRevalidation(Request request) {
+    final String key = key(request);
+    synchronized (revalidations) {
+      if (!revalidations.add(key)) return null;
+    }
+    return new Closeable() {
+      private boolean done;
+
+      @Override public void close() {
+        synchronized (revalidations) {
+          if (done) return;
+          done = true;
+          revalidations.remove(key);
+        }
+      }
+    };
+  }
+
+  /**
+   * The keys of entries that older releases stored under {@link KeyFunction#MD5} keys. These are
+   * found when the cache is first used: a directory without {@code LEGACY_KEYS_FILE} was last
+   * written by an older release, so all of its keys are legacy. The file records the keys that
+   * remain. Keys are dropped as their entries are replaced, removed or evicted. Once none remain,
+   * requests don't compute an MD5 at all.
+   */
+  private final class LegacyKeys {
+    private final FileSystem fileSystem;
+    private final File file;
+
+    /** Null until the keys are first needed. */
+    private Set<String> keys;
+
+    /** True if {@link #keys} has changed since it was last written. */
+    private boolean dirty;
+
+    /** Lookups since evicted keys were last dropped. */
+    private int lookupsSincePrune;
+
+    LegacyKeys(FileSystem fileSystem, File file) {
+      this.fileSystem = fileSystem;
+      this.file = file;
+    }
+
+    /** Returns the MD5 key of {@code request} if it may hold an entry, or null. */
+    String key(Request request) throws IOException {
+      synchronized (this) {
+        if (load().isEmpty()) return null;
+      }
+      String result = KeyFunction.MD5.key(request);
+      synchronized (this) {
+        if (++lookupsSincePrune >= LEGACY_KEYS_PRUNE_INTERVAL) {
+          lookupsSincePrune = 0;
+          if (keys.retainAll(cache.keys())) dirty = true;
+        }
+        return keys.contains(result) ? result : null;
+      }
+    }
+
+    synchronized void remove(String key) {
+      if (keys != null && keys.remove(key)) dirty = true;
+    }
+
+    /** Drops all keys because the cache's entries were evicted. */
+    synchronized void clear() {
+      if (keys == null) keys = new LinkedHashSet<>();
+      keys.clear();
+      dirty = true;
+    }
+
+    /** Forgets all keys because the cache's directory was deleted, including the file. */
+    synchronized void reset() {
+      keys = null;
+      dirty = false;
+    }
+
+    private Set<String> load() throws IOException {
+      if (keys != null) return keys;
+
+      cache.initialize(); // Opening the cache may delete the contents of its directory.
+      keys = new LinkedHashSet<>();
+      if (fileSystem.exists(file)) {
+        BufferedSource source = Okio.buffer(fileSystem.source(file));
+        try {
+          for (String key; (key = source.readUtf8Line()) != null; ) {
+            if (!key.isEmpty()) keys.add(key);
+          }
+        } finally {
+          source.close();
+        }
+      } else {
+        for (String key : cache.keys()) {
+          if (!key.startsWith(CERTIFICATE_KEY_PREFIX)) keys.add(key);
+        }
+        dirty = true;
+        write();
+      }
+      return keys;
+    }
+
+    /** Records the remaining keys, replacing the file atomically. */
+    synchronized void write() throws IOException {
+      if (!dirty) return;
+      File tmp = new File(file.getPath() + ".tmp");
+      BufferedSink sink = Okio.buffer(fileSystem.sink(tmp));
+      try {
+        for (String key : keys) {
+          sink.writeUtf8(key).writeByte('\n');
+        }
+      } finally {
+        sink.close();
+      }
+      fileSystem.rename(tmp, file);
+      dirty = false;
+    }
+  }
+
+  /** The fields that a URL's responses vary on, and the nonce that its variant keys include. */
+  private static final class VariantIndex {
+    final long nonce;
+    final List<String> varyFields;
+
+    VariantIndex(long nonce, List<String> varyFields) {
+      this.nonce = nonce;
+      this.varyFields = varyFields;
+    }
+  }
+
+  /** A network fetch that concurrent requests for the same key wait on. */
+  private final class Fetch implements Closeable {
+    private final String key;
+    private final Thread thread = Thread.currentThread();
+    private boolean done;
+
+    Fetch(String key) {
+      this.key = key;
+    }
+
+    @Override public void close() {
+      synchronized (fetches) {
+        if (done) return;
+        done = true;
+        fetches.remove(key);
+        fetches.notifyAll();
+      }
+    }
+  }
+
   private final class CacheRequestImpl implements CacheRequest {
+    private final String key;
     private final DiskLruCache.Editor editor;
     private Sink cacheOut;
     private boolean done;
     private Sink body;
 
-    public CacheRequestImpl(final DiskLruCache.Editor editor) throws IOException {
+    public CacheRequestImpl(final String key, final DiskLruCache.Editor editor)
+        throws IOException {
+      this.key = key;
       this.editor = editor;
       this.cacheOut = editor.newSink(ENTRY_BODY);
       this.body = new ForwardingSink(cacheOut) {
@@ -446,6 +1060,8 @@ public final class Cache implements Closeable, Flushable {
           }
           super.close();
           editor.commit();
+          // A read that raced this write may have remembered the response it replaces.
+          invalidateMemory(key);
         }
       };
     }
@@ -463,6 +1079,7 @@ public final class Cache implements Closeable, Flushable {
         editor.abort();
       } catch (IOException ignored) {
       }
+      invalidateMemory(key);
     }
 
     @Override public Sink body() {
@@ -527,51 +1144,119 @@ public final class Cache implements Closeable, Flushable {
      * contains the length of the local certificate chain. These certificates are also
      * base64-encoded and appear each on their own line. A length of -1 is used to encode a null
      * array. The last line is optional. If present, it contains the TLS version.
+     *
+     * <p>This is the format written by older releases. New entries are written in the binary
+     * format; see {@link #writeTo}.
      */
-    public Entry(Source in) throws IOException {
-      try {
-        BufferedSource source = Okio.buffer(in);
-        url = source.readUtf8LineStrict();
-        requestMethod = source.readUtf8LineStrict();
-        Headers.Builder varyHeadersBuilder = new Headers.Builder();
-        int varyRequestHeaderLineCount = readInt(source);
-        for (int i = 0; i < varyRequestHeaderLineCount; i++) {
-          varyHeadersBuilder.addLenient(source.readUtf8LineStrict());
-        }
-        varyHeaders = varyHeadersBuilder.build();
-
-        StatusLine statusLine = StatusLine.parse(source.readUtf8LineStrict());
-        protocol = statusLine.protocol;
-        code = statusLine.code;
-        message = statusLine.message;
-        Headers.Builder responseHeadersBuilder = new Headers.Builder();
-        int responseHeaderLineCount = readInt(source);
-        for (int i = 0; i < responseHeaderLineCount; i++) {
-          responseHeadersBuilder.addLenient(source.readUtf8LineStrict());
+    private Entry(BufferedSource source) throws IOException {
+      url = source.readUtf8LineStrict();
+      requestMethod = source.readUtf8LineStrict();
+      Headers.Builder varyHeadersBuilder = new Headers.Builder();
+      int varyRequestHeaderLineCount = readInt(source);
+      for (int i = 0; i < varyRequestHeaderLineCount; i++) {
+        varyHeadersBuilder.addLenient(source.readUtf8LineStrict());
+      }
+      varyHeaders = varyHeadersBuilder.build();
+
+      StatusLine statusLine = StatusLine.parse(source.readUtf8LineStrict());
+      protocol = statusLine.protocol;
+      code = statusLine.code;
+      message = statusLine.message;
+      Headers.Builder responseHeadersBuilder = new Headers.Builder();
+      int responseHeaderLineCount = readInt(source);
+      for (int i = 0; i < responseHeaderLineCount; i++) {
+        responseHeadersBuilder.addLenient(source.readUtf8LineStrict());
+      }
+      responseHeaders = responseHeadersBuilder.build();
+
+      if (isHttps()) {
+        String blank = source.readUtf8LineStrict();
+        if (blank.length() > 0) {
+          throw new IOException("expected \"\" but was \"" + blank + "\"");
         }
-        responseHeaders = responseHeadersBuilder.build();
+        String cipherSuiteString = source.readUtf8LineStrict();
+        CipherSuite cipherSuite = CipherSuite.forJavaName(cipherSuiteString);
+        List<Certificate> peerCertificates = readCertificateList(source);
+        List<Certificate> localCertificates = readCertificateList(source);
+        TlsVersion tlsVersion = !source.exhausted()
+            ? TlsVersion.forJavaName(source.readUtf8LineStrict())
+            : null;
+        handshake = Handshake.get(tlsVersion, cipherSuite, peerCertificates, localCertificates);
+      } else {
+        handshake = null;
+      }
+    }
 
-        if (isHttps()) {
-          String blank = source.readUtf8LineStrict();
-          if (blank.length() > 0) {
-            throw new IOException("expected \"\" but was \"" + blank + "\"");
-          }
-          String cipherSuiteString = source.readUtf8LineStrict();
-          CipherSuite cipherSuite = CipherSuite.forJavaName(cipherSuiteString);
-          List<Certificate> peerCertificates = readCertificateList(source);
-          List<Certificate> localCertificates = readCertificateList(source);
-          TlsVersion tlsVersion = !source.exhausted()
-              ? TlsVersion.forJavaName(source.readUtf8LineStrict())
-              : null;
-          handshake = Handshake.get(tlsVersion, cipherSuite, peerCertificates, localCertificates);
-        } else {
-          handshake = null;
+    private Entry(String url, Headers varyHeaders, String requestMethod, Protocol protocol,
+        int code, String message, Headers responseHeaders, Handshake handshake) {
+      this.url = url;
+      this.varyHeaders = varyHeaders;
+      this.requestMethod = requestMethod;
+      this.protocol = protocol;
+      this.code = code;
+      this.message = message;
+      this.responseHeaders = responseHeaders;
+      this.handshake = handshake;
+    }
+
+    /**
+     * Reads an entry in either the binary format or the older text format, and closes {@code in}.
+     * Certificates of binary entries are loaded from {@code certificates}.
+     */
+    public static Entry read(Source in, CertificateStore certificates) throws IOException {
+      try {
+        BufferedSource source = Okio.buffer(in);
+        if (source.request(1) && source.buffer().getByte(0) == BINARY_MAGIC) {
+          return readBinary(source, certificates);
         }
+        return new Entry(source);
       } finally {
         in.close();
       }
     }
 
+    private static Entry readBinary(BufferedSource source, CertificateStore certificates)
+        throws IOException {
+      source.skip(1); // BINARY_MAGIC.
+      int version = source.readByte() & 0xff;
+      if (version != BINARY_VERSION) {
+        throw new IOException("unexpected entry version: " + version);
+      }
+
+      String url = readString(source);
+      String requestMethod = readString(source);
+      Headers varyHeaders = readHeaders(source);
+      // Like the text format's status line, only HTTP/1.0 and HTTP/1.1 are distinguished.
+      Protocol protocol = source.readByte() == 0 ? Protocol.HTTP_1_0 : Protocol.HTTP_1_1;
+      int code = (int) DiskLruCache.readVarLong(source);
+      String message = readString(source);
+      Headers responseHeaders = readHeaders(source);
+
+      Handshake handshake = null;
+      if (url.startsWith("https://")) {
+        CipherSuite cipherSuite = CipherSuite.forJavaName(readString(source));
+        List<Certificate> peerCertificates = readCertificateHashes(source, certificates);
+        List<Certificate> localCertificates = readCertificateHashes(source, certificates);
+        String tlsVersionString = readString(source);
+        TlsVersion tlsVersion = !tlsVersionString.isEmpty()
+            ? TlsVersion.forJavaName(tlsVersionString)
+            : null;
+        handshake = Handshake.get(tlsVersion, cipherSuite, peerCertificates, localCertificates);
+      }
+
+      return new Entry(url, varyHeaders, requestMethod, protocol, code, message, responseHeaders,
+          handshake);
+    }
+
+    /** Returns the URL of the entry in {@code source}, in either format. */
+    static String readUrl(BufferedSource source) throws IOException {
+      if (source.request(1) && source.buffer().getByte(0) == BINARY_MAGIC) {
+        source.skip(2); // BINARY_MAGIC and version.
+        return readString(source);
+      }
+      return source.readUtf8LineStrict();
+    }
+
     public Entry(Response response) {
       this.url = response.request().url().toString();
       this.varyHeaders = OkHeaders.varyHeaders(response);
@@ -583,44 +1268,55 @@ public final class Cache implements Closeable, Flushable {
       this.handshake = response.handshake();
     }
 
-    public void writeTo(DiskLruCache.Editor editor) throws IOException {
-      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
-
-      sink.writeUtf8(url);
-      sink.writeByte('\n');
-      sink.writeUtf8(requestMethod);
-      sink.writeByte('\n');
-      sink.writeDecimalLong(varyHeaders.size());
-      sink.writeByte('\n');
-      for (int i = 0, size = varyHeaders.size(); i < size; i++) {
-        sink.writeUtf8(varyHeaders.name(i));
-        sink.writeUtf8(": ");
-        sink.writeUtf8(varyHeaders.value(i));
-        sink.writeByte('\n');
-      }
-
-      sink.writeUtf8(new StatusLine(protocol, code, message).toString());
-      sink.writeByte('\n');
-      sink.writeDecimalLong(responseHeaders.size());
-      sink.writeByte('\n');
-      for (int i = 0, size = responseHeaders.size(); i < size; i++) {
-        sink.writeUtf8(responseHeaders.name(i));
-        sink.writeUtf8(": ");
-        sink.writeUtf8(responseHeaders.value(i));
-        sink.writeByte('\n');
+    /**
+     * Writes this entry in the binary format. A typical entry looks like this:
+     * <pre>{@code
+     *   00 01                                 magic byte and format version
+     *   "http://google.com/foo"
+     *   "GET"
+     *   1 [Accept-Language] "fr-CA"           vary headers
+     *   1 200 "OK"                            HTTP/1.1, code and message
+     *   3 [Content-Type] "image/png"          response headers
+     *     [Content-Length] "100"
+     *     "X-Server-Id" "a1"
+     * }</pre>
+     *
+     * Strings are prefixed with their varint length, and header lists with their varint size. A
+     * header's name is either an index into a table of well-known names, or a literal string; its
+     * value is always a string.
+     *
+     * <p>HTTPS entries follow with the cipher suite, the peer and local certificate chains, and the
+     * TLS version or an empty string. Each chain is its size followed by the SHA-256 hash of each
+     * certificate. The certificates themselves are written once to {@code certificates}, where
+     * responses from the same server share them.
+     */
+    public void writeTo(DiskLruCache.Editor editor, CertificateStore certificates)
+        throws IOException {
+      // Store certificates first so this entry never refers to a certificate that's absent.
+      List<ByteString> peerCertificateHashes = null;
+      List<ByteString> localCertificateHashes = null;
+      if (isHttps()) {
+        peerCertificateHashes = certificates.put(handshake.peerCertificates());
+        localCertificateHashes = certificates.put(handshake.localCertificates());
       }
 
+      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+      sink.writeByte(BINARY_MAGIC);
+      sink.writeByte(BINARY_VERSION);
+      writeString(sink, url);
+      writeString(sink, requestMethod);
+      writeHeaders(sink, varyHeaders);
+      sink.writeByte(protocol == Protocol.HTTP_1_0 ? 0 : 1);
+      DiskLruCache.writeVarLong(sink, code);
+      writeString(sink, message);
+      writeHeaders(sink, responseHeaders);
+
       if (isHttps()) {
-        sink.writeByte('\n');
-        sink.writeUtf8(handshake.cipherSuite().javaName());
-        sink.writeByte('\n');
-        writeCertList(sink, handshake.peerCertificates());
-        writeCertList(sink, handshake.localCertificates());
+        writeString(sink, handshake.cipherSuite().javaName());
+        writeCertificateHashes(sink, peerCertificateHashes);
+        writeCertificateHashes(sink, localCertificateHashes);
         // The handshake’s TLS version is null on HttpsURLConnection and on older cached responses.
-        if (handshake.tlsVersion() != null) {
-          sink.writeUtf8(handshake.tlsVersion().javaName());
-          sink.writeByte('\n');
-        }
+        writeString(sink, handshake.tlsVersion() != null ? handshake.tlsVersion().javaName() : "");
       }
       sink.close();
     }
@@ -648,22 +1344,68 @@ public final class Cache implements Closeable, Flushable {
       }
     }
 
-    private void writeCertList(BufferedSink sink, List<Certificate> certificates)
+    private static List<Certificate> readCertificateHashes(BufferedSource source,
+        CertificateStore certificates) throws IOException {
+      int size = (int) DiskLruCache.readVarLong(source);
+      List<Certificate> result = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        result.add(certificates.get(source.readByteString(CERTIFICATE_HASH_SIZE)));
+      }
+      return result;
+    }
+
+    private static void writeCertificateHashes(BufferedSink sink, List<ByteString> hashes)
         throws IOException {
-      try {
-        sink.writeDecimalLong(certificates.size());
-        sink.writeByte('\n');
-        for (int i = 0, size = certificates.size(); i < size; i++) {
-          byte[] bytes = certificates.get(i).getEncoded();
-          String line = ByteString.of(bytes).base64();
-          sink.writeUtf8(line);
-          sink.writeByte('\n');
+      DiskLruCache.writeVarLong(sink, hashes.size());
+      for (int i = 0, size = hashes.size(); i < size; i++) {
+        sink.write(hashes.get(i));
+      }
+    }
+
+    private static Headers readHeaders(BufferedSource source) throws IOException {
+      Headers.Builder result = new Headers.Builder();
+      long size = DiskLruCache.readVarLong(source);
+      for (long i = 0; i < size; i++) {
+        long nameTag = DiskLruCache.readVarLong(source);
+        String name = nameTag < INTERNED_HEADER_NAMES.length
+            ? INTERNED_HEADER_NAMES[(int) nameTag]
+            : readUtf8(source, nameTag - INTERNED_HEADER_NAMES.length);
+        result.addLenient(name, readString(source));
+      }
+      return result.build();
+    }
+
+    private static void writeHeaders(BufferedSink sink, Headers headers) throws IOException {
+      DiskLruCache.writeVarLong(sink, headers.size());
+      for (int i = 0, size = headers.size(); i < size; i++) {
+        String name = headers.name(i);
+        Integer index = INTERNED_HEADER_INDEXES.get(name);
+        if (index != null) {
+          DiskLruCache.writeVarLong(sink, index);
+        } else {
+          ByteString nameBytes = ByteString.encodeUtf8(name);
+          DiskLruCache.writeVarLong(sink, INTERNED_HEADER_NAMES.length + nameBytes.size());
+          sink.write(nameBytes);
         }
-      } catch (CertificateEncodingException e) {
-        throw new IOException(e.getMessage());
+        writeString(sink, headers.value(i));
       }
     }
 
+    private static String readString(BufferedSource source) throws IOException {
+      return readUtf8(source, DiskLruCache.readVarLong(source));
+    }
+
+    private static String readUtf8(BufferedSource source, long byteCount) throws IOException {
+      if (byteCount > Integer.MAX_VALUE) throw new IOException("string too long: " + byteCount);
+      return source.readUtf8(byteCount);
+    }
+
+    private static void writeString(BufferedSink sink, String string) throws IOException {
+      ByteString bytes = ByteString.encodeUtf8(string);
+      DiskLruCache.writeVarLong(sink, bytes.size());
+      sink.write(bytes);
+    }
+
     public boolean matches(Request request, Response response) {
       return url.equals(request.url().toString())
           && requestMethod.equals(request.method())
@@ -673,6 +1415,10 @@ public final class Cache implements Closeable, Flushable {
     public Response response(DiskLruCache.Snapshot snapshot) {
       String contentType = responseHeaders.get("Content-Type");
       String contentLength = responseHeaders.get("Content-Length");
+      return response(new CacheResponseBody(snapshot, contentType, contentLength));
+    }
+
+    public Response response(ResponseBody body) {
       Request cacheRequest = new Request.Builder()
           .url(url)
           .method(requestMethod, null)
@@ -684,7 +1430,7 @@ public final class Cache implements Closeable, Flushable {
           .code(code)
           .message(message)
           .headers(responseHeaders)
-          .body(new CacheResponseBody(snapshot, contentType, contentLength))
+          .body(body)
           .handshake(handshake)
           .build();
     }
@@ -740,4 +1486,379 @@ public final class Cache implements Closeable, Flushable {
       return bodySource;
     }
   }
+
+  /**
+   * Computes the key that a request's response is stored under. Keys must match {@code
+   * [a-z0-9_-]{1,120}} and must not begin with {@code cert-}. Requests with equal keys share a
+   * stored response, which the cache still only serves if it matches the request's URL, method and
+   * varying headers.
+   */
+  public abstract static class KeyFunction {
+    /**
+     * A 128-bit MurmurHash3 of the request's URL, as 32 hex digits. This is fast to compute and
+     * doesn't allocate beyond the returned string. Caches that use it also find responses stored by
+     * older releases under {@link #MD5} keys.
+     */
+    public static final KeyFunction DEFAULT = new KeyFunction() {
+      @Override public String key(Request request) {
+        return murmur3Hex(request.url().toString());
+      }
+    };
+
+    /** The MD5 of the request's URL, as 32 hex digits. Older releases always used this key. */
+    public static final KeyFunction MD5 = new KeyFunction() {
+      @Override public String key(Request request) {
+        return Util.md5Hex(request.url().toString());
+      }
+    };
+
+    public abstract String key(Request request);
+  }
+
+  private static final char[] HEX_DIGITS =
+      {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  /**
+   * Returns the 128-bit MurmurHash3 (x64 variant, seed 0) of the UTF-16 code units of {@code s}, as
+   * 32 hex digits. Keys are persisted, so this must never change!
+   */
+  static String murmur3Hex(String s) {
+    long c1 = 0x87c37b91114253d5L;
+    long c2 = 0x4cf5ad432745937fL;
+    long h1 = 0L;
+    long h2 = 0L;
+
+    int length = s.length();
+    int i = 0;
+    for (; i + 8 <= length; i += 8) {
+      long k1 = lane(s, i, 4);
+      long k2 = lane(s, i + 4, 4);
+
+      k1 *= c1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= c2;
+      h1 ^= k1;
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      k2 *= c2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= c1;
+      h2 ^= k2;
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    int remaining = length - i;
+    if (remaining > 4) {
+      long k2 = lane(s, i + 4, remaining - 4);
+      k2 *= c2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= c1;
+      h2 ^= k2;
+    }
+    if (remaining > 0) {
+      long k1 = lane(s, i, Math.min(remaining, 4));
+      k1 *= c1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= c2;
+      h1 ^= k1;
+    }
+
+    h1 ^= length * 2L;
+    h2 ^= length * 2L;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+
+    char[] result = new char[32];
+    for (int j = 0; j < 16; j++) {
+      result[j] = HEX_DIGITS[(int) (h1 >>> (60 - j * 4)) & 0xf];
+      result[j + 16] = HEX_DIGITS[(int) (h2 >>> (60 - j * 4)) & 0xf];
+    }
+    return new String(result);
+  }
+
+  /** Returns {@code count} chars of {@code s} starting at {@code offset}, little-endian. */
+  private static long lane(String s, int offset, int count) {
+    long result = 0L;
+    for (int i = 0; i < count; i++) {
+      result |= (long) s.charAt(offset + i) << (i * 16);
+    }
+    return result;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  /**
+   * Certificates shared by binary entries. Each is stored once as its own cache entry, with its DER
+   * encoding as the metadata and an empty body. Certificates are evicted like any other entry; an
+   * entry whose certificate is gone can't be read and is removed so that its response is fetched
+   * again.
+   *
+   * <p>Recently used certificates are also kept decoded in memory, so that most hits on HTTPS
+   * entries neither read nor parse their certificates.
+   */
+  private static final class CertificateStore {
+    private static final int MAX_DECODED_CERTIFICATES = 64;
+
+    private final ShardedDiskLruCache cache;
+
+    /** Decoded certificates by hash, least recently used first. Guarded by itself. */
+    private final LinkedHashMap<ByteString, Certificate> decoded =
+        new LinkedHashMap<ByteString, Certificate>(0, 0.75f, true) {
+          @Override protected boolean removeEldestEntry(Map.Entry<ByteString, Certificate> eldest) {
+            return size() > MAX_DECODED_CERTIFICATES;
+          }
+        };
+
+    CertificateStore(ShardedDiskLruCache cache) {
+      this.cache = cache;
+    }
+
+    Certificate get(ByteString hash) throws IOException {
+      synchronized (decoded) {
+        Certificate result = decoded.get(hash);
+        if (result != null) return result;
+      }
+
+      DiskLruCache.Snapshot snapshot = cache.get(CERTIFICATE_KEY_PREFIX + hash.hex());
+      if (snapshot == null) throw new MissingCertificateException(hash);
+      BufferedSource source = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
+      Certificate result;
+      try {
+        CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+        result = certificateFactory.generateCertificate(source.inputStream());
+      } catch (CertificateException e) {
+        throw new IOException(e.getMessage());
+      } finally {
+        snapshot.close();
+      }
+
+      synchronized (decoded) {
+        decoded.put(hash, result);
+      }
+      return result;
+    }
+
+    void evictAllFromMemory() {
+      synchronized (decoded) {
+        decoded.clear();
+      }
+    }
+
+    /** Stores each of {@code certificates} that isn't already stored, and returns their hashes. */
+    List<ByteString> put(List<Certificate> certificates) throws IOException {
+      List<ByteString> result = new ArrayList<>(certificates.size());
+      for (int i = 0, size = certificates.size(); i < size; i++) {
+        ByteString encoded;
+        try {
+          encoded = ByteString.of(certificates.get(i).getEncoded());
+        } catch (CertificateEncodingException e) {
+          throw new IOException(e.getMessage());
+        }
+        ByteString hash = Util.sha256(encoded);
+        put(CERTIFICATE_KEY_PREFIX + hash.hex(), encoded);
+        result.add(hash);
+      }
+      return result;
+    }
+
+    private void put(String key, ByteString encoded) throws IOException {
+      DiskLruCache.Snapshot snapshot = cache.get(key);
+      if (snapshot != null) {
+        snapshot.close(); // Already stored. Reading it made it recently used.
+        return;
+      }
+
+      DiskLruCache.Editor editor = cache.edit(key);
+      if (editor == null) return; // Another call is storing this certificate.
+      try {
+        BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+        sink.write(encoded);
+        sink.close();
+        editor.newSink(ENTRY_BODY).close();
+        editor.commit();
+      } catch (IOException e) {
+        editor.abort();
+        throw e;
+      }
+    }
+  }
+
+  /** Thrown when an entry refers to a certificate that has been evicted. */
+  private static final class MissingCertificateException extends IOException {
+    MissingCertificateException(ByteString hash) {
+      super("missing certificate " + hash.hex());
+    }
+  }
+
+  private static final class MemoryResponseBody extends ResponseBody {
+    private final MemoryEntry memoryEntry;
+    private final BufferedSource bodySource;
+
+    public MemoryResponseBody(MemoryEntry memoryEntry) {
+      this.memoryEntry = memoryEntry;
+      this.bodySource = new Buffer().write(memoryEntry.body);
+    }
+
+    @Override public MediaType contentType() {
+      String contentType = memoryEntry.entry.responseHeaders.get("Content-Type");
+      return contentType != null ? MediaType.parse(contentType) : null;
+    }
+
+    @Override public long contentLength() {
+      return memoryEntry.body.size();
+    }
+
+    @Override public BufferedSource source() {
+      return bodySource;
+    }
+  }
+
+  /** A parsed entry, plus its body if it's small enough to keep in memory. */
+  private static final class MemoryEntry {
+    final String key;
+    final Entry entry;
+    final ByteString body;
+    final long size;
+
+    MemoryEntry(String key, Entry entry, ByteString body, long size) {
+      this.key = key;
+      this.entry = entry;
+      this.body = body;
+      this.size = size;
+    }
+  }
+
+  /**
+   * A bounded, least recently used set of memory entries, weighted by their size on disk. All
+   * access must be synchronized on this.
+   */
+  private static final class MemoryCache {
+    private final LinkedHashMap<String, MemoryEntry> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private final long maxSize;
+
+    /** Bodies larger than this are always read from the filesystem. */
+    final long maxBodySize;
+    private long size;
+
+    /** Incremented each time an entry is invalidated. Readers use this to detect races. */
+    int generation;
+
+    MemoryCache(long maxSize) {
+      this.maxSize = maxSize;
+      this.maxBodySize = maxSize / 16;
+    }
+
+    MemoryEntry get(String key) {
+      return entries.get(key);
+    }
+
+    void put(String key, MemoryEntry memoryEntry) {
+      if (memoryEntry.size > maxSize) return;
+      MemoryEntry previous = entries.put(key, memoryEntry);
+      if (previous != null) size -= previous.size;
+      size += memoryEntry.size;
+
+      for (Iterator<MemoryEntry> i = entries.values().iterator(); size > maxSize; ) {
+        size -= i.next().size;
+        i.remove();
+      }
+    }
+
+    void remove(String key) {
+      MemoryEntry removed = entries.remove(key);
+      if (removed != null) size -= removed.size;
+    }
+
+    void evictAll() {
+      entries.clear();
+      size = 0L;
+    }
+  }
+
+  public static final class Builder {
+    private final File directory;
+    private final long maxSize;
+    private int shardCount = 1;
+    private long memoryCacheSize;
+    private KeyFunction keyFunction = KeyFunction.DEFAULT;
+    private boolean coalesceRequests;
+    private FileSystem fileSystem = FileSystem.SYSTEM;
+
+    public Builder(File directory, long maxSize) {
+      if (directory == null) throw new NullPointerException("directory == null");
+      this.directory = directory;
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * Spreads responses across {@code shardCount} independent stores, each with its own journal,
+     * lock and a fair share of the maximum size. Use this for caches that serve many concurrent
+     * calls. Opening an existing cache with a different shard count deletes its contents. The
+     * default is a single store, which keeps the directory layout of older releases.
+     */
+    public Builder shardCount(int shardCount) {
+      if (shardCount <= 0) throw new IllegalArgumentException("shardCount <= 0: " + shardCount);
+      this.shardCount = shardCount;
+      return this;
+    }
+
+    /**
+     * Keeps the parsed metadata of recently read responses in memory, up to {@code maxSize} bytes
+     * as measured on disk. Bodies up to a sixteenth of that size are kept too, so hot responses are
+     * served without reading the filesystem. The memory cache is disabled by default.
+     */
+    public Builder memoryCacheSize(long maxSize) {
+      if (maxSize < 0) throw new IllegalArgumentException("maxSize < 0: " + maxSize);
+      this.memoryCacheSize = maxSize;
+      return this;
+    }
+
+    /**
+     * Sets the function that names the stored response for each request. Use this to store
+     * variants of a URL, such as per-user responses, under different keys. Changing the key
+     * function of an existing cache makes its responses unreachable until they are evicted.
+     */
+    public Builder keyFunction(KeyFunction keyFunction) {
+      if (keyFunction == null) throw new NullPointerException("keyFunction == null");
+      this.keyFunction = keyFunction;
+      return this;
+    }
+
+    /**
+     * Coalesces concurrent {@code GET} requests for the same uncached key. The first request goes
+     * to the network and the others wait until it has stored its response, which they then read
+     * from the cache. Only requests with identical headers are coalesced, because the response may
+     * vary on any of them. Requests whose response turns out to be uncacheable go to the network
+     * once the first completes. A request waits no longer than its client's read timeout, and
+     * never more than 10 seconds. Coalescing is disabled by default.
+     */
+    public Builder coalesceRequests(boolean coalesceRequests) {
+      this.coalesceRequests = coalesceRequests;
+      return this;
+    }
+
+    Builder fileSystem(FileSystem fileSystem) {
+      this.fileSystem = fileSystem;
+      return this;
+    }
+
+    public Cache build() {
+      return new Cache(this);
+    }
+  }
 }
@@ -38,12 +38,15 @@ public final class CacheControl {
   private final int minFreshSeconds;
   private final boolean onlyIfCached;
   private final boolean noTransform;
+  private final int staleWhileRevalidateSeconds;
+  private final int staleIfErrorSeconds;
 
   String headerValue; // Lazily computed, null if absent.
 
   private CacheControl(boolean noCache, boolean noStore, int maxAgeSeconds, int sMaxAgeSeconds,
       boolean isPrivate, boolean isPublic, boolean mustRevalidate, int maxStaleSeconds,
-      int minFreshSeconds, boolean onlyIfCached, boolean noTransform, String headerValue) {
+      int minFreshSeconds, boolean onlyIfCached, boolean noTransform,
+      int staleWhileRevalidateSeconds, int staleIfErrorSeconds, String headerValue) {
     this.noCache = noCache;
     this.noStore = noStore;
     this.maxAgeSeconds = maxAgeSeconds;
@@ -55,6 +58,8 @@ public final class CacheControl {
     this.minFreshSeconds = minFreshSeconds;
     this.onlyIfCached = onlyIfCached;
     this.noTransform = noTransform;
+    this.staleWhileRevalidateSeconds = staleWhileRevalidateSeconds;
+    this.staleIfErrorSeconds = staleIfErrorSeconds;
     this.headerValue = headerValue;
   }
 
@@ -70,6 +75,8 @@ public final class CacheControl {
     this.minFreshSeconds = builder.minFreshSeconds;
     this.onlyIfCached = builder.onlyIfCached;
     this.noTransform = builder.noTransform;
+    this.staleWhileRevalidateSeconds = -1;
+    this.staleIfErrorSeconds = builder.staleIfErrorSeconds;
   }
 
   /**
@@ -137,6 +144,23 @@ public final class CacheControl {
     return noTransform;
   }
 
+  /**
+   * The duration past a response's freshness lifetime during which it may be served while it is
+   * revalidated in the background. See <a href="https://tools.ietf.org/html/rfc5861">RFC 5861</a>.
+   */
+  public int staleWhileRevalidateSeconds() {
+    return staleWhileRevalidateSeconds;
+  }
+
+  /**
+   * The duration past a response's freshness lifetime during which it may be served if the network
+   * fails or the server returns an error. See <a href="https://tools.ietf.org/html/rfc5861">RFC
+   * 5861</a>.
+   */
+  public int staleIfErrorSeconds() {
+    return staleIfErrorSeconds;
+  }
+
   /**
    * Returns the cache directives of {@code headers}. This honors both Cache-Control and Pragma
    * headers if they are present.
@@ -153,6 +177,8 @@ public final class CacheControl {
     int minFreshSeconds = -1;
     boolean onlyIfCached = false;
     boolean noTransform = false;
+    int staleWhileRevalidateSeconds = -1;
+    int staleIfErrorSeconds = -1;
 
     boolean canUseHeaderValue = true;
     String headerValue = null;
@@ -227,6 +253,10 @@ public final class CacheControl {
           onlyIfCached = true;
         } else if ("no-transform".equalsIgnoreCase(directive)) {
           noTransform = true;
+        } else if ("stale-while-revalidate".equalsIgnoreCase(directive)) {
+          staleWhileRevalidateSeconds = HeaderParser.parseSeconds(parameter, -1);
+        } else if ("stale-if-error".equalsIgnoreCase(directive)) {
+          staleIfErrorSeconds = HeaderParser.parseSeconds(parameter, -1);
         }
       }
     }
@@ -235,7 +265,8 @@ public final class CacheControl {
       headerValue = null;
     }
     return new CacheControl(noCache, noStore, maxAgeSeconds, sMaxAgeSeconds, isPrivate, isPublic,
-        mustRevalidate, maxStaleSeconds, minFreshSeconds, onlyIfCached, noTransform, headerValue);
+        mustRevalidate, maxStaleSeconds, minFreshSeconds, onlyIfCached, noTransform,
+        staleWhileRevalidateSeconds, staleIfErrorSeconds, headerValue);
   }
 
   @Override public String toString() {
@@ -256,6 +287,12 @@ public final class CacheControl {
     if (minFreshSeconds != -1) result.append("min-fresh=").append(minFreshSeconds).append(", ");
     if (onlyIfCached) result.append("only-if-cached, ");
     if (noTransform) result.append("no-transform, ");
+    if (staleWhileRevalidateSeconds != -1) {
+      result.append("stale-while-revalidate=").append(staleWhileRevalidateSeconds).append(", ");
+    }
+    if (staleIfErrorSeconds != -1) {
+      result.append("stale-if-error=").append(staleIfErrorSeconds).append(", ");
+    }
     if (result.length() == 0) return "";
     result.delete(result.length() - 2, result.length());
     return result.toString();
@@ -270,6 +307,7 @@ public final class CacheControl {
     int minFreshSeconds = -1;
     boolean onlyIfCached;
     boolean noTransform;
+    int staleIfErrorSeconds = -1;
 
     /** Don't accept an unvalidated cached response. */
     public Builder noCache() {
@@ -341,6 +379,23 @@ public final class CacheControl {
       return this;
     }
 
+    /**
+     * Accept a cached response that has exceeded its freshness lifetime by up to {@code
+     * staleIfError} if the network fails or the server returns an error. This overrides the
+     * response's own {@code stale-if-error} directive.
+     *
+     * @param staleIfError a non-negative integer. This is stored and transmitted with {@link
+     * TimeUnit#SECONDS} precision; finer precision will be lost.
+     */
+    public Builder staleIfError(int staleIfError, TimeUnit timeUnit) {
+      if (staleIfError < 0) throw new IllegalArgumentException("staleIfError < 0: " + staleIfError);
+      long staleIfErrorSecondsLong = timeUnit.toSeconds(staleIfError);
+      this.staleIfErrorSeconds = staleIfErrorSecondsLong > Integer.MAX_VALUE
+          ? Integer.MAX_VALUE
+          : (int) staleIfErrorSecondsLong;
+      return this;
+    }
+
     /** Don't accept a transformed response. */
     public Builder noTransform() {
       this.noTransform = true;
@@ -19,9 +19,13 @@ package okhttp3;
 import java.lang.ref.Reference;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -49,9 +53,10 @@ public final class ConnectionPool {
       Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
       new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp ConnectionPool", true));
 
-  /** The maximum number of idle connections for each address. */
+  /** The maximum number of idle connections in the pool, across all addresses. */
   private final int maxIdleConnections;
   private final long keepAliveDurationNs;
+  private final Listener listener;
   private final Runnable cleanupRunnable = new Runnable() {
     @Override public void run() {
       while (true) {
@@ -71,7 +76,33 @@ public final class ConnectionPool {
     }
   };
 
-  private final Deque<RealConnection> connections = new ArrayDeque<>();
+  /**
+   * Connections for each address. Each deque is ordered by use, with the connection that most
+   * recently became idle first. Deques are removed when they become empty.
+   */
+  private final Map<Address, Deque<RealConnection>> connections = new HashMap<>();
+  private int connectionCount;
+
+  /**
+   * Idle connections keyed by {@link RealConnection#idleAtNanos}, so the first entry is the next
+   * connection due to be evicted. A connection's idle time must not change while it is in here.
+   */
+  private final TreeMap<Long, Deque<RealConnection>> idleConnections = new TreeMap<>();
+  private int idleCount;
+
+
+  /** Addresses for which the cleanup thread maintains a minimum number of idle connections. */
+  private final Map<Address, IdleTarget> idleTargets = new HashMap<>();
+  private int prewarmingCount;
+
+  /** Limits on spreading streams over several multiplexed connections to the same address. */
+  private int maxMultiplexedConnections = 1;
+  private int streamsPerConnection = Integer.MAX_VALUE;
+  private long bytesInFlightPerConnection = Long.MAX_VALUE;
+
+  /** The number of connections evicted for each {@link EvictionReason}, indexed by ordinal. */
+  private final int[] evictionCounts = new int[EvictionReason.values().length];
+
   final RouteDatabase routeDatabase = new RouteDatabase();
   boolean cleanupRunning;
 
@@ -85,8 +116,15 @@ public final class ConnectionPool {
   }
 
   public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit) {
+    this(maxIdleConnections, keepAliveDuration, timeUnit, Listener.NONE);
+  }
+
+  public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+      Listener listener) {
+    if (listener == null) throw new NullPointerException("listener == null");
     this.maxIdleConnections = maxIdleConnections;
     this.keepAliveDurationNs = timeUnit.toNanos(keepAliveDuration);
+    this.listener = listener;
 
     // Put a floor on the keep alive duration, otherwise cleanup will spin loop.
     if (keepAliveDuration <= 0) {
@@ -97,8 +135,10 @@ public final class ConnectionPool {
   /** Returns the number of idle connections in the pool. */
   public synchronized int idleConnectionCount() {
     int total = 0;
-    for (RealConnection connection : connections) {
-      if (connection.allocations.isEmpty()) total++;
+    for (Deque<RealConnection> addressConnections : connections.values()) {
+      for (RealConnection connection : addressConnections) {
+        if (connection.allocations.isEmpty()) total++;
+      }
     }
     return total;
   }
@@ -110,21 +150,122 @@ public final class ConnectionPool {
    * in use.
    */
   public synchronized int connectionCount() {
-    return connections.size();
+    return connectionCount;
+  }
+
+  /** Returns the number of connections this pool has evicted for {@code reason}. */
+  public synchronized int evictionCount(EvictionReason reason) {
+    return evictionCounts[reason.ordinal()];
+  }
+
+  /**
+   * Returns a snapshot of each connection in the pool, grouped by address. Use this to see how
+   * many connections each address holds, how old they are, and how heavily they are reused.
+   */
+  public synchronized List<ConnectionStats> connectionStats() {
+    long now = System.nanoTime();
+    List<ConnectionStats> result = new ArrayList<>(connectionCount);
+    for (Deque<RealConnection> addressConnections : connections.values()) {
+      for (RealConnection connection : addressConnections) {
+        result.add(new ConnectionStats(connection, now));
+      }
+    }
+    return Collections.unmodifiableList(result);
   }
 
-  /** Returns a recycled connection to {@code address}, or null if no such connection exists. */
+  /**
+   * Spread the streams to each address over as many as {@code maxConnectionsPerAddress} HTTP/2 and
+   * SPDY connections. One connection's congestion window and head-of-line blocking otherwise limit
+   * the throughput to an address.
+   *
+   * <p>A multiplexed connection is busy when it carries at least {@code streamsPerConnection}
+   * streams, or when at least {@code bytesInFlightPerConnection} bytes written on it are still
+   * waiting for the peer's acknowledgement. New streams go to the least busy connection, and once
+   * every connection is busy a new one is opened. When an address has reached its limit, new
+   * streams share the existing connections even though they're busy.
+   *
+   * <p>Only bytes that this side writes, such as request bodies, count as bytes in flight. A
+   * receiver can't tell how much response data the peer has sent but it hasn't yet received, so
+   * connections busy with downloads are judged by their stream count alone.
+   *
+   * <p>The limit is not strict. A connection that is still connecting counts toward it, so a busy
+   * connection keeps taking streams while another is being opened. But a stream can't share a
+   * connection that hasn't connected yet: if no connected multiplexed connection to the address
+   * can take a stream, it opens its own. Concurrent calls to an address with no usable connection
+   * may therefore open more connections than the limit.
+   *
+   * <p>By default, each address uses a single multiplexed connection until the peer's limit on
+   * concurrent streams is reached.
+   */
+  public synchronized void setMultiplexedConnectionLimits(int maxConnectionsPerAddress,
+      int streamsPerConnection, long bytesInFlightPerConnection) {
+    if (maxConnectionsPerAddress <= 0) {
+      throw new IllegalArgumentException("maxConnectionsPerAddress <= 0");
+    }
+    if (streamsPerConnection <= 0) throw new IllegalArgumentException("streamsPerConnection <= 0");
+    if (bytesInFlightPerConnection <= 0) {
+      throw new IllegalArgumentException("bytesInFlightPerConnection <= 0");
+    }
+    this.maxMultiplexedConnections = maxConnectionsPerAddress;
+    this.streamsPerConnection = streamsPerConnection;
+    this.bytesInFlightPerConnection = bytesInFlightPerConnection;
+  }
+
+  /**
+   * Returns a recycled connection to {@code address}, or null if no such connection exists. This
+   * also returns null if every multiplexed connection is busy and another may be opened, and if
+   * the only multiplexed connections are still connecting or are at their peer's stream limit,
+   * even if the address is at its connection limit.
+   */
   RealConnection get(Address address, StreamAllocation streamAllocation) {
     assert (Thread.holdsLock(this));
-    for (RealConnection connection : connections) {
-      if (connection.allocations.size() < connection.allocationLimit
-          && address.equals(connection.route().address)
-          && !connection.noNewStreams) {
-        streamAllocation.acquire(connection);
-        return connection;
+    Deque<RealConnection> addressConnections = connections.get(address);
+    if (addressConnections == null) return null;
+
+    RealConnection leastBusy = null;
+    int multiplexedCount = 0;
+    for (RealConnection connection : addressConnections) {
+      if (connection.noNewStreams) continue;
+
+      // Connections that are still connecting may become multiplexed.
+      if (connection.allocationLimit != 1) multiplexedCount++;
+
+      if (connection.allocations.size() >= connection.allocationLimit) continue;
+      if (maxMultiplexedConnections == 1 || connection.allocationLimit == 1) {
+        return reuse(address, connection, streamAllocation);
       }
+      if (leastBusy == null || lessBusy(connection, leastBusy)) leastBusy = connection;
     }
-    return null;
+
+    if (leastBusy == null) return null;
+    if (busy(leastBusy) && multiplexedCount < maxMultiplexedConnections) {
+      return null; // Open another connection.
+    }
+    return reuse(address, leastBusy, streamAllocation);
+  }
+
+  private RealConnection reuse(
+      Address address, RealConnection connection, StreamAllocation streamAllocation) {
+    if (connection.allocations.isEmpty()) {
+      removeIdle(connection);
+      // Awake the cleanup thread: we may need to replace this connection.
+      if (idleTargets.containsKey(address)) notifyAll();
+    }
+    streamAllocation.acquire(connection);
+    return connection;
+  }
+
+  private boolean busy(RealConnection connection) {
+    return connection.allocations.size() >= streamsPerConnection
+        || connection.unacknowledgedBytesWritten() >= bytesInFlightPerConnection;
+  }
+
+  /** Returns true if {@code a} carries fewer streams than {@code b}, or fewer bytes in flight. */
+  private boolean lessBusy(RealConnection a, RealConnection b) {
+    int aStreams = a.allocations.size();
+    int bStreams = b.allocations.size();
+    if (aStreams != bStreams) return aStreams < bStreams;
+    return a.unacknowledgedBytesWritten() < b.unacknowledgedBytesWritten();
   }
 
   void put(RealConnection connection) {
@@ -133,7 +274,45 @@ public final class ConnectionPool {
       cleanupRunning = true;
       executor.execute(cleanupRunnable);
     }
-    connections.add(connection);
+    Address address = connection.route().address();
+    Deque<RealConnection> addressConnections = connections.get(address);
+    if (addressConnections == null) {
+      addressConnections = new ArrayDeque<>();
+      connections.put(address, addressConnections);
+    }
+    addressConnections.addFirst(connection);
+    connectionCount++;
+    if (connection.allocations.isEmpty()) addIdle(connection);
+  }
+
+  /** Removes {@code connection} from the pool. Returns false if it wasn't in the pool. */
+  private boolean remove(RealConnection connection) {
+    Address address = connection.route().address();
+    Deque<RealConnection> addressConnections = connections.get(address);
+    if (addressConnections == null || !addressConnections.remove(connection)) return false;
+    if (addressConnections.isEmpty()) connections.remove(address);
+    connectionCount--;
+    removeIdle(connection);
+    return true;
+  }
+
+  private void addIdle(RealConnection connection) {
+    Long key = connection.idleAtNanos;
+    Deque<RealConnection> sameIdleTime = idleConnections.get(key);
+    if (sameIdleTime == null) {
+      sameIdleTime = new ArrayDeque<>(1);
+      idleConnections.put(key, sameIdleTime);
+    }
+    sameIdleTime.add(connection);
+    idleCount++;
+  }
+
+  private void removeIdle(RealConnection connection) {
+    Long key = connection.idleAtNanos;
+    Deque<RealConnection> sameIdleTime = idleConnections.get(key);
+    if (sameIdleTime == null || !sameIdleTime.remove(connection)) return;
+    if (sameIdleTime.isEmpty()) idleConnections.remove(key);
+    idleCount--;
   }
 
   /**
@@ -143,9 +322,18 @@ public final class ConnectionPool {
   boolean connectionBecameIdle(RealConnection connection) {
     assert (Thread.holdsLock(this));
     if (connection.noNewStreams || maxIdleConnections == 0) {
-      connections.remove(connection);
+      remove(connection);
+      evicted(connection, connection.noNewStreams
+          ? EvictionReason.NO_NEW_STREAMS
+          : EvictionReason.IDLE_LIMIT);
       return true;
     } else {
+      // Move the connection to the front so the next call to its address reuses the warmest socket.
+      Deque<RealConnection> addressConnections = connections.get(connection.route().address());
+      if (addressConnections != null && addressConnections.remove(connection)) {
+        addressConnections.addFirst(connection);
+        addIdle(connection);
+      }
       notifyAll(); // Awake the cleanup thread: we may have exceeded the idle connection limit.
       return false;
     }
@@ -155,79 +343,209 @@ public final class ConnectionPool {
   public void evictAll() {
     List<RealConnection> evictedConnections = new ArrayList<>();
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
-        if (connection.allocations.isEmpty()) {
-          connection.noNewStreams = true;
-          evictedConnections.add(connection);
-          i.remove();
+      for (Iterator<Deque<RealConnection>> a = connections.values().iterator(); a.hasNext(); ) {
+        Deque<RealConnection> addressConnections = a.next();
+        for (Iterator<RealConnection> i = addressConnections.iterator(); i.hasNext(); ) {
+          RealConnection connection = i.next();
+          if (connection.allocations.isEmpty()) {
+            connection.noNewStreams = true;
+            evictedConnections.add(connection);
+            i.remove();
+            connectionCount--;
+            removeIdle(connection);
+            evictionCounts[EvictionReason.EVICT_ALL.ordinal()]++;
+          }
         }
+        if (addressConnections.isEmpty()) a.remove();
       }
     }
 
     for (RealConnection connection : evictedConnections) {
       closeQuietly(connection.socket());
+      listener.connectionEvicted(connection, EvictionReason.EVICT_ALL);
     }
   }
 
   /**
-   * Performs maintenance on this pool, evicting the connection that has been idle the longest if
-   * either it has exceeded the keep alive limit or the idle connections limit.
+   * Performs maintenance on this pool, evicting every connection that has exceeded either the keep
+   * alive limit or the idle connections limit, longest idle first.
+   *
+   * <p>Idle connections are ordered by when they became idle, so this only needs to look at the
+   * first of them until it finds one that may stay. Connections that are in use are checked for
+   * leaked allocations on every pass.
    *
    * <p>Returns the duration in nanos to sleep until the next scheduled call to this method. Returns
    * -1 if no further cleanups are required.
    */
   long cleanup(long now) {
-    int inUseConnectionCount = 0;
-    int idleConnectionCount = 0;
-    RealConnection longestIdleConnection = null;
-    long longestIdleDurationNs = Long.MIN_VALUE;
+    List<RealConnection> evictedConnections = new ArrayList<>();
+    List<EvictionReason> evictedReasons = new ArrayList<>();
 
-    // Find either a connection to evict, or the time that the next eviction is due.
+    // Find either the connections to evict, or the time that the next eviction is due.
     synchronized (this) {
-      for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-        RealConnection connection = i.next();
+      pruneInUseConnections(now);
+
+      while (true) {
+        RealConnection longestIdleConnection = firstIdleConnection(now);
 
-        // If the connection is in use, keep searching.
-        if (pruneAndGetAllocationCount(connection, now) > 0) {
-          inUseConnectionCount++;
-          continue;
+        if (longestIdleConnection == null) {
+          if (!evictedConnections.isEmpty()) break;
+          replenishIdleConnections();
+          if (connectionCount > 0 || !idleTargets.isEmpty()) {
+            // All connections are in use or being opened. It'll be at least the keep alive
+            // duration 'til we run again.
+            return keepAliveDurationNs;
+          } else {
+            // No connections, idle or in use.
+            cleanupRunning = false;
+            return -1;
+          }
         }
 
-        idleConnectionCount++;
+        long longestIdleDurationNs = now - longestIdleConnection.idleAtNanos;
+        EvictionReason reason;
+        if (longestIdleDurationNs >= this.keepAliveDurationNs) {
+          reason = EvictionReason.KEEP_ALIVE_EXPIRED;
+        } else if (idleCount > this.maxIdleConnections) {
+          reason = EvictionReason.IDLE_LIMIT;
+        } else {
+          reason = null;
+        }
 
-        // If the connection is ready to be evicted, we're done.
-        long idleDurationNs = now - connection.idleAtNanos;
-        if (idleDurationNs > longestIdleDurationNs) {
-          longestIdleDurationNs = idleDurationNs;
-          longestIdleConnection = connection;
+        if (reason == null) {
+          if (!evictedConnections.isEmpty()) break;
+          // A connection will be ready to evict soon.
+          replenishIdleConnections();
+          return keepAliveDurationNs - longestIdleDurationNs;
         }
-      }
 
-      if (longestIdleDurationNs >= this.keepAliveDurationNs
-          || idleConnectionCount > this.maxIdleConnections) {
         // We've found a connection to evict. Remove it from the list, then close it below (outside
         // of the synchronized block).
-        connections.remove(longestIdleConnection);
-      } else if (idleConnectionCount > 0) {
-        // A connection will be ready to evict soon.
-        return keepAliveDurationNs - longestIdleDurationNs;
-      } else if (inUseConnectionCount > 0) {
-        // All connections are in use. It'll be at least the keep alive duration 'til we run again.
-        return keepAliveDurationNs;
-      } else {
-        // No connections, idle or in use.
-        cleanupRunning = false;
-        return -1;
+        remove(longestIdleConnection);
+        evictionCounts[reason.ordinal()]++;
+        evictedConnections.add(longestIdleConnection);
+        evictedReasons.add(reason);
       }
     }
 
-    closeQuietly(longestIdleConnection.socket());
+    for (int i = 0, size = evictedConnections.size(); i < size; i++) {
+      RealConnection connection = evictedConnections.get(i);
+      closeQuietly(connection.socket());
+      listener.connectionEvicted(connection, evictedReasons.get(i));
+    }
 
     // Cleanup again immediately.
     return 0;
   }
 
+  /** Counts an eviction by {@code reason} and notifies the listener while holding this pool. */
+  private void evicted(RealConnection connection, EvictionReason reason) {
+    evictionCounts[reason.ordinal()]++;
+    listener.connectionEvicted(connection, reason);
+  }
+
+  void connectionAcquired(RealConnection connection, long acquireDurationNs) {
+    listener.connectionAcquired(connection, acquireDurationNs);
+  }
+
+  /**
+   * Opens {@code count} connections in the background by running {@code prewarmer}, which must add
+   * the connection it opens to this pool.
+   */
+  void prewarm(Runnable prewarmer, int count) {
+    for (int i = 0; i < count; i++) {
+      executor.execute(prewarmer);
+    }
+  }
+
+  /**
+   * Keep at least {@code minimumIdle} idle connections to {@code address}. The cleanup thread runs
+   * {@code prewarmer} to open replacements as idle connections are used or evicted, without
+   * exceeding this pool's maximum number of idle connections. Set to 0 to stop.
+   */
+  synchronized void setMinimumIdleConnections(
+      Address address, int minimumIdle, Runnable prewarmer) {
+    if (minimumIdle == 0) {
+      idleTargets.remove(address);
+      return;
+    }
+
+    IdleTarget target = idleTargets.get(address);
+    if (target == null) {
+      target = new IdleTarget(address, prewarmer);
+      idleTargets.put(address, target);
+    }
+    target.minimumIdle = minimumIdle;
+
+    if (!cleanupRunning) {
+      cleanupRunning = true;
+      executor.execute(cleanupRunnable);
+    }
+    notifyAll(); // Awake the cleanup thread to open connections now.
+  }
+
+  /** Starts opening connections to each address that has fewer idle connections than its target. */
+  private void replenishIdleConnections() {
+    for (IdleTarget target : idleTargets.values()) {
+      int idle = target.prewarmingCount;
+      Deque<RealConnection> addressConnections = connections.get(target.address);
+      if (addressConnections != null) {
+        for (RealConnection connection : addressConnections) {
+          if (connection.allocations.isEmpty() && !connection.noNewStreams) idle++;
+        }
+      }
+
+      for (; idle < target.minimumIdle && idleCount + prewarmingCount < maxIdleConnections;
+          idle++) {
+        prewarm(target);
+      }
+    }
+  }
+
+  private void prewarm(final IdleTarget target) {
+    target.prewarmingCount++;
+    prewarmingCount++;
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          target.prewarmer.run();
+        } finally {
+          synchronized (ConnectionPool.this) {
+            target.prewarmingCount--;
+            prewarmingCount--;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the connection that has been idle the longest, or null if no connections are idle.
+   * Connections that were acquired without leaving the idle set are dropped from it.
+   */
+  private RealConnection firstIdleConnection(long now) {
+    while (!idleConnections.isEmpty()) {
+      RealConnection connection = idleConnections.firstEntry().getValue().peekFirst();
+      if (connection.allocations.isEmpty()) return connection;
+
+      removeIdle(connection);
+      if (pruneAndGetAllocationCount(connection, now) == 0) addIdle(connection);
+    }
+    return null;
+  }
+
+  /** Prunes leaked allocations from in-use connections, marking newly-idle ones as idle. */
+  private void pruneInUseConnections(long now) {
+    for (Deque<RealConnection> addressConnections : connections.values()) {
+      for (RealConnection connection : addressConnections) {
+        if (connection.allocations.isEmpty()) continue;
+
+        removeIdle(connection);
+        if (pruneAndGetAllocationCount(connection, now) == 0) addIdle(connection);
+      }
+    }
+  }
+
   /**
    * Prunes any leaked allocations and then returns the number of remaining live allocations on
    * {@code connection}. Allocations are leaked if the connection is tracking them but the
@@ -259,4 +577,121 @@ public final class ConnectionPool {
 
     return references.size();
   }
+
+  /** Why a connection was removed from the pool. */
+  public enum EvictionReason {
+    /** The connection was idle for longer than the pool's keep alive duration. */
+    KEEP_ALIVE_EXPIRED,
+
+    /** The pool held more idle connections than its limit. */
+    IDLE_LIMIT,
+
+    /** The connection became idle but can no longer carry new streams. */
+    NO_NEW_STREAMS,
+
+    /** The connection was idle when {@link #evictAll} was called. */
+    EVICT_ALL
+  }
+
+  /**
+   * Receives events about the connections in a pool. Use this to measure how long calls wait for
+   * connections and why connections are closed.
+   *
+   * <p>Methods may be invoked while the pool's lock is held. Implementations should return quickly
+   * and must not block.
+   */
+  public abstract static class Listener {
+    public static final Listener NONE = new Listener() {
+    };
+
+    /**
+     * Invoked each time a call takes {@code connection} for a new stream. The duration covers
+     * finding the connection in the pool, or connecting it if none could be reused.
+     */
+    public void connectionAcquired(Connection connection, long acquireDurationNs) {
+    }
+
+    /** Invoked when {@code connection} is removed from the pool to be closed. */
+    public void connectionEvicted(Connection connection, EvictionReason reason) {
+    }
+  }
+
+  /** A snapshot of a pooled connection. */
+  public static final class ConnectionStats {
+    private final Route route;
+    private final Protocol protocol;
+    private final long ageNanos;
+    private final long idleNanos;
+    private final int successCount;
+    private final int allocationCount;
+    private final int allocationLimit;
+
+    ConnectionStats(RealConnection connection, long now) {
+      this.route = connection.route();
+      this.protocol = connection.protocol();
+      this.ageNanos = now - connection.createdAtNanos;
+      this.idleNanos = connection.allocations.isEmpty() ? now - connection.idleAtNanos : 0L;
+      this.successCount = connection.successCount;
+      this.allocationCount = connection.allocations.size();
+      this.allocationLimit = connection.allocationLimit;
+    }
+
+    public Route route() {
+      return route;
+    }
+
+    public Address address() {
+      return route.address();
+    }
+
+    public Protocol protocol() {
+      return protocol;
+    }
+
+    /** Returns how long ago this connection was created. */
+    public long ageNanos() {
+      return ageNanos;
+    }
+
+    /** Returns how long this connection has been idle, or 0 if it is in use. */
+    public long idleNanos() {
+      return idleNanos;
+    }
+
+    /** Returns the number of streams this connection has carried to completion. */
+    public int successCount() {
+      return successCount;
+    }
+
+    /** Returns the number of streams currently allocated to this connection. */
+    public int allocationCount() {
+      return allocationCount;
+    }
+
+    /**
+     * Returns the maximum number of concurrent streams this connection will carry. This is 1 for
+     * HTTP/1.x and the peer's concurrent streams limit for HTTP/2 and SPDY.
+     */
+    public int allocationLimit() {
+      return allocationLimit;
+    }
+
+    @Override public String toString() {
+      return "ConnectionStats{" + route.address().url().host() + ":" + route.address().url().port()
+          + ", " + protocol + ", streams=" + allocationCount + "/" + allocationLimit
+          + ", successCount=" + successCount + "}";
+    }
+  }
+
+  private static final class IdleTarget {
+    final Address address;
+    final Runnable prewarmer;
+    int minimumIdle;
+    int prewarmingCount;
+
+    IdleTarget(Address address, Runnable prewarmer) {
+      this.address = address;
+      this.prewarmer = prewarmer;
+    }
+  }
 }
@@ -19,12 +19,16 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.RealCall.AsyncCall;
 import okhttp3.internal.Util;
 
@@ -36,34 +40,81 @@ import okhttp3.internal.Util;
  * of calls concurrently.
  */
 public final class Dispatcher {
-  private int maxRequests = 64;
-  private int maxRequestsPerHost = 5;
+  private volatile int maxRequests = 64;
+  private volatile int maxRequestsPerHost = 5;
 
   /** Executes calls. Created lazily. */
-  private ExecutorService executorService;
+  private volatile ExecutorService executorService;
 
-  /** Ready async calls in the order they'll be run. */
-  private final Deque<AsyncCall> readyAsyncCalls = new ArrayDeque<>();
+  /** True if the lazily-created executor should run calls on virtual threads. */
+  private final boolean virtualThreads;
+
+  /**
+   * The number of running async calls. Calls are admitted by incrementing this and the call's host
+   * count; neither requires holding the dispatcher's lock.
+   */
+  private final AtomicInteger runningAsyncCallsCount = new AtomicInteger();
+
+  /**
+   * The number of running async calls for each host. A host's count is retired by setting it to -1
+   * when it drops to zero; callers that observe a retired count must replace it.
+   */
+  private final ConcurrentHashMap<String, AtomicInteger> runningCallsPerHost =
+      new ConcurrentHashMap<>();
+
+  /** The number of ready async calls. Finished calls only take the lock to promote these. */
+  private final AtomicInteger readyAsyncCallsCount = new AtomicInteger();
+
+  /**
+   * Ready async calls for each host, in the order they'll be run. Hosts without ready calls are
+   * absent. The map is only changed while holding the lock, and the deques are guarded by this, but
+   * the map may be checked without the lock: a new call to a host that has no ready calls may skip
+   * the lock and be admitted directly; otherwise it waits its turn behind that host's calls.
+   */
+  private final Map<String, Deque<AsyncCall>> readyAsyncCalls = new ConcurrentHashMap<>();
+
+  /** Hosts with ready async calls. Hosts take turns running their calls. Guarded by this. */
+  private final Deque<String> readyHosts = new ArrayDeque<>();
 
   /** Running asynchronous calls. Includes canceled calls that haven't finished yet. */
-  private final Deque<AsyncCall> runningAsyncCalls = new ArrayDeque<>();
+  private final Set<AsyncCall> runningAsyncCalls =
+      Collections.newSetFromMap(new ConcurrentHashMap<AsyncCall, Boolean>());
 
   /** Running synchronous calls. Includes canceled calls that haven't finished yet. */
-  private final Deque<RealCall> runningSyncCalls = new ArrayDeque<>();
+  private final Set<RealCall> runningSyncCalls =
+      Collections.newSetFromMap(new ConcurrentHashMap<RealCall, Boolean>());
 
   public Dispatcher(ExecutorService executorService) {
     this.executorService = executorService;
+    this.virtualThreads = false;
+  }
+
+  /**
+   * Creates a dispatcher whose executor runs calls on virtual threads if {@code virtualThreads} is
+   * true and this JVM supports them. Otherwise calls run on platform threads.
+   */
+  public Dispatcher(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
   }
 
   public Dispatcher() {
+    this(false);
   }
 
-  public synchronized ExecutorService executorService() {
-    if (executorService == null) {
-      executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-          new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp Dispatcher", false));
+  public ExecutorService executorService() {
+    ExecutorService result = executorService;
+    if (result != null) return result;
+    synchronized (this) {
+      if (executorService == null) {
+        ThreadFactory threadFactory =
+            Util.threadFactory("OkHttp Dispatcher", false, virtualThreads);
+        // Virtual threads are cheap to start, so don't keep idle ones around.
+        long keepAliveSeconds = virtualThreads ? 0 : 60;
+        executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, keepAliveSeconds,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory);
+      }
+      return executorService;
     }
-    return executorService;
   }
 
   /**
@@ -73,15 +124,15 @@ public final class Dispatcher {
    * <p>If more than {@code maxRequests} requests are in flight when this is invoked, those requests
    * will remain in flight.
    */
-  public synchronized void setMaxRequests(int maxRequests) {
+  public void setMaxRequests(int maxRequests) {
     if (maxRequests < 1) {
       throw new IllegalArgumentException("max < 1: " + maxRequests);
     }
     this.maxRequests = maxRequests;
-    promoteCalls();
+    promoteAndExecuteCalls();
   }
 
-  public synchronized int getMaxRequests() {
+  public int getMaxRequests() {
     return maxRequests;
   }
 
@@ -94,34 +145,55 @@ public final class Dispatcher {
    * <p>If more than {@code maxRequestsPerHost} requests are in flight when this is invoked, those
    * requests will remain in flight.
    */
-  public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+  public void setMaxRequestsPerHost(int maxRequestsPerHost) {
     if (maxRequestsPerHost < 1) {
       throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
     }
     this.maxRequestsPerHost = maxRequestsPerHost;
-    promoteCalls();
+    promoteAndExecuteCalls();
   }
 
-  public synchronized int getMaxRequestsPerHost() {
+  public int getMaxRequestsPerHost() {
     return maxRequestsPerHost;
   }
 
-  synchronized void enqueue(AsyncCall call) {
-    if (runningAsyncCalls.size() < maxRequests && runningCallsForHost(call) < maxRequestsPerHost) {
+  void enqueue(AsyncCall call) {
+    // Fast path: no call to this host is waiting and there's capacity. Run the call without taking
+    // the lock. Calls to other hosts that are waiting are limited by their own host's count, or
+    // there would be no global slot for this call either.
+    if (!readyAsyncCalls.containsKey(call.host()) && tryAcquire(call.host())) {
       runningAsyncCalls.add(call);
       executorService().execute(call);
-    } else {
-      readyAsyncCalls.add(call);
+      return;
     }
+
+    List<AsyncCall> promoted;
+    synchronized (this) {
+      String host = call.host();
+      Deque<AsyncCall> hostCalls = readyAsyncCalls.get(host);
+      if (hostCalls == null) {
+        hostCalls = new ArrayDeque<>();
+        readyAsyncCalls.put(host, hostCalls);
+        readyHosts.add(host);
+      }
+      hostCalls.add(call);
+      readyAsyncCallsCount.incrementAndGet();
+      promoted = promoteCalls();
+    }
+    execute(promoted);
   }
 
   /**
    * Cancel all calls currently enqueued or executing. Includes calls executed both {@linkplain
    * Call#execute() synchronously} and {@linkplain Call#enqueue asynchronously}.
    */
-  public synchronized void cancelAll() {
-    for (AsyncCall call : readyAsyncCalls) {
-      call.cancel();
+  public void cancelAll() {
+    synchronized (this) {
+      for (Deque<AsyncCall> hostCalls : readyAsyncCalls.values()) {
+        for (AsyncCall call : hostCalls) {
+          call.cancel();
+        }
+      }
     }
 
     for (AsyncCall call : runningAsyncCalls) {
@@ -134,58 +206,126 @@ public final class Dispatcher {
   }
 
   /** Used by {@code AsyncCall#run} to signal completion. */
-  synchronized void finished(AsyncCall call) {
+  void finished(AsyncCall call) {
     if (!runningAsyncCalls.remove(call)) throw new AssertionError("AsyncCall wasn't running!");
-    promoteCalls();
+    release(call.host());
+
+    // Calls enqueued after this check will promote themselves; they'll observe the released slot.
+    if (readyAsyncCallsCount.get() > 0) promoteAndExecuteCalls();
   }
 
-  private void promoteCalls() {
-    if (runningAsyncCalls.size() >= maxRequests) return; // Already running max capacity.
-    if (readyAsyncCalls.isEmpty()) return; // No ready calls to promote.
+  /**
+   * Claims a slot for a call to {@code host}, returning true if both the global and per-host limits
+   * permit another running call.
+   */
+  private boolean tryAcquire(String host) {
+    while (true) {
+      int count = runningAsyncCallsCount.get();
+      if (count >= maxRequests) return false;
+      if (runningAsyncCallsCount.compareAndSet(count, count + 1)) break;
+    }
 
-    for (Iterator<AsyncCall> i = readyAsyncCalls.iterator(); i.hasNext(); ) {
-      AsyncCall call = i.next();
+    while (true) {
+      AtomicInteger hostCount = runningCallsPerHost.get(host);
+      if (hostCount == null) {
+        hostCount = new AtomicInteger();
+        AtomicInteger existing = runningCallsPerHost.putIfAbsent(host, hostCount);
+        if (existing != null) hostCount = existing;
+      }
 
-      if (runningCallsForHost(call) < maxRequestsPerHost) {
-        i.remove();
-        runningAsyncCalls.add(call);
-        executorService().execute(call);
+      int count = hostCount.get();
+      if (count < 0) {
+        // This count was retired concurrently. Help remove it and try again with a fresh one.
+        runningCallsPerHost.remove(host, hostCount);
+        continue;
+      }
+      if (count >= maxRequestsPerHost) {
+        runningAsyncCallsCount.decrementAndGet();
+        return false;
       }
+      if (hostCount.compareAndSet(count, count + 1)) return true;
+    }
+  }
 
-      if (runningAsyncCalls.size() >= maxRequests) return; // Reached max capacity.
+  /** Releases a slot claimed by {@link #tryAcquire}. */
+  private void release(String host) {
+    AtomicInteger hostCount = runningCallsPerHost.get(host);
+    if (hostCount.decrementAndGet() == 0 && hostCount.compareAndSet(0, -1)) {
+      runningCallsPerHost.remove(host, hostCount);
     }
+    runningAsyncCallsCount.decrementAndGet();
   }
 
-  /** Returns the number of running calls that share a host with {@code call}. */
-  private int runningCallsForHost(AsyncCall call) {
-    int result = 0;
-    for (AsyncCall c : runningAsyncCalls) {
-      if (c.host().equals(call.host())) result++;
+  private void promoteAndExecuteCalls() {
+    List<AsyncCall> promoted;
+    synchronized (this) {
+      promoted = promoteCalls();
+    }
+    execute(promoted);
+  }
+
+  /**
+   * Moves ready calls to running while capacity permits, taking one call from each host in turn.
+   * Returns the promoted calls, which the caller must execute after releasing the lock.
+   */
+  private List<AsyncCall> promoteCalls() {
+    if (readyHosts.isEmpty()) return Collections.emptyList(); // No ready calls to promote.
+
+    List<AsyncCall> result = new ArrayList<>();
+    for (boolean promotedAny = true; promotedAny && !readyHosts.isEmpty(); ) {
+      promotedAny = false;
+      for (int i = 0, size = readyHosts.size(); i < size; i++) {
+        if (runningAsyncCallsCount.get() >= maxRequests) return result; // Reached max capacity.
+
+        String host = readyHosts.removeFirst();
+        Deque<AsyncCall> hostCalls = readyAsyncCalls.get(host);
+        if (tryAcquire(host)) {
+          AsyncCall call = hostCalls.removeFirst();
+          readyAsyncCallsCount.decrementAndGet();
+          runningAsyncCalls.add(call);
+          result.add(call);
+          promotedAny = true;
+        }
+
+        if (hostCalls.isEmpty()) {
+          readyAsyncCalls.remove(host);
+        } else {
+          readyHosts.addLast(host);
+        }
+      }
     }
     return result;
   }
 
+  private void execute(List<AsyncCall> calls) {
+    for (int i = 0, size = calls.size(); i < size; i++) {
+      executorService().execute(calls.get(i));
+    }
+  }
+
   /** Used by {@code Call#execute} to signal it is in-flight. */
-  synchronized void executed(RealCall call) {
+  void executed(RealCall call) {
     runningSyncCalls.add(call);
   }
 
   /** Used by {@code Call#execute} to signal completion. */
-  synchronized void finished(Call call) {
+  void finished(Call call) {
     if (!runningSyncCalls.remove(call)) throw new AssertionError("Call wasn't in-flight!");
   }
 
   /** Returns a snapshot of the calls currently awaiting execution. */
   public synchronized List<Call> queuedCalls() {
     List<Call> result = new ArrayList<>();
-    for (AsyncCall asyncCall : readyAsyncCalls) {
-      result.add(asyncCall.get());
+    for (String host : readyHosts) {
+      for (AsyncCall asyncCall : readyAsyncCalls.get(host)) {
+        result.add(asyncCall.get());
+      }
     }
     return Collections.unmodifiableList(result);
   }
 
   /** Returns a snapshot of the calls currently being executed. */
-  public synchronized List<Call> runningCalls() {
+  public List<Call> runningCalls() {
     List<Call> result = new ArrayList<>();
     result.addAll(runningSyncCalls);
     for (AsyncCall asyncCall : runningAsyncCalls) {
@@ -194,11 +334,11 @@ public final class Dispatcher {
     return Collections.unmodifiableList(result);
   }
 
-  public synchronized int queuedCallsCount() {
-    return readyAsyncCalls.size();
+  public int queuedCallsCount() {
+    return readyAsyncCallsCount.get();
   }
 
-  public synchronized int runningCallsCount() {
-    return runningAsyncCalls.size() + runningSyncCalls.size();
+  public int runningCallsCount() {
+    return runningAsyncCallsCount.get() + runningSyncCalls.size();
   }
 }
@@ -15,6 +15,7 @@
  */
 package okhttp3;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.ProxySelector;
@@ -23,6 +24,7 @@ import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import javax.net.SocketFactory;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -31,14 +33,18 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.X509TrustManager;
 import okhttp3.internal.Internal;
 import okhttp3.internal.InternalCache;
+import okhttp3.internal.NamedRunnable;
 import okhttp3.internal.Platform;
 import okhttp3.internal.RouteDatabase;
 import okhttp3.internal.Util;
+import okhttp3.internal.http.HttpEngine;
 import okhttp3.internal.http.StreamAllocation;
 import okhttp3.internal.io.RealConnection;
 import okhttp3.internal.tls.CertificateAuthorityCouncil;
 import okhttp3.internal.tls.OkHostnameVerifier;
 
+import static okhttp3.internal.Internal.logger;
+
 /**
  * Factory for {@linkplain Call calls}, which can be used to send HTTP requests and read their
  * responses. Most applications can use a single OkHttpClient for all of their HTTP requests,
@@ -87,6 +93,11 @@ public class OkHttpClient implements Cloneable, Call.Factory {
         return pool.connectionBecameIdle(connection);
       }
 
+      @Override public void connectionAcquired(
+          ConnectionPool pool, RealConnection connection, long acquireDurationNs) {
+        pool.connectionAcquired(connection, acquireDurationNs);
+      }
+
       @Override public RealConnection get(
           ConnectionPool pool, Address address, StreamAllocation streamAllocation) {
         return pool.get(address, streamAllocation);
@@ -145,9 +156,14 @@ public class OkHttpClient implements Cloneable, Call.Factory {
   final boolean followSslRedirects;
   final boolean followRedirects;
   final boolean retryOnConnectionFailure;
+  final boolean virtualThreads;
   final int connectTimeout;
   final int readTimeout;
   final int writeTimeout;
+  final int http2StreamWindowSize;
+  final int http2ConnectionWindowSize;
+  final boolean http2WindowAutoTuning;
+  final boolean http2WriterThread;
 
   public OkHttpClient() {
     this(new Builder());
@@ -207,9 +223,14 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     this.followSslRedirects = builder.followSslRedirects;
     this.followRedirects = builder.followRedirects;
     this.retryOnConnectionFailure = builder.retryOnConnectionFailure;
+    this.virtualThreads = builder.virtualThreads;
     this.connectTimeout = builder.connectTimeout;
     this.readTimeout = builder.readTimeout;
     this.writeTimeout = builder.writeTimeout;
+    this.http2StreamWindowSize = builder.http2StreamWindowSize;
+    this.http2ConnectionWindowSize = builder.http2ConnectionWindowSize;
+    this.http2WindowAutoTuning = builder.http2WindowAutoTuning;
+    this.http2WriterThread = builder.http2WriterThread;
   }
 
   /** Default connect timeout (in milliseconds). */
@@ -295,6 +316,28 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     return retryOnConnectionFailure;
   }
 
+  public boolean virtualThreads() {
+    return virtualThreads;
+  }
+
+  /** The number of bytes a server may send on each HTTP/2 stream before it is acknowledged. */
+  public int http2StreamWindowSize() {
+    return http2StreamWindowSize;
+  }
+
+  /** The number of bytes a server may send on each HTTP/2 connection before it is acknowledged. */
+  public int http2ConnectionWindowSize() {
+    return http2ConnectionWindowSize;
+  }
+
+  public boolean http2WindowAutoTuning() {
+    return http2WindowAutoTuning;
+  }
+
+  public boolean http2WriterThread() {
+    return http2WriterThread;
+  }
+
   public Dispatcher dispatcher() {
     return dispatcher;
   }
@@ -332,6 +375,41 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     return new RealCall(this, request);
   }
 
+  /**
+   * Opens {@code connectionCount} connections to {@code url}'s host in the background and adds them
+   * to this client's connection pool, so that later calls don't pay for DNS, TCP and TLS. The
+   * connections honor this client's configuration, including its connection specs and certificate
+   * pinner. Failures to connect are logged and otherwise ignored.
+   */
+  public void prewarmConnections(HttpUrl url, int connectionCount) {
+    if (connectionCount < 0) throw new IllegalArgumentException("connectionCount < 0");
+    connectionPool.prewarm(prewarmer(url), connectionCount);
+  }
+
+  /**
+   * Keep at least {@code minimumIdle} idle connections to {@code url}'s host in this client's
+   * connection pool. The pool opens replacement connections in the background as idle ones are
+   * used or evicted, up to its maximum number of idle connections. Set to 0 to stop.
+   */
+  public void minimumIdleConnections(HttpUrl url, int minimumIdle) {
+    if (minimumIdle < 0) throw new IllegalArgumentException("minimumIdle < 0");
+    connectionPool.setMinimumIdleConnections(
+        HttpEngine.createAddress(this, url), minimumIdle, prewarmer(url));
+  }
+
+  private Runnable prewarmer(HttpUrl url) {
+    final Address address = HttpEngine.createAddress(this, url);
+    return new NamedRunnable("OkHttp Prewarm %s", url.host()) {
+      @Override protected void execute() {
+        try {
+          new StreamAllocation(connectionPool, address).prewarm(OkHttpClient.this);
+        } catch (IOException e) {
+          logger.log(Level.INFO, "Failed to prewarm a connection to " + address.url(), e);
+        }
+      }
+    };
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -360,9 +438,14 @@ public class OkHttpClient implements Cloneable, Call.Factory {
     boolean followSslRedirects;
     boolean followRedirects;
     boolean retryOnConnectionFailure;
+    boolean virtualThreads;
     int connectTimeout;
     int readTimeout;
     int writeTimeout;
+    int http2StreamWindowSize;
+    int http2ConnectionWindowSize;
+    boolean http2WindowAutoTuning;
+    boolean http2WriterThread;
     HPKPinner hpkPinner;
 
     public Builder() {
@@ -387,6 +470,8 @@ public class OkHttpClient implements Cloneable, Call.Factory {
       connectTimeout = 10_000;
       readTimeout = 10_000;
       writeTimeout = 10_000;
+      http2StreamWindowSize = 16 * 1024 * 1024;
+      http2ConnectionWindowSize = 16 * 1024 * 1024;
     }
 
     Builder(OkHttpClient okHttpClient) {
@@ -414,9 +499,14 @@ public class OkHttpClient implements Cloneable, Call.Factory {
       this.followSslRedirects = okHttpClient.followSslRedirects;
       this.followRedirects = okHttpClient.followRedirects;
       this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure;
+      this.virtualThreads = okHttpClient.virtualThreads;
       this.connectTimeout = okHttpClient.connectTimeout;
       this.readTimeout = okHttpClient.readTimeout;
       this.writeTimeout = okHttpClient.writeTimeout;
+      this.http2StreamWindowSize = okHttpClient.http2StreamWindowSize;
+      this.http2ConnectionWindowSize = okHttpClient.http2ConnectionWindowSize;
+      this.http2WindowAutoTuning = okHttpClient.http2WindowAutoTuning;
+      this.http2WriterThread = okHttpClient.http2WriterThread;
     }
 
     /**
@@ -644,6 +734,69 @@ public class OkHttpClient implements Cloneable, Call.Factory {
       return this;
     }
 
+    /**
+     * Configure this client to run blocking work on virtual threads when the JVM supports them.
+     * This includes the reader, writer and push observer threads of HTTP/2 and SPDY connections.
+     * On JVMs without virtual threads this falls back to platform threads.
+     *
+     * <p>Virtual threads make it practical to hold many thousands of concurrent blocking calls.
+     * Asynchronous calls run on the dispatcher's executor; use {@link
+     * Dispatcher#Dispatcher(boolean) new Dispatcher(true)} to run them on virtual threads too.
+     * Synchronous calls run on the caller's thread; call them from virtual threads for the same
+     * effect.
+     */
+    public Builder virtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+      return this;
+    }
+
+    /**
+     * Sets the initial flow control window of each HTTP/2 and SPDY stream: the number of bytes a
+     * server may send on a stream before this client acknowledges them. A stream's throughput is
+     * at most its window per round trip, so long fat networks need large windows. Each stream
+     * buffers up to this many unread bytes. The default is 16 MiB.
+     */
+    public Builder http2StreamWindowSize(int bytes) {
+      if (bytes <= 0) throw new IllegalArgumentException("bytes <= 0: " + bytes);
+      this.http2StreamWindowSize = bytes;
+      return this;
+    }
+
+    /**
+     * Sets the initial flow control window of each HTTP/2 and SPDY connection, which limits the
+     * bytes in flight across all of its streams. It must be at least 64 KiB, the protocol's
+     * default. The default is 16 MiB.
+     */
+    public Builder http2ConnectionWindowSize(int bytes) {
+      if (bytes < 64 * 1024) throw new IllegalArgumentException("bytes < 65536: " + bytes);
+      this.http2ConnectionWindowSize = bytes;
+      return this;
+    }
+
+    /**
+     * Grow HTTP/2 flow control windows to fit each connection's bandwidth-delay product. While
+     * data is arriving the connection pings the server to measure the bytes received per round
+     * trip. If that approaches the stream window and the measured bandwidth is the highest yet,
+     * both windows are doubled from the sample, up to 64 MiB. Windows start at the sizes
+     * configured above and never shrink. Auto-tuning is disabled by default.
+     */
+    public Builder http2WindowAutoTuning(boolean http2WindowAutoTuning) {
+      this.http2WindowAutoTuning = http2WindowAutoTuning;
+      return this;
+    }
+
+    /**
+     * Configure whether each HTTP/2 and SPDY connection writes request headers and bodies on a
+     * dedicated thread. Callers then queue frames and return without waiting for the socket, and
+     * the writer serves the streams of the connection in turn. This keeps one slow upload from
+     * blocking the callers of every other stream. Control frames like pings, settings and window
+     * updates are still written by their callers. It is disabled by default.
+     */
+    public Builder http2WriterThread(boolean http2WriterThread) {
+      this.http2WriterThread = http2WriterThread;
+      return this;
+    }
+
     /**
      * Sets the dispatcher used to set policy and execute asynchronous requests. Must not be null.
      */
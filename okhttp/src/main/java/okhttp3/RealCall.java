@@ -251,7 +251,9 @@ final class RealCall implements Call {
           engine = retryEngine;
           continue;
         }
-        // Give up; recovery is not possible.
+        // Give up; recovery is not possible. Serve a stale response if the cache permits it.
+        Response staleResponse = engine.takeStaleIfErrorResponse();
+        if (staleResponse != null) return staleResponse;
         throw e.getLastConnectException();
       } catch (IOException e) {
         // An attempt to communicate with a server failed. The request may have been sent.
@@ -262,7 +264,9 @@ final class RealCall implements Call {
           continue;
         }
 
-        // Give up; recovery is not possible.
+        // Give up; recovery is not possible. Serve a stale response if the cache permits it.
+        Response staleResponse = engine.takeStaleIfErrorResponse();
+        if (staleResponse != null) return staleResponse;
         throw e;
       } finally {
         // We're throwing an unchecked exception. Release any resources.
@@ -25,11 +25,15 @@ import okhttp3.internal.http.HttpMethod;
  * immutable.
  */
 public final class Request {
+  /** The HTTP/2 priority weight of requests that don't specify one. */
+  public static final int DEFAULT_WEIGHT = 16;
+
   private final HttpUrl url;
   private final String method;
   private final Headers headers;
   private final RequestBody body;
   private final Object tag;
+  private final int weight;
 
   private volatile URI javaNetUri; // Lazily initialized.
   private volatile CacheControl cacheControl; // Lazily initialized.
@@ -40,6 +44,7 @@ public final class Request {
     this.headers = builder.headers.build();
     this.body = builder.body;
     this.tag = builder.tag != null ? builder.tag : this;
+    this.weight = builder.weight;
   }
 
   public HttpUrl url() {
@@ -70,6 +75,14 @@ public final class Request {
     return tag;
   }
 
+  /**
+   * Returns the HTTP/2 priority weight of this request, in [1..256]. Defaults to {@link
+   * #DEFAULT_WEIGHT}.
+   */
+  public int weight() {
+    return weight;
+  }
+
   public Builder newBuilder() {
     return new Builder(this);
   }
@@ -103,6 +116,7 @@ public final class Request {
     private Headers.Builder headers;
     private RequestBody body;
     private Object tag;
+    private int weight = DEFAULT_WEIGHT;
 
     public Builder() {
       this.method = "GET";
@@ -114,6 +128,7 @@ public final class Request {
       this.method = request.method;
       this.body = request.body;
       this.tag = request.tag;
+      this.weight = request.weight;
       this.headers = request.headers.newBuilder();
     }
 
@@ -252,6 +267,22 @@ public final class Request {
       return this;
     }
 
+    /**
+     * Sets the HTTP/2 priority weight of this request, in [1..256]. The default is 16. The weight
+     * is sent to the server, which may use it to share its bandwidth between the responses of a
+     * connection. When the client has an {@linkplain OkHttpClient.Builder#http2WriterThread HTTP/2
+     * writer thread}, it also shares the connection between request bodies: a request with weight
+     * 64 gets four times the upload bandwidth of a request with weight 16. HTTP/1.1 and SPDY
+     * ignore the weight.
+     */
+    public Builder weight(int weight) {
+      if (weight < 1 || weight > 256) {
+        throw new IllegalArgumentException("weight out of range: " + weight);
+      }
+      this.weight = weight;
+      return this;
+    }
+
     public Request build() {
       if (url == null) throw new IllegalStateException("url == null");
       return new Request(this);
@@ -26,7 +26,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -86,14 +88,21 @@ public final class DiskLruCache implements Closeable, Flushable {
   static final String JOURNAL_FILE = "journal";
   static final String JOURNAL_FILE_TEMP = "journal.tmp";
   static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+  static final String SNAPSHOT_FILE = "journal.snapshot";
+  static final String SNAPSHOT_FILE_TEMP = "journal.snapshot.tmp";
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
+  static final String VERSION_2 = "2";
   static final long ANY_SEQUENCE_NUMBER = -1;
   static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,120}");
   private static final String CLEAN = "CLEAN";
   private static final String DIRTY = "DIRTY";
   private static final String REMOVE = "REMOVE";
   private static final String READ = "READ";
+  private static final int CLEAN_RECORD = 1;
+  private static final int DIRTY_RECORD = 2;
+  private static final int REMOVE_RECORD = 3;
+  private static final int READ_RECORD = 4;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -133,6 +142,23 @@ public final class DiskLruCache implements Closeable, Flushable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Caches created with a binary journal use version 2 of the format. Its
+     * header is the magic and version lines followed by the application's
+     * version and the value count as 4-byte big-endian integers. Each record is
+     * a single byte for the state, followed by the key, followed by the lengths
+     * of each value for CLEAN records. Keys are a length byte followed by the
+     * key's bytes. Keys of lowercase hex digits, like the MD5 hashes used by
+     * the HTTP cache, are packed two digits per byte and flagged with the
+     * length byte's high bit. Lengths are unsigned base-128 varints. A version
+     * 1 journal is read and then rewritten in version 2 format.
+     *
+     * Caches with a binary journal also write "journal.snapshot" from time to
+     * time. It has the same header as the journal, followed by the journal's
+     * length and record count when the snapshot was taken, the number of
+     * entries, and a CLEAN or DIRTY record for each entry in LRU order. When the
+     * cache is opened it loads the snapshot and replays only the journal records
+     * that follow it. Rebuilding the journal deletes the snapshot.
      */
 
   private final FileSystem fileSystem;
@@ -140,15 +166,24 @@ public final class DiskLruCache implements Closeable, Flushable {
   private final File journalFile;
   private final File journalFileTmp;
   private final File journalFileBackup;
+  private final File snapshotFile;
+  private final File snapshotFileTmp;
   private final int appVersion;
   private long maxSize;
   private final int valueCount;
+  private final boolean binaryJournal;
   private long size = 0;
   private BufferedSink journalWriter;
   private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
   private int redundantOpCount;
   private boolean hasJournalErrors;
 
+  /** The number of records appended to the journal since the last snapshot or rebuild. */
+  private int journalTailCount;
+
+  /** The journal record count stored in the most recently read snapshot. */
+  private int snapshotRecordCount;
+
   // Must be read and written when synchronized on 'this'.
   private boolean initialized;
   private boolean closed;
@@ -173,6 +208,8 @@ public final class DiskLruCache implements Closeable, Flushable {
           if (journalRebuildRequired()) {
             rebuildJournal();
             redundantOpCount = 0;
+          } else if (snapshotRequired()) {
+            writeSnapshot();
           }
         } catch (IOException e) {
           throw new RuntimeException(e);
@@ -183,15 +220,23 @@ public final class DiskLruCache implements Closeable, Flushable {
 
   DiskLruCache(FileSystem fileSystem, File directory, int appVersion, int valueCount, long maxSize,
       Executor executor) {
+    this(fileSystem, directory, appVersion, valueCount, maxSize, executor, false);
+  }
+
+  DiskLruCache(FileSystem fileSystem, File directory, int appVersion, int valueCount, long maxSize,
+      Executor executor, boolean binaryJournal) {
     this.fileSystem = fileSystem;
     this.directory = directory;
     this.appVersion = appVersion;
     this.journalFile = new File(directory, JOURNAL_FILE);
     this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
     this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+    this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+    this.snapshotFileTmp = new File(directory, SNAPSHOT_FILE_TEMP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
     this.executor = executor;
+    this.binaryJournal = binaryJournal;
   }
 
   public synchronized void initialize() throws IOException {
@@ -260,6 +305,11 @@ public final class DiskLruCache implements Closeable, Flushable {
     try {
       String magic = source.readUtf8LineStrict();
       String version = source.readUtf8LineStrict();
+      if (binaryJournal && MAGIC.equals(magic) && VERSION_2.equals(version)) {
+        readBinaryJournal(source);
+        return;
+      }
+
       String appVersionString = source.readUtf8LineStrict();
       String valueCountString = source.readUtf8LineStrict();
       String blank = source.readUtf8LineStrict();
@@ -283,8 +333,9 @@ public final class DiskLruCache implements Closeable, Flushable {
       }
       redundantOpCount = lineCount - lruEntries.size();
 
-      // If we ended on a truncated line, rebuild the journal before appending to it.
-      if (!source.exhausted()) {
+      // If we ended on a truncated line, rebuild the journal before appending to it. A text journal
+      // is also rebuilt to migrate it to the binary format.
+      if (!source.exhausted() || binaryJournal) {
         rebuildJournal();
       } else {
         journalWriter = newJournalWriter();
@@ -294,6 +345,168 @@ public final class DiskLruCache implements Closeable, Flushable {
     }
   }
 
+  private void readBinaryJournal(BufferedSource source) throws IOException {
+    int appVersion = source.readInt();
+    int valueCount = source.readInt();
+    if (appVersion != this.appVersion || valueCount != this.valueCount) {
+      throw new IOException("unexpected journal header: [" + MAGIC + ", " + VERSION_2 + ", "
+          + appVersion + ", " + valueCount + "]");
+    }
+
+    // Start from the snapshot if there is one, skipping the journal records it already covers.
+    int recordCount = 0;
+    long snapshotJournalLength = readSnapshot();
+    if (snapshotJournalLength != -1L) {
+      source.skip(snapshotJournalLength - binaryJournalHeaderLength());
+      recordCount = snapshotRecordCount;
+    }
+
+    boolean truncated = false;
+    while (!source.exhausted()) {
+      try {
+        readJournalRecord(source);
+        recordCount++;
+        journalTailCount++;
+      } catch (EOFException endOfJournal) {
+        truncated = true;
+        break;
+      }
+    }
+    redundantOpCount = recordCount - lruEntries.size();
+
+    // If we ended on a truncated record, rebuild the journal before appending to it.
+    if (truncated) {
+      rebuildJournal();
+    } else {
+      journalWriter = newJournalWriter();
+    }
+  }
+
+  private static long binaryJournalHeaderLength() {
+    return MAGIC.length() + 1 + VERSION_2.length() + 1 + 4 + 4;
+  }
+
+  /**
+   * Loads the entries in the snapshot file, if it exists, and returns the journal length that it
+   * covers. Returns -1 if there is no usable snapshot, in which case no entries are loaded.
+   */
+  private long readSnapshot() throws IOException {
+    if (!fileSystem.exists(snapshotFile)) return -1L;
+
+    BufferedSource source = Okio.buffer(fileSystem.source(snapshotFile));
+    try {
+      String magic = source.readUtf8LineStrict();
+      String version = source.readUtf8LineStrict();
+      int appVersion = source.readInt();
+      int valueCount = source.readInt();
+      long journalLength = source.readLong();
+      int recordCount = source.readInt();
+      int entryCount = source.readInt();
+      if (!MAGIC.equals(magic)
+          || !VERSION_2.equals(version)
+          || appVersion != this.appVersion
+          || valueCount != this.valueCount
+          || journalLength < binaryJournalHeaderLength()
+          || journalLength > fileSystem.size(journalFile)) {
+        throw new IOException("unexpected snapshot header");
+      }
+
+      for (int i = 0; i < entryCount; i++) {
+        readJournalRecord(source);
+      }
+      if (!source.exhausted()) throw new IOException("unexpected snapshot trailer");
+
+      snapshotRecordCount = recordCount;
+      return journalLength;
+    } catch (IOException snapshotIsUnusable) {
+      // Replay the whole journal instead.
+      lruEntries.clear();
+      fileSystem.delete(snapshotFile);
+      return -1L;
+    } finally {
+      Util.closeQuietly(source);
+    }
+  }
+
+  /**
+   * Writes the current entries to the snapshot file so that the next time the cache is opened it
+   * only needs to replay the journal records that follow.
+   */
+  private void writeSnapshot() throws IOException {
+    journalWriter.flush();
+    if (hasJournalErrors) return; // The journal's length doesn't reflect its records.
+    long journalLength = fileSystem.size(journalFile);
+
+    BufferedSink writer = Okio.buffer(fileSystem.sink(snapshotFileTmp));
+    try {
+      writer.writeUtf8(MAGIC).writeByte('\n');
+      writer.writeUtf8(VERSION_2).writeByte('\n');
+      writer.writeInt(appVersion);
+      writer.writeInt(valueCount);
+      writer.writeLong(journalLength);
+      writer.writeInt(redundantOpCount + lruEntries.size());
+      writer.writeInt(lruEntries.size());
+      for (Entry entry : lruEntries.values()) {
+        if (entry.currentEditor != null) {
+          writeRecord(writer, DIRTY_RECORD, entry.key, null);
+        } else {
+          writeRecord(writer, CLEAN_RECORD, entry.key, entry);
+        }
+      }
+    } finally {
+      writer.close();
+    }
+
+    fileSystem.rename(snapshotFileTmp, snapshotFile);
+    journalTailCount = 0;
+  }
+
+  /**
+   * We only write a snapshot when the journal records since the last one are at least a quarter as
+   * many as the entries, and there are at least 2000 of them.
+   */
+  private boolean snapshotRequired() {
+    final int snapshotThreshold = 2000;
+    return binaryJournal
+        && journalTailCount >= snapshotThreshold
+        && journalTailCount >= lruEntries.size() / 4;
+  }
+
+  private void readJournalRecord(BufferedSource source) throws IOException {
+    int state = source.readByte();
+    String key = readKey(source);
+    long[] lengths = null;
+    if (state == CLEAN_RECORD) {
+      lengths = new long[valueCount];
+      for (int i = 0; i < valueCount; i++) {
+        lengths[i] = readVarLong(source);
+      }
+    }
+
+    if (state == REMOVE_RECORD) {
+      lruEntries.remove(key);
+      return;
+    }
+
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      lruEntries.put(key, entry);
+    }
+
+    if (state == CLEAN_RECORD) {
+      entry.readable = true;
+      entry.currentEditor = null;
+      System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+    } else if (state == DIRTY_RECORD) {
+      entry.currentEditor = new Editor(entry);
+    } else if (state == READ_RECORD) {
+      // This work was already done by calling lruEntries.get().
+    } else {
+      throw new IOException("unexpected journal record: " + state + " " + key);
+    }
+  }
+
   private BufferedSink newJournalWriter() throws FileNotFoundException {
     Sink fileSink = fileSystem.appendingSink(journalFile);
     Sink faultHidingSink = new FaultHidingSink(fileSink) {
@@ -350,6 +563,7 @@ public final class DiskLruCache implements Closeable, Flushable {
    */
   private void processJournal() throws IOException {
     fileSystem.delete(journalFileTmp);
+    fileSystem.delete(snapshotFileTmp);
     for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
       Entry entry = i.next();
       if (entry.currentEditor == null) {
@@ -376,24 +590,29 @@ public final class DiskLruCache implements Closeable, Flushable {
       journalWriter.close();
     }
 
+    // The snapshot describes a prefix of the old journal; it is meaningless for the new one.
+    fileSystem.delete(snapshotFile);
+    journalTailCount = 0;
+
     BufferedSink writer = Okio.buffer(fileSystem.sink(journalFileTmp));
     try {
       writer.writeUtf8(MAGIC).writeByte('\n');
-      writer.writeUtf8(VERSION_1).writeByte('\n');
-      writer.writeDecimalLong(appVersion).writeByte('\n');
-      writer.writeDecimalLong(valueCount).writeByte('\n');
-      writer.writeByte('\n');
+      if (binaryJournal) {
+        writer.writeUtf8(VERSION_2).writeByte('\n');
+        writer.writeInt(appVersion);
+        writer.writeInt(valueCount);
+      } else {
+        writer.writeUtf8(VERSION_1).writeByte('\n');
+        writer.writeDecimalLong(appVersion).writeByte('\n');
+        writer.writeDecimalLong(valueCount).writeByte('\n');
+        writer.writeByte('\n');
+      }
 
       for (Entry entry : lruEntries.values()) {
         if (entry.currentEditor != null) {
-          writer.writeUtf8(DIRTY).writeByte(' ');
-          writer.writeUtf8(entry.key);
-          writer.writeByte('\n');
+          writeRecord(writer, DIRTY_RECORD, entry.key, null);
         } else {
-          writer.writeUtf8(CLEAN).writeByte(' ');
-          writer.writeUtf8(entry.key);
-          entry.writeLengths(writer);
-          writer.writeByte('\n');
+          writeRecord(writer, CLEAN_RECORD, entry.key, entry);
         }
       }
     } finally {
@@ -426,8 +645,8 @@ public final class DiskLruCache implements Closeable, Flushable {
     if (snapshot == null) return null;
 
     redundantOpCount++;
-    journalWriter.writeUtf8(READ).writeByte(' ').writeUtf8(key).writeByte('\n');
-    if (journalRebuildRequired()) {
+    writeRecord(journalWriter, READ_RECORD, key, null);
+    if (journalRebuildRequired() || snapshotRequired()) {
       executor.execute(cleanupRunnable);
     }
 
@@ -456,7 +675,7 @@ public final class DiskLruCache implements Closeable, Flushable {
     }
 
     // Flush the journal before creating files to prevent file leaks.
-    journalWriter.writeUtf8(DIRTY).writeByte(' ').writeUtf8(key).writeByte('\n');
+    writeRecord(journalWriter, DIRTY_RECORD, key, null);
     journalWriter.flush();
 
     if (hasJournalErrors) {
@@ -472,6 +691,14 @@ public final class DiskLruCache implements Closeable, Flushable {
     return editor;
   }
 
+  /** Returns the keys of this cache's entries, including entries that are being written. */
+  public synchronized Set<String> keys() throws IOException {
+    initialize();
+
+    checkNotClosed();
+    return new LinkedHashSet<>(lruEntries.keySet());
+  }
+
   /** Returns the directory where this cache stores its data. */
   public File getDirectory() {
     return directory;
@@ -544,26 +771,119 @@ public final class DiskLruCache implements Closeable, Flushable {
     entry.currentEditor = null;
     if (entry.readable | success) {
       entry.readable = true;
-      journalWriter.writeUtf8(CLEAN).writeByte(' ');
-      journalWriter.writeUtf8(entry.key);
-      entry.writeLengths(journalWriter);
-      journalWriter.writeByte('\n');
+      writeRecord(journalWriter, CLEAN_RECORD, entry.key, entry);
       if (success) {
         entry.sequenceNumber = nextSequenceNumber++;
       }
     } else {
       lruEntries.remove(entry.key);
-      journalWriter.writeUtf8(REMOVE).writeByte(' ');
-      journalWriter.writeUtf8(entry.key);
-      journalWriter.writeByte('\n');
+      writeRecord(journalWriter, REMOVE_RECORD, entry.key, null);
     }
     journalWriter.flush();
 
-    if (size > maxSize || journalRebuildRequired()) {
+    if (size > maxSize || journalRebuildRequired() || snapshotRequired()) {
       executor.execute(cleanupRunnable);
     }
   }
 
+  /**
+   * Writes a journal record in this cache's format. CLEAN records also write {@code entry}'s
+   * lengths.
+   */
+  private void writeRecord(BufferedSink sink, int state, String key, Entry entry)
+      throws IOException {
+    if (sink == journalWriter) journalTailCount++;
+
+    if (binaryJournal) {
+      sink.writeByte(state);
+      writeKey(sink, key);
+      if (state == CLEAN_RECORD) {
+        for (long length : entry.lengths) {
+          writeVarLong(sink, length);
+        }
+      }
+      return;
+    }
+
+    switch (state) {
+      case CLEAN_RECORD:
+        sink.writeUtf8(CLEAN).writeByte(' ').writeUtf8(key);
+        entry.writeLengths(sink);
+        break;
+      case DIRTY_RECORD:
+        sink.writeUtf8(DIRTY).writeByte(' ').writeUtf8(key);
+        break;
+      case REMOVE_RECORD:
+        sink.writeUtf8(REMOVE).writeByte(' ').writeUtf8(key);
+        break;
+      case READ_RECORD:
+        sink.writeUtf8(READ).writeByte(' ').writeUtf8(key);
+        break;
+      default:
+        throw new AssertionError();
+    }
+    sink.writeByte('\n');
+  }
+
+  /** Writes {@code key}, packing it two digits per byte if it is an even-length hex string. */
+  static void writeKey(BufferedSink sink, String key) throws IOException {
+    if (!isHexKey(key)) {
+      sink.writeByte(key.length());
+      sink.writeUtf8(key);
+      return;
+    }
+
+    sink.writeByte(0x80 | (key.length() / 2));
+    for (int i = 0; i < key.length(); i += 2) {
+      sink.writeByte(Character.digit(key.charAt(i), 16) << 4
+          | Character.digit(key.charAt(i + 1), 16));
+    }
+  }
+
+  static String readKey(BufferedSource source) throws IOException {
+    int header = source.readByte() & 0xff;
+    if ((header & 0x80) == 0) {
+      return source.readUtf8(header);
+    }
+
+    int byteCount = header & 0x7f;
+    char[] chars = new char[byteCount * 2];
+    for (int i = 0; i < byteCount; i++) {
+      int b = source.readByte() & 0xff;
+      chars[i * 2] = Character.forDigit(b >> 4, 16);
+      chars[i * 2 + 1] = Character.forDigit(b & 0xf, 16);
+    }
+    return new String(chars);
+  }
+
+  private static boolean isHexKey(String key) {
+    if ((key.length() & 1) != 0) return false;
+    for (int i = 0, length = key.length(); i < length; i++) {
+      char c = key.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+    }
+    return true;
+  }
+
+  /** Writes {@code value} as an unsigned base-128 varint, 7 bits per byte, low bits first. */
+  public static void writeVarLong(BufferedSink sink, long value) throws IOException {
+    while ((value & ~0x7fL) != 0L) {
+      sink.writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    sink.writeByte((int) value);
+  }
+
+  public static long readVarLong(BufferedSource source) throws IOException {
+    long result = 0L;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = source.readByte();
+      result |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+    throw new IOException("malformed varint");
+  }
+
   /**
    * We only rebuild the journal when it will halve the size of the journal and eliminate at least
    * 2000 ops.
@@ -602,7 +922,7 @@ public final class DiskLruCache implements Closeable, Flushable {
     }
 
     redundantOpCount++;
-    journalWriter.writeUtf8(REMOVE).writeByte(' ').writeUtf8(entry.key).writeByte('\n');
+    writeRecord(journalWriter, REMOVE_RECORD, entry.key, null);
     lruEntries.remove(entry.key);
 
     if (journalRebuildRequired()) {
@@ -645,6 +965,13 @@ public final class DiskLruCache implements Closeable, Flushable {
       }
     }
     trimToSize();
+    if (snapshotRequired()) {
+      try {
+        writeSnapshot();
+      } catch (IOException ignored) {
+        // The snapshot is only an optimization. The journal is still complete.
+      }
+    }
     journalWriter.close();
     journalWriter = null;
     closed = true;
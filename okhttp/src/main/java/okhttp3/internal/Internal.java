@@ -59,6 +59,9 @@ public abstract class Internal {
 
   public abstract boolean connectionBecameIdle(ConnectionPool pool, RealConnection connection);
 
+  public abstract void connectionAcquired(
+      ConnectionPool pool, RealConnection connection, long acquireDurationNs);
+
   public abstract RouteDatabase routeDatabase(ConnectionPool connectionPool);
 
   public abstract void apply(ConnectionSpec tlsConfiguration, SSLSocket sslSocket,
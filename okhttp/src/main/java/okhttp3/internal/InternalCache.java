@@ -15,6 +15,7 @@
  */
 package okhttp3.internal;
 
+import java.io.Closeable;
 import java.io.IOException;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -48,4 +49,21 @@ public interface InternalCache {
 
   /** Track an HTTP response being satisfied with {@code cacheStrategy}. */
   void trackResponse(CacheStrategy cacheStrategy);
+
+  /**
+   * Called before fetching {@code request} from the network after a cache miss. Returns a lease
+   * that the caller must close once it has stored or abandoned the response. Returns null if the
+   * caller waited, for at most {@code timeoutMillis}, for a concurrent fetch of the same response;
+   * the caller should consult the cache again. Implementations that don't coalesce requests may
+   * return a lease that does nothing.
+   */
+  Closeable beginFetch(Request request, long timeoutMillis) throws IOException;
+
+  /**
+   * Called before revalidating {@code request} in the background after serving it stale. Returns a
+   * lease that the caller must close once the revalidation completes, or null if a revalidation of
+   * the same response is already in flight. Implementations that don't track revalidations may
+   * return a lease that does nothing.
+   */
+  Closeable beginRevalidation(Request request) throws IOException;
 }
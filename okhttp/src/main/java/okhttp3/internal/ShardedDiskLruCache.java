@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import okhttp3.internal.io.FileSystem;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * A cache that spreads its entries across independent {@link DiskLruCache} shards, chosen by the
+ * hash of each key. Every shard has its own journal, LRU order and lock, so operations on keys in
+ * different shards don't contend with each other.
+ *
+ * <p>The maximum size is divided evenly between the shards and each shard evicts its own least
+ * recently used entries. A cache with a single shard stores its journal and values directly in its
+ * directory, exactly like a {@link DiskLruCache}. Caches with more shards use a numbered
+ * subdirectory for each, and record their shard count in a {@code shards} file.
+ *
+ * <p>Keys are assigned to shards by the shard count, so entries written with one count can't be
+ * found with another. Opening a directory with a different shard count than it was written with
+ * deletes its contents rather than leaving them behind as unreachable files.
+ *
+ * <p>Shards use the compact binary journal format, migrating any text journal they find.
+ */
+public final class ShardedDiskLruCache implements Closeable, Flushable {
+  static final String SHARDS_FILE = "shards";
+
+  private final FileSystem fileSystem;
+  private final File directory;
+  private final DiskLruCache[] shards;
+
+  /** True once the directory's layout has been checked against the shard count. */
+  private volatile boolean layoutVerified;
+
+  ShardedDiskLruCache(FileSystem fileSystem, File directory, DiskLruCache[] shards) {
+    this.fileSystem = fileSystem;
+    this.directory = directory;
+    this.shards = shards;
+  }
+
+  /**
+   * Create a cache which will reside in {@code directory}. Like {@link DiskLruCache#create}, each
+   * shard is lazily initialized on first access.
+   *
+   * @param shardCount the number of independent caches to spread entries across. Must be positive
+   *     and not greater than {@code maxSize}.
+   */
+  public static ShardedDiskLruCache create(FileSystem fileSystem, File directory, int appVersion,
+      int valueCount, long maxSize, int shardCount) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    if (valueCount <= 0) {
+      throw new IllegalArgumentException("valueCount <= 0");
+    }
+    if (shardCount <= 0 || shardCount > maxSize) {
+      throw new IllegalArgumentException("shardCount out of range: " + shardCount);
+    }
+
+    // Use a single background thread to evict entries from all shards.
+    Executor executor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp DiskLruCache", true));
+
+    DiskLruCache[] shards = new DiskLruCache[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      File shardDirectory = shardCount == 1
+          ? directory
+          : new File(directory, Integer.toString(i));
+      shards[i] = new DiskLruCache(fileSystem, shardDirectory, appVersion, valueCount,
+          shardMaxSize(maxSize, shardCount, i), executor, true);
+    }
+    return new ShardedDiskLruCache(fileSystem, directory, shards);
+  }
+
+  /** Returns shard {@code index}'s part of {@code maxSize}, spreading any remainder. */
+  private static long shardMaxSize(long maxSize, int shardCount, int index) {
+    return maxSize / shardCount + (index < maxSize % shardCount ? 1 : 0);
+  }
+
+  private DiskLruCache shard(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return shards[(h & 0x7fffffff) % shards.length];
+  }
+
+  /** Returns the number of shards in this cache. */
+  public int shardCount() {
+    return shards.length;
+  }
+
+  public void initialize() throws IOException {
+    verifyLayout();
+    for (DiskLruCache shard : shards) {
+      shard.initialize();
+    }
+  }
+
+  /**
+   * Deletes the contents of the directory if they were written with a different number of shards.
+   * This runs before any shard reads its journal.
+   */
+  private void verifyLayout() throws IOException {
+    if (layoutVerified) return;
+    synchronized (this) {
+      if (layoutVerified) return;
+
+      int storedShardCount = storedShardCount();
+      if (storedShardCount != -1 && storedShardCount != shards.length) {
+        Platform.get().logW("Deleting the contents of " + directory + ": it has "
+            + storedShardCount + " shards but was opened with " + shards.length);
+        fileSystem.deleteContents(directory);
+        storedShardCount = -1;
+      }
+
+      if (storedShardCount == -1 && shards.length > 1) {
+        BufferedSink sink = Okio.buffer(fileSystem.sink(new File(directory, SHARDS_FILE)));
+        try {
+          sink.writeDecimalLong(shards.length).writeByte('\n');
+        } finally {
+          sink.close();
+        }
+      }
+
+      layoutVerified = true;
+    }
+  }
+
+  /**
+   * Returns the number of shards that the directory was written with, 0 if that is unknown, or -1
+   * if the directory holds no cache.
+   */
+  private int storedShardCount() throws IOException {
+    File shardsFile = new File(directory, SHARDS_FILE);
+    if (fileSystem.exists(shardsFile)) {
+      BufferedSource source = Okio.buffer(fileSystem.source(shardsFile));
+      try {
+        return (int) source.readDecimalLong();
+      } catch (NumberFormatException e) {
+        return 0;
+      } finally {
+        source.close();
+      }
+    }
+
+    // Only a single shard stores its journal directly in the directory.
+    if (fileSystem.exists(new File(directory, DiskLruCache.JOURNAL_FILE))
+        || fileSystem.exists(new File(directory, DiskLruCache.JOURNAL_FILE_BACKUP))) {
+      return 1;
+    }
+    return -1;
+  }
+
+  /** Returns a snapshot of the entry named {@code key}. See {@link DiskLruCache#get}. */
+  public DiskLruCache.Snapshot get(String key) throws IOException {
+    verifyLayout();
+    return shard(key).get(key);
+  }
+
+  /** Returns an editor for the entry named {@code key}. See {@link DiskLruCache#edit}. */
+  public DiskLruCache.Editor edit(String key) throws IOException {
+    verifyLayout();
+    return shard(key).edit(key);
+  }
+
+  /** Drops the entry for {@code key}. See {@link DiskLruCache#remove}. */
+  public boolean remove(String key) throws IOException {
+    verifyLayout();
+    return shard(key).remove(key);
+  }
+
+  /** Returns the keys of the entries in all shards. See {@link DiskLruCache#keys}. */
+  public Set<String> keys() throws IOException {
+    verifyLayout();
+    Set<String> result = new LinkedHashSet<>();
+    for (DiskLruCache shard : shards) {
+      result.addAll(shard.keys());
+    }
+    return result;
+  }
+
+  /** Returns the directory where this cache stores its data. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /** Returns the maximum number of bytes that all shards together should use to store data. */
+  public long getMaxSize() {
+    long result = 0L;
+    for (DiskLruCache shard : shards) {
+      result += shard.getMaxSize();
+    }
+    return result;
+  }
+
+  /** Changes the maximum number of bytes the cache can store, dividing it between the shards. */
+  public void setMaxSize(long maxSize) {
+    if (maxSize < shards.length) throw new IllegalArgumentException("maxSize < shardCount");
+    for (int i = 0; i < shards.length; i++) {
+      shards[i].setMaxSize(shardMaxSize(maxSize, shards.length, i));
+    }
+  }
+
+  /** Returns the number of bytes currently being used to store the values in all shards. */
+  public long size() throws IOException {
+    verifyLayout();
+    long result = 0L;
+    for (DiskLruCache shard : shards) {
+      result += shard.size();
+    }
+    return result;
+  }
+
+  public boolean isClosed() {
+    return shards[0].isClosed();
+  }
+
+  @Override public void flush() throws IOException {
+    for (DiskLruCache shard : shards) {
+      shard.flush();
+    }
+  }
+
+  /** Closes every shard, even if closing one of them fails. */
+  @Override public void close() throws IOException {
+    IOException thrown = null;
+    for (DiskLruCache shard : shards) {
+      try {
+        shard.close();
+      } catch (IOException e) {
+        if (thrown == null) thrown = e;
+      }
+    }
+    if (thrown != null) throw thrown;
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete all files in the cache
+   * directory including files that weren't created by the cache.
+   */
+  public void delete() throws IOException {
+    close();
+    fileSystem.deleteContents(directory);
+    layoutVerified = false;
+  }
+
+  /** Deletes all stored values from every shard. See {@link DiskLruCache#evictAll}. */
+  public void evictAll() throws IOException {
+    verifyLayout();
+    for (DiskLruCache shard : shards) {
+      shard.evictAll();
+    }
+  }
+
+  /**
+   * Returns an iterator over the entries of each shard in turn. See {@link DiskLruCache#snapshots}
+   * for its guarantees. The returned iterator supports {@link Iterator#remove}.
+   */
+  public Iterator<DiskLruCache.Snapshot> snapshots() throws IOException {
+    initialize();
+    return new Iterator<DiskLruCache.Snapshot>() {
+      int nextShard = 0;
+      Iterator<DiskLruCache.Snapshot> delegate;
+
+      /** The shard iterator that returned the last snapshot. Null if removal is illegal. */
+      Iterator<DiskLruCache.Snapshot> removeDelegate;
+
+      @Override public boolean hasNext() {
+        while (delegate == null || !delegate.hasNext()) {
+          if (nextShard == shards.length) return false;
+          try {
+            delegate = shards[nextShard++].snapshots();
+          } catch (IOException e) {
+            // Like DiskLruCache's iterator, fail silently by omitting this shard's entries.
+            delegate = null;
+          }
+        }
+        return true;
+      }
+
+      @Override public DiskLruCache.Snapshot next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        removeDelegate = delegate;
+        return delegate.next();
+      }
+
+      @Override public void remove() {
+        if (removeDelegate == null) throw new IllegalStateException("remove() before next()");
+        removeDelegate.remove();
+        removeDelegate = null;
+      }
+    };
+  }
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
 import java.net.IDN;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -259,6 +260,37 @@ public final class Util {
     };
   }
 
+  /**
+   * Returns a thread factory that creates virtual threads if {@code virtual} is true and this JVM
+   * supports them. Otherwise this returns a factory for platform threads. Virtual threads are
+   * always daemon threads.
+   */
+  public static ThreadFactory threadFactory(String name, boolean daemon, boolean virtual) {
+    if (virtual) {
+      ThreadFactory virtualThreadFactory = virtualThreadFactory(name);
+      if (virtualThreadFactory != null) return virtualThreadFactory;
+    }
+    return threadFactory(name, daemon);
+  }
+
+  /**
+   * Returns a factory for virtual threads named {@code name}, or null if this JVM doesn't support
+   * virtual threads. This uses reflection because virtual threads aren't in the APIs we compile
+   * against.
+   */
+  public static ThreadFactory virtualThreadFactory(String name) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException ignored) {
+      return null;
+    } catch (InvocationTargetException ignored) {
+      return null; // Virtual threads are a preview feature that isn't enabled on this JVM.
+    }
+  }
+
   /**
    * Returns an array containing containing only elements found in {@code first}  and also in {@code
    * second}. The returned elements are in the same order as in {@code first}.
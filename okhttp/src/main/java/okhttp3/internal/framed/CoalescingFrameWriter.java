@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.framed;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+/**
+ * A frame writer that coalesces the frames of concurrent writers into fewer socket writes.
+ *
+ * <p>Many frames, like {@code RST_STREAM}, {@code SETTINGS}, {@code PING} and {@code
+ * WINDOW_UPDATE}, flush the socket as soon as they're written. When many streams share a connection
+ * this makes a tiny write and TLS record for each of them. This writer defers such a flush while
+ * another thread is waiting to write a frame; the last writer in the queue flushes the frames of
+ * everyone before it in a single write. A flush is never deferred for more than {@link
+ * #MAX_FLUSH_DELAY_NANOS}, and complete segments are written to the socket without waiting.
+ *
+ * <p>A single writer pays no extra latency: when nobody else is waiting its flushes happen
+ * immediately, exactly as they would without this stage.
+ *
+ * <p>Writes are guarded by this writer's lock. Callers that hold it across several calls with
+ * {@link #lock} and {@link #unlock} see them as one write. Their flushes are deferred until they
+ * release it, and any thread queued for the lock counts as a waiting writer.
+ */
+final class CoalescingFrameWriter implements FrameWriter {
+  /** The longest a flush may be deferred because other writers keep arriving. */
+  static final long MAX_FLUSH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final FrameWriter delegate;
+  private final DeferredFlushSink sink;
+
+  /** Guards writes. Threads queued for it are the writers that may take over a deferred flush. */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** The time of the first deferred flush that hasn't been written yet, or -1 for none. */
+  private long deferredSinceNanos = -1L;
+
+  CoalescingFrameWriter(Variant variant, BufferedSink sink, boolean client) {
+    this.sink = new DeferredFlushSink(sink);
+    this.delegate = variant.newWriter(Okio.buffer(this.sink), client);
+  }
+
+  /** Returns the number of threads waiting to write a frame. Visible for testing. */
+  int waitingWriters() {
+    return lock.getQueueLength();
+  }
+
+  /** Acquires this writer so that the caller's frames aren't interleaved with others. */
+  void lock() {
+    lock.lock();
+  }
+
+  /**
+   * Releases this writer. When the caller's outermost hold is released, a deferred flush is
+   * written unless another writer is queued to take it over.
+   */
+  void unlock() throws IOException {
+    try {
+      if (lock.getHoldCount() == 1) flushIfDeferred();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override public void connectionPreface() throws IOException {
+    lock();
+    try {
+      delegate.connectionPreface();
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void ackSettings(Settings peerSettings) throws IOException {
+    lock();
+    try {
+      delegate.ackSettings(peerSettings);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void pushPromise(int streamId, int promisedStreamId,
+      List<Header> requestHeaders) throws IOException {
+    lock();
+    try {
+      delegate.pushPromise(streamId, promisedStreamId, requestHeaders);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void flush() throws IOException {
+    lock();
+    try {
+      delegate.flush();
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void synStream(boolean outFinished, boolean inFinished, int streamId,
+      int associatedStreamId, int weight, List<Header> headerBlock) throws IOException {
+    lock();
+    try {
+      delegate.synStream(outFinished, inFinished, streamId, associatedStreamId, weight,
+          headerBlock);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void synReply(boolean outFinished, int streamId, List<Header> headerBlock)
+      throws IOException {
+    lock();
+    try {
+      delegate.synReply(outFinished, streamId, headerBlock);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void headers(int streamId, List<Header> headerBlock) throws IOException {
+    lock();
+    try {
+      delegate.headers(streamId, headerBlock);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void rstStream(int streamId, ErrorCode errorCode) throws IOException {
+    lock();
+    try {
+      delegate.rstStream(streamId, errorCode);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void priority(int streamId, int streamDependency, int weight,
+      boolean exclusive) throws IOException {
+    lock();
+    try {
+      delegate.priority(streamId, streamDependency, weight, exclusive);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public int maxDataLength() {
+    return delegate.maxDataLength();
+  }
+
+  @Override public void data(boolean outFinished, int streamId, Buffer source, int byteCount)
+      throws IOException {
+    lock();
+    try {
+      delegate.data(outFinished, streamId, source, byteCount);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void settings(Settings okHttpSettings) throws IOException {
+    lock();
+    try {
+      delegate.settings(okHttpSettings);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void ping(boolean ack, int payload1, int payload2) throws IOException {
+    lock();
+    try {
+      delegate.ping(ack, payload1, payload2);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void goAway(int lastGoodStreamId, ErrorCode errorCode, byte[] debugData)
+      throws IOException {
+    lock();
+    try {
+      delegate.goAway(lastGoodStreamId, errorCode, debugData);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void windowUpdate(int streamId, long windowSizeIncrement) throws IOException {
+    lock();
+    try {
+      delegate.windowUpdate(streamId, windowSizeIncrement);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    lock.lock();
+    try {
+      deferredSinceNanos = -1L;
+      delegate.close(); // Closing the sink flushes it.
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes a deferred flush unless another writer is waiting to take it over. Writers that keep
+   * arriving can't defer it for longer than {@link #MAX_FLUSH_DELAY_NANOS}.
+   */
+  private void flushIfDeferred() throws IOException {
+    if (deferredSinceNanos != -1L) sink.flush();
+  }
+
+  /** Forwards writes to the socket's buffer, deferring flushes that another writer can make. */
+  private final class DeferredFlushSink extends ForwardingSink {
+    DeferredFlushSink(BufferedSink delegate) {
+      super(delegate);
+    }
+
+    @Override public void flush() throws IOException {
+      if (lock.hasQueuedThreads()) {
+        long now = System.nanoTime();
+        if (deferredSinceNanos == -1L) deferredSinceNanos = now;
+        if (now - deferredSinceNanos < MAX_FLUSH_DELAY_NANOS) return;
+      }
+      deferredSinceNanos = -1L;
+      super.flush();
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.framed;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import okhttp3.internal.NamedRunnable;
+import okio.Buffer;
+
+/**
+ * Outbound frames of a connection, written to the socket by a dedicated writer thread.
+ *
+ * <p>Callers enqueue frames and return without waiting for the socket, so a slow write doesn't
+ * block the callers of every other stream. This queues the {@code HEADERS} frames that open
+ * streams and the {@code RST_STREAM} frames that cancel them, which go ahead of any DATA frame in
+ * the order they were enqueued. Other frames are written by their callers.
+ *
+ * <p>Each stream has its own queue of DATA frames, and streams with queued
+ * frames share the connection in proportion to their HTTP/2 weights. This is weighted fair
+ * queueing: each stream has a virtual time that advances by the size of each frame it sends divided
+ * by its weight, and the writer always serves the stream with the earliest virtual time. Streams
+ * of equal weight take turns, and a large upload doesn't starve the streams that start after it.
+ * The writer flushes the socket whenever it runs out of frames.
+ *
+ * <p>Frames are already limited by the flow-control windows. In addition, callers block while
+ * more than {@link #MAX_QUEUED_BYTES} are queued, which bounds the memory used when the peer
+ * grants very large windows.
+ */
+final class DataFrameQueue extends NamedRunnable {
+  static final long MAX_QUEUED_BYTES = 1024 * 1024;
+
+  /** Charge each frame for its header so that streams of empty frames still take turns. */
+  private static final int FRAME_HEADER_SIZE = 9;
+
+  private static final Comparator<StreamFrames> EARLIEST_VIRTUAL_TIME =
+      new Comparator<StreamFrames>() {
+        @Override public int compare(StreamFrames a, StreamFrames b) {
+          if (a.virtualTime != b.virtualTime) return a.virtualTime < b.virtualTime ? -1 : 1;
+          return a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+        }
+      };
+
+  private final FramedConnection connection;
+  private final FrameWriter frameWriter;
+
+  /** Frames that are written before any DATA frame, in order. Guarded by this. */
+  private final ArrayDeque<ControlFrame> controlFrames = new ArrayDeque<>();
+
+  /** The queued frames of each stream. Guarded by this. */
+  private final Map<Integer, StreamFrames> streams = new HashMap<>();
+
+  /** Streams with queued frames, ordered by when they'll be served. Guarded by this. */
+  private final PriorityQueue<StreamFrames> ready =
+      new PriorityQueue<>(11, EARLIEST_VIRTUAL_TIME);
+
+  /** The virtual time of the most recently served stream. Guarded by this. */
+  private long virtualTime;
+
+  /** Breaks ties between streams with the same virtual time. Guarded by this. */
+  private long nextSequence;
+
+  /** The number of payload bytes queued but not yet written. Guarded by this. */
+  private long queuedBytes;
+
+  private boolean closed;
+
+  DataFrameQueue(FramedConnection connection, FrameWriter frameWriter, String hostName) {
+    super("OkHttp %s Writer", hostName);
+    this.connection = connection;
+    this.frameWriter = frameWriter;
+  }
+
+  /**
+   * Enqueues a DATA frame for {@code streamId} with the contents of {@code data}. The stream's
+   * {@code weight} is in [1..256]. This blocks only while the queue is full.
+   */
+  synchronized void enqueue(int streamId, int weight, boolean outFinished, Buffer data)
+      throws IOException {
+    try {
+      while (queuedBytes >= MAX_QUEUED_BYTES && !closed) {
+        wait(); // Wait until the writer catches up.
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+    if (closed) throw new IOException("connection closed");
+
+    StreamFrames frames = streams.get(streamId);
+    if (frames == null) {
+      frames = new StreamFrames(streamId);
+      frames.virtualTime = virtualTime;
+      frames.sequence = nextSequence++;
+      streams.put(streamId, frames);
+      ready.add(frames);
+    }
+    frames.weight = weight;
+    frames.add(new Frame(streamId, outFinished, data));
+    queuedBytes += data.size();
+    notifyAll();
+  }
+
+  /**
+   * Enqueues a {@code HEADERS} frame that opens {@code streamId} with {@code weight}. Streams must
+   * be opened in the order of their IDs, so callers must hold a lock that orders these calls.
+   */
+  synchronized void enqueueSynStream(final boolean outFinished, final boolean inFinished,
+      final int streamId, final List<Header> headerBlock, final int weight) throws IOException {
+    enqueueControl(new ControlFrame() {
+      @Override void writeTo(FrameWriter writer) throws IOException {
+        writer.synStream(outFinished, inFinished, streamId, 0, weight, headerBlock);
+      }
+    });
+  }
+
+  /**
+   * Drops the DATA frames queued for {@code streamId} and enqueues a {@code RST_STREAM} frame for
+   * it. A frame that the writer has already taken is written before the reset; no frame of the
+   * stream is written after it. Returns the number of payload bytes dropped.
+   */
+  synchronized long reset(final int streamId, final ErrorCode errorCode) throws IOException {
+    long result = discard(streamId);
+    enqueueControl(new ControlFrame() {
+      @Override void writeTo(FrameWriter writer) throws IOException {
+        writer.rstStream(streamId, errorCode);
+      }
+    });
+    return result;
+  }
+
+  private void enqueueControl(ControlFrame frame) throws IOException {
+    if (closed) throw new IOException("connection closed");
+    controlFrames.addLast(frame);
+    notifyAll();
+  }
+
+  /**
+   * Drops the DATA frames queued for {@code streamId}. Returns the number of payload bytes dropped.
+   */
+  synchronized long discard(int streamId) {
+    StreamFrames frames = streams.remove(streamId);
+    if (frames == null) return 0L;
+    ready.remove(frames);
+    queuedBytes -= frames.byteCount;
+    notifyAll();
+    return frames.byteCount;
+  }
+
+  /** Returns true if no frames are waiting to be written. */
+  synchronized boolean isEmpty() {
+    return ready.isEmpty() && controlFrames.isEmpty();
+  }
+
+  /** Drops all queued frames and stops the writer thread. */
+  synchronized void close() {
+    closed = true;
+    controlFrames.clear();
+    streams.clear();
+    ready.clear();
+    queuedBytes = 0L;
+    notifyAll();
+  }
+
+  @Override protected void execute() {
+    try {
+      while (true) {
+        ControlFrame controlFrame = null;
+        Frame frame = null;
+        synchronized (this) {
+          while (isEmpty() && !closed) {
+            wait();
+          }
+          if (closed) return;
+          if (!controlFrames.isEmpty()) {
+            controlFrame = controlFrames.removeFirst();
+          } else {
+            frame = next();
+          }
+        }
+
+        // Write without holding this so that callers can enqueue frames meanwhile.
+        if (controlFrame != null) {
+          controlFrame.writeTo(frameWriter);
+        } else {
+          frameWriter.data(frame.outFinished, frame.streamId, frame.data, (int) frame.data.size());
+        }
+
+        if (isEmpty()) frameWriter.flush();
+      }
+    } catch (InterruptedException e) {
+      // The connection is going away.
+    } catch (IOException e) {
+      try {
+        connection.close(ErrorCode.PROTOCOL_ERROR, ErrorCode.PROTOCOL_ERROR);
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /** Takes the next frame, charging its stream for it. */
+  private Frame next() {
+    StreamFrames frames = ready.remove();
+    Frame result = frames.frames.removeFirst();
+    frames.byteCount -= result.data.size();
+    queuedBytes -= result.data.size();
+    virtualTime = frames.virtualTime;
+    frames.virtualTime += (FRAME_HEADER_SIZE + result.data.size()) * 256 / frames.weight;
+    if (frames.frames.isEmpty()) {
+      streams.remove(frames.streamId);
+    } else {
+      frames.sequence = nextSequence++;
+      ready.add(frames);
+    }
+    notifyAll();
+    return result;
+  }
+
+  /** A frame other than DATA, written in the order it was enqueued. */
+  private abstract static class ControlFrame {
+    abstract void writeTo(FrameWriter writer) throws IOException;
+  }
+
+  private static final class StreamFrames {
+    final int streamId;
+    final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    long byteCount;
+    int weight = FramedStream.DEFAULT_WEIGHT;
+    long virtualTime;
+    long sequence;
+
+    StreamFrames(int streamId) {
+      this.streamId = streamId;
+    }
+
+    void add(Frame frame) {
+      frames.addLast(frame);
+      byteCount += frame.data.size();
+    }
+  }
+
+  private static final class Frame {
+    final int streamId;
+    final boolean outFinished;
+    final Buffer data;
+
+    Frame(int streamId, boolean outFinished, Buffer data) {
+      this.streamId = streamId;
+      this.outFinished = outFinished;
+      this.data = data;
+    }
+  }
+}
@@ -48,8 +48,13 @@ public interface FrameWriter extends Closeable {
   /** SPDY/3 only. */
   void flush() throws IOException;
 
+  /**
+   * Opens {@code streamId}. HTTP/2 sends a {@code weight} other than {@link
+   * FramedStream#DEFAULT_WEIGHT} in the {@code HEADERS} frame itself; SPDY/3 ignores it. Use
+   * {@link #priority} to change the weight of a stream that is already open.
+   */
   void synStream(boolean outFinished, boolean inFinished, int streamId, int associatedStreamId,
-      List<Header> headerBlock) throws IOException;
+      int weight, List<Header> headerBlock) throws IOException;
 
   void synReply(boolean outFinished, int streamId, List<Header> headerBlock)
       throws IOException;
@@ -58,6 +63,16 @@ public interface FrameWriter extends Closeable {
 
   void rstStream(int streamId, ErrorCode errorCode) throws IOException;
 
+  /**
+   * HTTP/2 only. Advise the peer how to prioritize {@code streamId} relative to other streams.
+   *
+   * @param streamDependency the stream this depends on, or zero for the connection itself.
+   * @param weight relative share of the parent's resources, in [1..256].
+   * @param exclusive true to make this the sole dependency of {@code streamDependency}.
+   */
+  void priority(int streamId, int streamDependency, int weight, boolean exclusive)
+      throws IOException;
+
   /** The maximum size of bytes that may be sent in a single call to {@link #data}. */
   int maxDataLength();
 
@@ -28,6 +28,7 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -57,14 +58,15 @@ public final class FramedConnection implements Closeable {
   // Internal state of this connection is guarded by 'this'. No blocking
   // operations may be performed while holding this lock!
   //
-  // Socket writes are guarded by frameWriter.
+  // Socket writes are guarded by frameWriter's lock. It coalesces the flushes
+  // of writers that are queued behind each other.
   //
   // Socket reads are unguarded but are only made by the reader thread.
   //
-  // Certain operations (like SYN_STREAM) need to synchronize on both the
-  // frameWriter (to do blocking I/O) and this (to create streams). Such
-  // operations must synchronize on 'this' last. This ensures that we never
-  // wait for a blocking operation while holding 'this'.
+  // Certain operations (like SYN_STREAM) need to lock both the frameWriter
+  // (to do blocking I/O) and this (to create streams). Such operations must
+  // synchronize on 'this' last. This ensures that we never wait for a
+  // blocking operation while holding 'this'.
 
   private static final ExecutorService executor = new ThreadPoolExecutor(0,
       Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
@@ -104,17 +106,48 @@ public final class FramedConnection implements Closeable {
   // Visible for testing
   long unacknowledgedBytesRead = 0;
 
+  /**
+   * The number of bytes the peer may send on all streams before this connection acknowledges them.
+   * Guarded by this.
+   */
+  long connectionWindowSize;
+
   /**
    * Count of bytes that can be written on the connection before receiving a window update.
    */
   // Visible for testing
   long bytesLeftInWriteWindow;
 
+  /**
+   * Bytes written on this connection that the peer hasn't yet acknowledged with a connection-level
+   * {@code WINDOW_UPDATE}. Written while holding this; readable without it.
+   */
+  private volatile long unacknowledgedBytesWritten;
+
   /** Settings we communicate to the peer. */
   Settings okHttpSettings = new Settings();
 
   private static final int OKHTTP_CLIENT_WINDOW_SIZE = 16 * 1024 * 1024;
 
+  /** The largest stream and connection windows that auto-tuning will grow to. */
+  static final int MAX_AUTO_TUNED_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** The second half of the payload of pings that measure the bandwidth-delay product. */
+  private static final int BDP_PING_PAYLOAD = 0x62647020; // ASCII "bdp ".
+
+  /** True to grow the receive windows to fit the measured bandwidth-delay product. */
+  private final boolean windowAutoTuning;
+
+  /** The ID of the ping measuring the bandwidth-delay product, or 0 if none is in flight. */
+  private int bdpPingId;
+  private long bdpPingSentNs;
+
+  /** Bytes of data received since the in-flight bandwidth-delay product ping was sent. */
+  private long bdpBytesReceived;
+
+  /** The highest bandwidth measured, in bytes per nanosecond. */
+  private double maxBandwidth;
+
   /** Settings we receive from the peer. */
   // TODO: MWS will need to guard on this setting before attempting to push.
   final Settings peerSettings = new Settings();
@@ -122,7 +155,14 @@ public final class FramedConnection implements Closeable {
   private boolean receivedInitialPeerSettings = false;
   final Variant variant;
   final Socket socket;
-  final FrameWriter frameWriter;
+  final CoalescingFrameWriter frameWriter;
+
+  /** Writes DATA frames on a dedicated thread. Null if callers write their own frames. */
+  private final DataFrameQueue dataFrameQueue;
+  private final ThreadFactory writerThreadFactory;
+
+  /** True once the thread of {@link #dataFrameQueue} has been started. Guarded by this. */
+  private boolean writerStarted;
 
   // Visible for testing
   final Reader readerRunnable;
@@ -144,9 +184,16 @@ public final class FramedConnection implements Closeable {
     // If we are a client, set the flow control window to 16MiB.  This avoids
     // thrashing window updates every 64KiB, yet small enough to avoid blowing
     // up the heap.
-    if (builder.client) {
-      okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, OKHTTP_CLIENT_WINDOW_SIZE);
+    int streamWindowSize = builder.streamWindowSize != -1
+        ? builder.streamWindowSize
+        : builder.client ? OKHTTP_CLIENT_WINDOW_SIZE : -1;
+    if (streamWindowSize != -1) {
+      okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, streamWindowSize);
     }
+    connectionWindowSize = builder.connectionWindowSize != -1
+        ? builder.connectionWindowSize
+        : builder.client ? OKHTTP_CLIENT_WINDOW_SIZE : DEFAULT_INITIAL_WINDOW_SIZE;
+    windowAutoTuning = builder.windowAutoTuning && protocol == Protocol.HTTP_2;
 
     hostName = builder.hostName;
 
@@ -155,7 +202,8 @@ public final class FramedConnection implements Closeable {
       // Like newSingleThreadExecutor, except lazy creates the thread.
       pushExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
           new LinkedBlockingQueue<Runnable>(),
-          Util.threadFactory(String.format("OkHttp %s Push Observer", hostName), true));
+          Util.threadFactory(String.format("OkHttp %s Push Observer", hostName), true,
+              builder.virtualThreads));
       // 1 less than SPDY http://tools.ietf.org/html/draft-ietf-httpbis-http2-17#section-6.9.2
       peerSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, 65535);
       peerSettings.set(Settings.MAX_FRAME_SIZE, 0, Http2.INITIAL_MAX_FRAME_SIZE);
@@ -167,10 +215,20 @@ public final class FramedConnection implements Closeable {
     }
     bytesLeftInWriteWindow = peerSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE);
     socket = builder.socket;
-    frameWriter = variant.newWriter(builder.sink, client);
+    frameWriter = new CoalescingFrameWriter(variant, builder.sink, client);
+    if (builder.writerThread) {
+      dataFrameQueue = new DataFrameQueue(this, frameWriter, hostName);
+      writerThreadFactory = Util.threadFactory(String.format("OkHttp %s Writer", hostName), true,
+          builder.virtualThreads);
+    } else {
+      dataFrameQueue = null;
+      writerThreadFactory = null;
+    }
 
     readerRunnable = new Reader(variant.newReader(builder.source, client));
-    new Thread(readerRunnable).start(); // Not a daemon thread.
+    // Not a daemon thread, unless it is virtual.
+    Util.threadFactory(String.format("OkHttp %s", hostName), false, builder.virtualThreads)
+        .newThread(readerRunnable).start();
   }
 
   /** The protocol as selected using ALPN. */
@@ -207,6 +265,15 @@ public final class FramedConnection implements Closeable {
     return idleStartTimeNs != Long.MAX_VALUE;
   }
 
+  /**
+   * Returns the number of bytes written on this connection that the peer hasn't acknowledged yet.
+   * This is the data in flight toward the peer, limited by the connection's flow-control window.
+   * Data in flight from the peer isn't counted: this side can't observe it until it arrives.
+   */
+  public long unacknowledgedBytesWritten() {
+    return unacknowledgedBytesWritten;
+  }
+
   public synchronized int maxConcurrentStreams() {
     return peerSettings.getMaxConcurrentStreams(Integer.MAX_VALUE);
   }
@@ -230,7 +297,7 @@ public final class FramedConnection implements Closeable {
       throws IOException {
     if (client) throw new IllegalStateException("Client cannot push requests.");
     if (protocol != Protocol.HTTP_2) throw new IllegalStateException("protocol != HTTP_2");
-    return newStream(associatedStreamId, requestHeaders, out, false);
+    return newStream(associatedStreamId, requestHeaders, out, false, FramedStream.DEFAULT_WEIGHT);
   }
 
   /**
@@ -243,37 +310,53 @@ public final class FramedConnection implements Closeable {
    */
   public FramedStream newStream(List<Header> requestHeaders, boolean out, boolean in)
       throws IOException {
-    return newStream(0, requestHeaders, out, in);
+    return newStream(0, requestHeaders, out, in, FramedStream.DEFAULT_WEIGHT);
+  }
+
+  /**
+   * Returns a new locally-initiated stream with the HTTP/2 priority {@code weight}, in [1..256].
+   * Weights other than the default are sent to the peer in a {@code PRIORITY} frame.
+   */
+  public FramedStream newStream(List<Header> requestHeaders, boolean out, boolean in, int weight)
+      throws IOException {
+    return newStream(0, requestHeaders, out, in, weight);
   }
 
   private FramedStream newStream(int associatedStreamId, List<Header> requestHeaders, boolean out,
-      boolean in) throws IOException {
+      boolean in, int weight) throws IOException {
     boolean outFinished = !out;
     boolean inFinished = !in;
     FramedStream stream;
     int streamId;
 
-    synchronized (frameWriter) {
+    if (dataFrameQueue != null && associatedStreamId == 0) {
+      // Queue the headers for the writer thread. Holding this while enqueueing them keeps the
+      // streams in the order of their IDs.
       synchronized (this) {
-        if (shutdown) {
-          throw new IOException("shutdown");
-        }
-        streamId = nextStreamId;
-        nextStreamId += 2;
-        stream = new FramedStream(streamId, this, outFinished, inFinished, requestHeaders);
-        if (stream.isOpen()) {
-          streams.put(streamId, stream);
-          setIdle(false);
-        }
+        stream = createStream(requestHeaders, outFinished, inFinished, weight);
+        startWriter();
+        dataFrameQueue.enqueueSynStream(outFinished, inFinished, stream.getId(), requestHeaders,
+            weight);
+      }
+      return stream;
+    }
+
+    frameWriter.lock();
+    try {
+      synchronized (this) {
+        stream = createStream(requestHeaders, outFinished, inFinished, weight);
+        streamId = stream.getId();
       }
       if (associatedStreamId == 0) {
-        frameWriter.synStream(outFinished, inFinished, streamId, associatedStreamId,
+        frameWriter.synStream(outFinished, inFinished, streamId, associatedStreamId, weight,
             requestHeaders);
       } else if (client) {
         throw new IllegalArgumentException("client streams shouldn't have associated stream IDs");
       } else { // HTTP/2 has a PUSH_PROMISE frame.
         frameWriter.pushPromise(associatedStreamId, streamId, requestHeaders);
       }
+    } finally {
+      frameWriter.unlock();
     }
 
     if (!out) {
@@ -283,6 +366,24 @@ public final class FramedConnection implements Closeable {
     return stream;
   }
 
+  /** Allocates the ID of a new locally-initiated stream. Callers must hold this. */
+  private FramedStream createStream(List<Header> requestHeaders, boolean outFinished,
+      boolean inFinished, int weight) throws IOException {
+    if (shutdown) {
+      throw new IOException("shutdown");
+    }
+    int streamId = nextStreamId;
+    nextStreamId += 2;
+    FramedStream stream = new FramedStream(streamId, this, outFinished, inFinished,
+        requestHeaders);
+    stream.setWeight(weight);
+    if (stream.isOpen()) {
+      streams.put(streamId, stream);
+      setIdle(false);
+    }
+    return stream;
+  }
+
   void writeSynReply(int streamId, boolean outFinished, List<Header> alternating)
       throws IOException {
     frameWriter.synReply(outFinished, streamId, alternating);
@@ -299,11 +400,18 @@ public final class FramedConnection implements Closeable {
    *
    * <p>Zero {@code byteCount} writes are not subject to flow control and will not block. The only
    * use case for zero {@code byteCount} is closing a flushed output stream.
+   *
+   * <p>If this connection has a writer thread, frames are queued for it instead of being written
+   * by the caller.
    */
   public void writeData(int streamId, boolean outFinished, Buffer buffer, long byteCount)
       throws IOException {
     if (byteCount == 0) { // Empty data frames are not flow-controlled.
-      frameWriter.data(outFinished, streamId, buffer, 0);
+      if (dataFrameQueue != null) {
+        enqueueData(streamId, outFinished, new Buffer());
+      } else {
+        frameWriter.data(outFinished, streamId, buffer, 0);
+      }
       return;
     }
 
@@ -326,13 +434,42 @@ public final class FramedConnection implements Closeable {
         toWrite = (int) Math.min(byteCount, bytesLeftInWriteWindow);
         toWrite = Math.min(toWrite, frameWriter.maxDataLength());
         bytesLeftInWriteWindow -= toWrite;
+        unacknowledgedBytesWritten += toWrite;
       }
 
       byteCount -= toWrite;
-      frameWriter.data(outFinished && byteCount == 0, streamId, buffer, toWrite);
+      if (dataFrameQueue != null) {
+        Buffer frame = new Buffer();
+        frame.write(buffer, toWrite);
+        enqueueData(streamId, outFinished && byteCount == 0, frame);
+      } else {
+        frameWriter.data(outFinished && byteCount == 0, streamId, buffer, toWrite);
+      }
+    }
+  }
+
+  /** Queues a DATA frame for the writer thread. */
+  private void enqueueData(int streamId, boolean outFinished, Buffer data) throws IOException {
+    startWriter();
+    dataFrameQueue.enqueue(streamId, streamWeight(streamId), outFinished, data);
+  }
+
+  /**
+   * Starts the writer thread if it isn't running yet. It is started by the first queued frame,
+   * which is only written after the connection preface.
+   */
+  private synchronized void startWriter() {
+    if (!writerStarted) {
+      writerStarted = true;
+      writerThreadFactory.newThread(dataFrameQueue).start();
     }
   }
 
+  private synchronized int streamWeight(int streamId) {
+    FramedStream stream = streams.get(streamId);
+    return stream != null ? stream.getWeight() : FramedStream.DEFAULT_WEIGHT;
+  }
+
   /**
    * {@code delta} will be negative if a settings frame initial window is smaller than the last.
    */
@@ -353,7 +490,21 @@ public final class FramedConnection implements Closeable {
   }
 
   void writeSynReset(int streamId, ErrorCode statusCode) throws IOException {
-    frameWriter.rstStream(streamId, statusCode);
+    if (dataFrameQueue == null) {
+      frameWriter.rstStream(streamId, statusCode);
+      return;
+    }
+
+    // Queue the reset behind the stream's frames that are already being written, and drop the
+    // rest. Return their share of the connection's window.
+    startWriter();
+    long discarded = dataFrameQueue.reset(streamId, statusCode);
+    if (discarded > 0) {
+      synchronized (this) {
+        addBytesToWriteWindow(discarded);
+        unacknowledgedBytesWritten = Math.max(0L, unacknowledgedBytesWritten - discarded);
+      }
+    }
   }
 
   void writeWindowUpdateLater(final int streamId, final long unacknowledgedBytesRead) {
@@ -401,10 +552,13 @@ public final class FramedConnection implements Closeable {
   }
 
   private void writePing(boolean reply, int payload1, int payload2, Ping ping) throws IOException {
-    synchronized (frameWriter) {
+    frameWriter.lock();
+    try {
       // Observe the sent time immediately before performing I/O.
       if (ping != null) ping.send();
       frameWriter.ping(reply, payload1, payload2);
+    } finally {
+      frameWriter.unlock();
     }
   }
 
@@ -412,7 +566,108 @@ public final class FramedConnection implements Closeable {
     return pings != null ? pings.remove(id) : null;
   }
 
+  /**
+   * Counts {@code byteCount} received bytes towards the bandwidth-delay product, starting a
+   * measurement if none is in flight. A measurement lasts one round trip: from when its ping is
+   * sent until the peer acknowledges it.
+   */
+  private void receivedDataForAutoTuning(int byteCount) {
+    if (!windowAutoTuning) return;
+    int pingId;
+    synchronized (this) {
+      if (shutdown) return;
+      if (bdpPingId != 0) {
+        bdpBytesReceived += byteCount;
+        return;
+      }
+      pingId = nextPingId;
+      nextPingId += 2;
+      bdpPingId = pingId;
+      bdpPingSentNs = System.nanoTime();
+      bdpBytesReceived = 0;
+    }
+    writePingLater(false, pingId, BDP_PING_PAYLOAD, null);
+  }
+
+  /**
+   * Completes the bandwidth-delay product measurement acknowledged by {@code pingId}, growing the
+   * receive windows if they limit throughput. Returns false if it isn't a measurement's ping.
+   */
+  private boolean receivedAutoTuningPing(int pingId) {
+    int windowSize;
+    synchronized (this) {
+      if (bdpPingId == 0 || pingId != bdpPingId) return false;
+      bdpPingId = 0;
+      long sample = bdpBytesReceived;
+      double bandwidth = (double) sample / Math.max(1L, System.nanoTime() - bdpPingSentNs);
+      if (bandwidth <= maxBandwidth) return true; // Not the best connection we've seen.
+      maxBandwidth = bandwidth;
+
+      // The peer sends at most the smaller of the stream and connection windows per round trip.
+      // If it sent close to that, the window is likely the bottleneck; make room for twice what we
+      // saw.
+      long limit = Math.min(
+          okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE), connectionWindowSize);
+      if (sample < limit * 2L / 3L) return true;
+      windowSize = (int) Math.min(MAX_AUTO_TUNED_WINDOW_SIZE, sample * 2);
+      if (windowSize <= limit) return true;
+    }
+    growReceiveWindowsLater(windowSize);
+    return true;
+  }
+
+  private void growReceiveWindowsLater(final int windowSize) {
+    executor.execute(new NamedRunnable("OkHttp %s window %d", hostName, windowSize) {
+      @Override public void execute() {
+        try {
+          growReceiveWindows(windowSize);
+        } catch (IOException ignored) {
+        }
+      }
+    });
+  }
+
+  /**
+   * Raises the initial window of current and future streams, and the connection's window, to
+   * {@code windowSize} and tells the peer. Windows never shrink, so only the windows that are
+   * smaller than {@code windowSize} change.
+   */
+  void growReceiveWindows(int windowSize) throws IOException {
+    frameWriter.lock();
+    try {
+      long connectionDelta;
+      FramedStream[] streamsToGrow = null;
+      synchronized (this) {
+        if (shutdown) return;
+        connectionDelta = Math.max(0L, windowSize - connectionWindowSize);
+        connectionWindowSize += connectionDelta;
+        if (windowSize > okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE)) {
+          okHttpSettings.set(Settings.INITIAL_WINDOW_SIZE, 0, windowSize);
+          streamsToGrow = streams.values().toArray(new FramedStream[streams.size()]);
+        }
+      }
+
+      if (streamsToGrow != null) {
+        // Make room for the larger windows before the peer learns about them.
+        for (FramedStream stream : streamsToGrow) {
+          stream.growReceiveWindow(windowSize);
+        }
+
+        Settings settings = new Settings();
+        settings.set(Settings.INITIAL_WINDOW_SIZE, 0, windowSize);
+        frameWriter.settings(settings);
+      }
+      if (connectionDelta > 0) {
+        frameWriter.windowUpdate(0, connectionDelta);
+      }
+    } finally {
+      frameWriter.unlock();
+    }
+  }
+
   public void flush() throws IOException {
+    // The writer thread flushes once it has written all queued frames.
+    if (dataFrameQueue != null && !dataFrameQueue.isEmpty()) return;
     frameWriter.flush();
   }
 
@@ -422,7 +677,8 @@ public final class FramedConnection implements Closeable {
    * to gracefully stop accepting new requests without harming previously established streams.
    */
   public void shutdown(ErrorCode statusCode) throws IOException {
-    synchronized (frameWriter) {
+    frameWriter.lock();
+    try {
       int lastGoodStreamId;
       synchronized (this) {
         if (shutdown) {
@@ -433,6 +689,8 @@ public final class FramedConnection implements Closeable {
       }
       // TODO: propagate exception message into debugData
       frameWriter.goAway(lastGoodStreamId, statusCode, Util.EMPTY_BYTE_ARRAY);
+    } finally {
+      frameWriter.unlock();
     }
   }
 
@@ -444,7 +702,7 @@ public final class FramedConnection implements Closeable {
     close(ErrorCode.NO_ERROR, ErrorCode.CANCEL);
   }
 
-  private void close(ErrorCode connectionCode, ErrorCode streamCode) throws IOException {
+  void close(ErrorCode connectionCode, ErrorCode streamCode) throws IOException {
     assert (!Thread.holdsLock(this));
     IOException thrown = null;
     try {
@@ -483,6 +741,10 @@ public final class FramedConnection implements Closeable {
       }
     }
 
+    if (dataFrameQueue != null) {
+      dataFrameQueue.close();
+    }
+
     // Close the writer to release its resources (such as deflaters).
     try {
       frameWriter.close();
@@ -507,7 +769,10 @@ public final class FramedConnection implements Closeable {
   public void sendConnectionPreface() throws IOException {
     frameWriter.connectionPreface();
     frameWriter.settings(okHttpSettings);
-    int windowSize = okHttpSettings.getInitialWindowSize(Settings.DEFAULT_INITIAL_WINDOW_SIZE);
+    long windowSize;
+    synchronized (this) {
+      windowSize = connectionWindowSize;
+    }
     if (windowSize != Settings.DEFAULT_INITIAL_WINDOW_SIZE) {
       frameWriter.windowUpdate(0, windowSize - Settings.DEFAULT_INITIAL_WINDOW_SIZE);
     }
@@ -515,7 +780,8 @@ public final class FramedConnection implements Closeable {
 
   /** Merges {@code settings} into this peer's settings and sends them to the remote peer. */
   public void setSettings(Settings settings) throws IOException {
-    synchronized (frameWriter) {
+    frameWriter.lock();
+    try {
       synchronized (this) {
         if (shutdown) {
           throw new IOException("shutdown");
@@ -523,6 +789,8 @@ public final class FramedConnection implements Closeable {
         okHttpSettings.merge(settings);
         frameWriter.settings(settings);
       }
+    } finally {
+      frameWriter.unlock();
     }
   }
 
@@ -535,6 +803,11 @@ public final class FramedConnection implements Closeable {
     private Protocol protocol = Protocol.SPDY_3;
     private PushObserver pushObserver = PushObserver.CANCEL;
     private boolean client;
+    private boolean virtualThreads;
+    private int streamWindowSize = -1;
+    private int connectionWindowSize = -1;
+    private boolean windowAutoTuning;
+    private boolean writerThread;
 
     /**
      * @param client true if this peer initiated the connection; false if this peer accepted the
@@ -573,6 +846,45 @@ public final class FramedConnection implements Closeable {
       return this;
     }
 
+    /**
+     * Run this connection's reader and push observer on virtual threads if this JVM supports them.
+     */
+    public Builder virtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+      return this;
+    }
+
+    /** The initial receive window of each stream. Clients default to 16 MiB. */
+    public Builder streamWindowSize(int streamWindowSize) {
+      this.streamWindowSize = streamWindowSize;
+      return this;
+    }
+
+    /**
+     * The receive window of the connection as a whole. Must be at least the protocol's default of
+     * 64 KiB. Clients default to 16 MiB.
+     */
+    public Builder connectionWindowSize(int connectionWindowSize) {
+      this.connectionWindowSize = connectionWindowSize;
+      return this;
+    }
+
+    /** Grow the receive windows to fit the measured bandwidth-delay product. HTTP/2 only. */
+    public Builder windowAutoTuning(boolean windowAutoTuning) {
+      this.windowAutoTuning = windowAutoTuning;
+      return this;
+    }
+
+    /**
+     * Write DATA frames on a dedicated thread that serves streams in turn, so that callers don't
+     * wait for the socket. The {@code HEADERS} frames that open streams and the {@code RST_STREAM}
+     * frames that cancel them are queued for that thread too.
+     */
+    public Builder writerThread(boolean writerThread) {
+      this.writerThread = writerThread;
+      return this;
+    }
+
     public FramedConnection build() throws IOException {
       return new FramedConnection(this);
     }
@@ -615,6 +927,7 @@ public final class FramedConnection implements Closeable {
 
     @Override public void data(boolean inFinished, int streamId, BufferedSource source, int length)
         throws IOException {
+      receivedDataForAutoTuning(length);
       if (pushedStream(streamId)) {
         pushDataLater(streamId, source, length, inFinished);
         return;
@@ -756,6 +1069,7 @@ public final class FramedConnection implements Closeable {
 
     @Override public void ping(boolean reply, int payload1, int payload2) {
       if (reply) {
+        if (receivedAutoTuningPing(payload1)) return;
         Ping ping = removePing(payload1);
         if (ping != null) {
           ping.receive();
@@ -790,6 +1104,8 @@ public final class FramedConnection implements Closeable {
       if (streamId == 0) {
         synchronized (FramedConnection.this) {
           bytesLeftInWriteWindow += windowSizeIncrement;
+          unacknowledgedBytesWritten =
+              Math.max(0L, unacknowledgedBytesWritten - windowSizeIncrement);
           FramedConnection.this.notifyAll();
         }
       } else {
@@ -804,7 +1120,9 @@ public final class FramedConnection implements Closeable {
 
     @Override public void priority(int streamId, int streamDependency, int weight,
         boolean exclusive) {
-      // TODO: honor priority.
+      // Dependencies aren't honored, but the weight is used to schedule queued DATA frames.
+      FramedStream stream = getStream(streamId);
+      if (stream != null) stream.setWeight(weight);
     }
 
     @Override
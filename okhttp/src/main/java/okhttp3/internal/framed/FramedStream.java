@@ -22,6 +22,7 @@ import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
+import okhttp3.Request;
 import okio.AsyncTimeout;
 import okio.Buffer;
 import okio.BufferedSource;
@@ -33,6 +34,9 @@ import static okhttp3.internal.framed.Settings.DEFAULT_INITIAL_WINDOW_SIZE;
 
 /** A logical bidirectional stream. */
 public final class FramedStream {
+  /** The HTTP/2 weight of streams that don't specify one. */
+  public static final int DEFAULT_WEIGHT = Request.DEFAULT_WEIGHT;
+
   // Internal state is guarded by this. No long-running or potentially
   // blocking operations are performed while the lock is held.
 
@@ -72,6 +76,9 @@ public final class FramedStream {
    */
   private ErrorCode errorCode = null;
 
+  /** This stream's share of the connection's outbound DATA frames, in [1..256]. */
+  private volatile int weight = DEFAULT_WEIGHT;
+
   FramedStream(int id, FramedConnection connection, boolean outFinished, boolean inFinished,
       List<Header> requestHeaders) {
     if (connection == null) throw new NullPointerException("connection == null");
@@ -92,6 +99,18 @@ public final class FramedStream {
     return id;
   }
 
+  /**
+   * Returns this stream's HTTP/2 weight. When the connection has a writer thread, streams with
+   * queued data get a share of the connection proportional to their weight.
+   */
+  public int getWeight() {
+    return weight;
+  }
+
+  void setWeight(int weight) {
+    this.weight = weight;
+  }
+
   /**
    * Returns true if this stream is open. A stream is open until either:
    *
@@ -299,6 +318,14 @@ public final class FramedStream {
     }
   }
 
+  /**
+   * Accepts up to {@code windowSize} unread bytes. Call this before the peer learns of the larger
+   * window.
+   */
+  void growReceiveWindow(long windowSize) {
+    if (windowSize > source.maxByteCount) source.maxByteCount = windowSize;
+  }
+
   synchronized void receiveRstStream(ErrorCode errorCode) {
     if (this.errorCode == null) {
       this.errorCode = errorCode;
@@ -318,8 +345,11 @@ public final class FramedStream {
     /** Buffer with readable data. Guarded by FramedStream.this. */
     private final Buffer readBuffer = new Buffer();
 
-    /** Maximum number of bytes to buffer before reporting a flow control error. */
-    private final long maxByteCount;
+    /**
+     * Maximum number of bytes to buffer before reporting a flow control error. This grows with the
+     * stream's receive window.
+     */
+    private volatile long maxByteCount;
 
     /** True if the caller has closed this stream. */
     private boolean closed;
@@ -356,11 +386,13 @@ public final class FramedStream {
         }
       }
 
-      // Update connection.unacknowledgedBytesRead outside the stream lock.
+      // Update connection.unacknowledgedBytesRead outside the stream lock. Acknowledge at least as
+      // often as for a stream, so that a single stream is never limited by the connection window.
       synchronized (connection) { // Multiple application threads may hit this section.
         connection.unacknowledgedBytesRead += read;
-        if (connection.unacknowledgedBytesRead
-            >= connection.okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE) / 2) {
+        long windowSize = Math.min(connection.connectionWindowSize,
+            connection.okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE));
+        if (connection.unacknowledgedBytesRead >= windowSize / 2) {
           connection.writeWindowUpdateLater(0, connection.unacknowledgedBytesRead);
           connection.unacknowledgedBytesRead = 0;
         }
@@ -382,6 +382,9 @@ public final class Http2 implements Variant {
     @Override public synchronized void ackSettings(Settings peerSettings) throws IOException {
       if (closed) throw new IOException("closed");
       this.maxFrameSize = peerSettings.getMaxFrameSize(maxFrameSize);
+      if (peerSettings.getHeaderTableSize() != -1) {
+        hpackWriter.setHeaderTableSizeSetting(peerSettings.getHeaderTableSize());
+      }
       int length = 0;
       byte type = TYPE_SETTINGS;
       byte flags = FLAG_ACK;
@@ -401,23 +404,24 @@ public final class Http2 implements Variant {
     }
 
     @Override public synchronized void synStream(boolean outFinished, boolean inFinished,
-        int streamId, int associatedStreamId, List<Header> headerBlock)
+        int streamId, int associatedStreamId, int weight, List<Header> headerBlock)
         throws IOException {
       if (inFinished) throw new UnsupportedOperationException();
       if (closed) throw new IOException("closed");
-      headers(outFinished, streamId, headerBlock);
+      if (weight < 1 || weight > 256) throw illegalArgument("weight out of range: %s", weight);
+      headers(outFinished, streamId, weight, headerBlock);
     }
 
     @Override public synchronized void synReply(boolean outFinished, int streamId,
         List<Header> headerBlock) throws IOException {
       if (closed) throw new IOException("closed");
-      headers(outFinished, streamId, headerBlock);
+      headers(outFinished, streamId, FramedStream.DEFAULT_WEIGHT, headerBlock);
     }
 
     @Override public synchronized void headers(int streamId, List<Header> headerBlock)
         throws IOException {
       if (closed) throw new IOException("closed");
-      headers(false, streamId, headerBlock);
+      headers(false, streamId, FramedStream.DEFAULT_WEIGHT, headerBlock);
     }
 
     @Override public synchronized void pushPromise(int streamId, int promisedStreamId,
@@ -436,16 +440,28 @@ public final class Http2 implements Variant {
       if (byteCount > length) writeContinuationFrames(streamId, byteCount - length);
     }
 
-    void headers(boolean outFinished, int streamId, List<Header> headerBlock) throws IOException {
+    /**
+     * Writes a {@code HEADERS} frame. A {@code weight} other than the default is sent with the
+     * {@code PRIORITY} flag, which saves a separate {@code PRIORITY} frame.
+     */
+    void headers(boolean outFinished, int streamId, int weight, List<Header> headerBlock)
+        throws IOException {
       if (closed) throw new IOException("closed");
       hpackWriter.writeHeaders(headerBlock);
 
+      boolean prioritized = weight != FramedStream.DEFAULT_WEIGHT;
+      int priorityLength = prioritized ? 5 : 0;
       long byteCount = hpackBuffer.size();
-      int length = (int) Math.min(maxFrameSize, byteCount);
+      int length = (int) Math.min(maxFrameSize - priorityLength, byteCount);
       byte type = TYPE_HEADERS;
       byte flags = byteCount == length ? FLAG_END_HEADERS : 0;
       if (outFinished) flags |= FLAG_END_STREAM;
-      frameHeader(streamId, length, type, flags);
+      if (prioritized) flags |= FLAG_PRIORITY;
+      frameHeader(streamId, length + priorityLength, type, flags);
+      if (prioritized) {
+        sink.writeInt(0); // Not exclusive, and dependent on the connection itself.
+        sink.writeByte(weight - 1);
+      }
       sink.write(hpackBuffer, length);
 
       if (byteCount > length) writeContinuationFrames(streamId, byteCount - length);
@@ -473,6 +489,19 @@ public final class Http2 implements Variant {
       sink.flush();
     }
 
+    @Override public synchronized void priority(int streamId, int streamDependency, int weight,
+        boolean exclusive) throws IOException {
+      if (closed) throw new IOException("closed");
+      if (weight < 1 || weight > 256) throw illegalArgument("weight out of range: %s", weight);
+
+      int length = 5;
+      byte type = TYPE_PRIORITY;
+      byte flags = FLAG_NONE;
+      frameHeader(streamId, length, type, flags);
+      sink.writeInt((exclusive ? 0x80000000 : 0) | (streamDependency & 0x7fffffff));
+      sink.writeByte(weight - 1);
+    }
+
     @Override public int maxDataLength() {
       return maxFrameSize;
     }
@@ -15,9 +15,10 @@
  */
 package okhttp3.internal.framed;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.Arrays;
+import okio.BufferedSink;
+import okio.ByteString;
 
 /**
  * This class was originally composed from the following classes in <a
@@ -33,7 +34,7 @@ class Huffman {
 
   // Appendix C: Huffman Codes
   // http://tools.ietf.org/html/draft-ietf-httpbis-header-compression-12#appendix-B
-  private static final int[] CODES = {
+  static final int[] CODES = {
       0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7, 0xfffffe8,
       0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed,
       0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3, 0xffffff4,
@@ -61,7 +62,7 @@ class Huffman {
       0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
   };
 
-  private static final byte[] CODE_LENGTHS = {
+  static final byte[] CODE_LENGTHS = {
       13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30,
       28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5,
       5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
@@ -75,24 +76,26 @@ class Huffman {
       27, 27, 27, 27, 26
   };
 
+  private static final int FLAG_SYMBOL = 0x100;
+  /** Reached on the path to EOS, which must not appear in encoded data. Absorbs all input. */
+  private static final int STATE_FAIL = 1;
+  private static final int[] TRANSITIONS = buildTransitions();
+
   private static final Huffman INSTANCE = new Huffman();
 
   public static Huffman get() {
     return INSTANCE;
   }
 
-  private final Node root = new Node();
-
   private Huffman() {
-    buildTree();
   }
 
-  void encode(byte[] data, OutputStream out) throws IOException {
+  void encode(ByteString data, BufferedSink sink) throws IOException {
     long current = 0;
     int n = 0;
 
-    for (int i = 0; i < data.length; i++) {
-      int b = data[i] & 0xFF;
+    for (int i = 0; i < data.size(); i++) {
+      int b = data.getByte(i) & 0xFF;
       int code = CODES[b];
       int nbits = CODE_LENGTHS[b];
 
@@ -102,22 +105,22 @@ class Huffman {
 
       while (n >= 8) {
         n -= 8;
-        out.write(((int) (current >> n)));
+        sink.writeByte(((int) (current >> n)));
       }
     }
 
     if (n > 0) {
       current <<= (8 - n);
       current |= (0xFF >>> n);
-      out.write((int) current);
+      sink.writeByte((int) current);
     }
   }
 
-  int encodedLength(byte[] bytes) {
+  int encodedLength(ByteString bytes) {
     long len = 0;
 
-    for (int i = 0; i < bytes.length; i++) {
-      int b = bytes[i] & 0xFF;
+    for (int i = 0; i < bytes.size(); i++) {
+      int b = bytes.getByte(i) & 0xFF;
       len += CODE_LENGTHS[b];
     }
 
@@ -125,102 +128,96 @@ class Huffman {
   }
 
   byte[] decode(byte[] buf) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    Node node = root;
-    int current = 0;
-    int nbits = 0;
-    for (int i = 0; i < buf.length; i++) {
-      int b = buf[i] & 0xFF;
-      current = (current << 8) | b;
-      nbits += 8;
-      while (nbits >= 8) {
-        int c = (current >>> (nbits - 8)) & 0xFF;
-        node = node.children[c];
-        if (node.children == null) {
-          // terminal node
-          baos.write(node.symbol);
-          nbits -= node.terminalBits;
-          node = root;
-        } else {
-          // non-terminal node
-          nbits -= 8;
-        }
-      }
-    }
-
-    while (nbits > 0) {
-      int c = (current << (8 - nbits)) & 0xFF;
-      node = node.children[c];
-      if (node.children != null || node.terminalBits > nbits) {
-        break;
-      }
-      baos.write(node.symbol);
-      nbits -= node.terminalBits;
-      node = root;
-    }
-
-    return baos.toByteArray();
+    byte[] out = new byte[maxDecodedLength(buf.length)];
+    int byteCount = decode(buf, buf.length, out);
+    return Arrays.copyOf(out, byteCount);
   }
 
-  private void buildTree() {
-    for (int i = 0; i < CODE_LENGTHS.length; i++) {
-      addCode(i, CODES[i], CODE_LENGTHS[i]);
-    }
+  /** Returns the most bytes that {@code encodedLength} bytes could decode to. */
+  static int maxDecodedLength(int encodedLength) {
+    return (int) (encodedLength * 8L / 5); // No code is shorter than 5 bits.
   }
 
-  private void addCode(int sym, int code, byte len) {
-    Node terminal = new Node(sym, len);
-
-    Node current = root;
-    while (len > 8) {
-      len -= 8;
-      int i = ((code >>> len) & 0xFF);
-      if (current.children == null) {
-        throw new IllegalStateException("invalid dictionary: prefix not unique");
-      }
-      if (current.children[i] == null) {
-        current.children[i] = new Node();
-      }
-      current = current.children[i];
-    }
-
-    int shift = 8 - len;
-    int start = (code << shift) & 0xFF;
-    int end = 1 << shift;
-    for (int i = start; i < start + end; i++) {
-      current.children[i] = terminal;
+  /**
+   * Decodes the first {@code length} bytes of {@code in} into {@code out}, which must have room for
+   * {@link #maxDecodedLength} bytes. Returns the number of bytes decoded.
+   *
+   * <p>Input is consumed four bits at a time; each nibble is a single lookup in {@link
+   * #TRANSITIONS} that yields the next state and at most one decoded symbol. Trailing bits that
+   * don't complete a code are treated as padding and ignored.
+   */
+  int decode(byte[] in, int length, byte[] out) throws IOException {
+    int[] transitions = TRANSITIONS;
+    int state = 0;
+    int outIndex = 0;
+    for (int i = 0; i < length; i++) {
+      int b = in[i] & 0xff;
+
+      int transition = transitions[(state << 4) | (b >>> 4)];
+      if ((transition & FLAG_SYMBOL) != 0) out[outIndex++] = (byte) transition;
+      state = transition >>> 16;
+
+      transition = transitions[(state << 4) | (b & 0x0f)];
+      if ((transition & FLAG_SYMBOL) != 0) out[outIndex++] = (byte) transition;
+      state = transition >>> 16;
+
+      if (state == STATE_FAIL) throw new IOException("invalid Huffman code");
     }
+    return outIndex;
   }
 
-  private static final class Node {
-
-    // Null if terminal.
-    private final Node[] children;
-
-    // Terminal nodes have a symbol.
-    private final int symbol;
-
-    // Number of bits represented in the terminal node.
-    private final int terminalBits;
-
-    /** Construct an internal node. */
-    Node() {
-      this.children = new Node[256];
-      this.symbol = 0; // Not read.
-      this.terminalBits = 0; // Not read.
+  /**
+   * Returns the decoder's state table. Each state is an internal node of the Huffman code tree,
+   * with state 0 at the root. Entry {@code (state << 4) | nibble} packs the state reached after
+   * consuming that nibble in its upper 16 bits, and the symbol decoded along the way (if any) in
+   * its lower bits. Because no code is shorter than 5 bits, a nibble completes at most one symbol.
+   */
+  private static int[] buildTransitions() {
+    // Build the code tree. Children are node indexes, or ~symbol for leaves. 0 means no child,
+    // which is only the case on the path to EOS.
+    int capacity = 512;
+    int[] zeroChild = new int[capacity];
+    int[] oneChild = new int[capacity];
+    int nodeCount = STATE_FAIL + 1;
+    for (int symbol = 0; symbol < CODES.length; symbol++) {
+      int code = CODES[symbol];
+      int node = 0;
+      for (int bit = CODE_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+        int[] children = ((code >>> bit) & 1) == 0 ? zeroChild : oneChild;
+        if (bit == 0) {
+          children[node] = ~symbol;
+        } else {
+          if (children[node] == 0) {
+            if (nodeCount == capacity) throw new IllegalStateException("too many nodes");
+            children[node] = nodeCount++;
+          }
+          node = children[node];
+          if (node < 0) throw new IllegalStateException("invalid dictionary: prefix not unique");
+        }
+      }
     }
 
-    /**
-     * Construct a terminal node.
-     *
-     * @param symbol symbol the node represents
-     * @param bits length of Huffman code in bits
-     */
-    Node(int symbol, int bits) {
-      this.children = null;
-      this.symbol = symbol;
-      int b = bits & 0x07;
-      this.terminalBits = b == 0 ? 8 : b;
+    int[] result = new int[nodeCount << 4];
+    for (int state = 0; state < nodeCount; state++) {
+      for (int nibble = 0; nibble < 16; nibble++) {
+        int node = state;
+        int symbol = 0;
+        for (int bit = 3; bit >= 0 && node != STATE_FAIL; bit--) {
+          int child = ((nibble >>> bit) & 1) == 0 ? zeroChild[node] : oneChild[node];
+          if (child == 0) {
+            node = STATE_FAIL;
+            symbol = 0;
+          } else if (child < 0) {
+            if (symbol != 0) throw new IllegalStateException("code too short");
+            symbol = FLAG_SYMBOL | ~child;
+            node = 0;
+          } else {
+            node = child;
+          }
+        }
+        result[(state << 4) | nibble] = (node << 16) | symbol;
+      }
     }
+    return result;
   }
 }
@@ -315,13 +315,18 @@ public final class Spdy3 implements Variant {
       // Do nothing: no connection preface for SPDY/3.
     }
 
+    @Override public void priority(int streamId, int streamDependency, int weight,
+        boolean exclusive) {
+      // Do nothing: SPDY/3 can't reprioritize a stream.
+    }
+
     @Override public synchronized void flush() throws IOException {
       if (closed) throw new IOException("closed");
       sink.flush();
     }
 
     @Override public synchronized void synStream(boolean outFinished, boolean inFinished,
-        int streamId, int associatedStreamId, List<Header> headerBlock)
+        int streamId, int associatedStreamId, int weight, List<Header> headerBlock)
         throws IOException {
       if (closed) throw new IOException("closed");
       writeNameValueBlockToBuffer(headerBlock);
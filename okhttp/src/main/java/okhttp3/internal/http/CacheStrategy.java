@@ -34,9 +34,29 @@ public final class CacheStrategy {
   /** The cached response to return or validate; or null if this call doesn't use a cache. */
   public final Response cacheResponse;
 
+  /**
+   * True if {@link #cacheResponse} is stale and served without a network request, so it should be
+   * revalidated in the background as permitted by its {@code stale-while-revalidate} directive.
+   */
+  public final boolean revalidateInBackground;
+
+  /**
+   * The stale cached response to return if the network request fails or the server returns an
+   * error, as permitted by {@code stale-if-error}; or null if errors shouldn't be masked. This
+   * shares its body with {@link #cacheResponse} if that is non-null.
+   */
+  public final Response staleIfErrorResponse;
+
   private CacheStrategy(Request networkRequest, Response cacheResponse) {
+    this(networkRequest, cacheResponse, false, null);
+  }
+
+  private CacheStrategy(Request networkRequest, Response cacheResponse,
+      boolean revalidateInBackground, Response staleIfErrorResponse) {
     this.networkRequest = networkRequest;
     this.cacheResponse = cacheResponse;
+    this.revalidateInBackground = revalidateInBackground;
+    this.staleIfErrorResponse = staleIfErrorResponse;
   }
 
   /** Returns true if {@code response} can be stored to later serve another request. */
@@ -216,6 +236,34 @@ public final class CacheStrategy {
         return new CacheStrategy(null, builder.build());
       }
 
+      // Serve a stale response while it's revalidated. Unlike max-stale this is the response's
+      // choice, so any request constraint on the response's age overrides it.
+      if (!responseCaching.noCache()
+          && !responseCaching.mustRevalidate()
+          && responseCaching.staleWhileRevalidateSeconds() != -1
+          && requestCaching.maxAgeSeconds() == -1
+          && ageMillis + minFreshMillis
+              < freshMillis + SECONDS.toMillis(responseCaching.staleWhileRevalidateSeconds())) {
+        Response response = cacheResponse.newBuilder()
+            .addHeader("Warning", "110 HttpURLConnection \"Response is stale\"")
+            .build();
+        return new CacheStrategy(null, response, true, null);
+      }
+
+      Response staleIfErrorResponse = null;
+      int staleIfErrorSeconds = requestCaching.staleIfErrorSeconds() != -1
+          ? requestCaching.staleIfErrorSeconds()
+          : responseCaching.staleIfErrorSeconds();
+      if (!responseCaching.noCache()
+          && !responseCaching.mustRevalidate()
+          && staleIfErrorSeconds != -1
+          && ageMillis < freshMillis + SECONDS.toMillis(staleIfErrorSeconds)) {
+        staleIfErrorResponse = cacheResponse.newBuilder()
+            .addHeader("Warning", "110 HttpURLConnection \"Response is stale\"")
+            .addHeader("Warning", "111 HttpURLConnection \"Revalidation failed\"")
+            .build();
+      }
+
       Request.Builder conditionalRequestBuilder = request.newBuilder();
 
       if (etag != null) {
@@ -228,8 +276,8 @@ public final class CacheStrategy {
 
       Request conditionalRequest = conditionalRequestBuilder.build();
       return hasConditions(conditionalRequest)
-          ? new CacheStrategy(conditionalRequest, cacheResponse)
-          : new CacheStrategy(conditionalRequest, null);
+          ? new CacheStrategy(conditionalRequest, cacheResponse, false, staleIfErrorResponse)
+          : new CacheStrategy(conditionalRequest, null, false, staleIfErrorResponse);
     }
 
     /**
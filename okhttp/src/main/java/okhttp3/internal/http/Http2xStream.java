@@ -132,7 +132,8 @@ public final class Http2xStream implements HttpStream {
         ? http2HeadersList(request)
         : spdy3HeadersList(request);
     boolean hasResponseBody = true;
-    stream = framedConnection.newStream(requestHeaders, permitsRequestBody, hasResponseBody);
+    stream = framedConnection.newStream(requestHeaders, permitsRequestBody, hasResponseBody,
+        request.weight());
     stream.readTimeout().timeout(httpEngine.client.readTimeoutMillis(), TimeUnit.MILLISECONDS);
     stream.writeTimeout().timeout(httpEngine.client.writeTimeoutMillis(), TimeUnit.MILLISECONDS);
   }
@@ -17,15 +17,20 @@
 
 package okhttp3.internal.http;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ProtocolException;
 import java.net.Proxy;
 import java.security.cert.Certificate;
 import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSocketFactory;
 
 import java.util.List;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.ResponseBody;
@@ -63,6 +68,7 @@ import static java.net.HttpURLConnection.HTTP_PROXY_AUTH;
 import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static okhttp3.internal.Util.closeQuietly;
 import static okhttp3.internal.Util.discard;
 import static okhttp3.internal.Util.hostHeader;
@@ -143,6 +149,13 @@ public final class HttpEngine {
    */
   private Response cacheResponse;
 
+  /**
+   * The stale cached response to return if the network fails or the server returns an error, or
+   * null if the cache doesn't permit that. Its body is shared with {@link #cacheResponse} when that
+   * is non-null, and otherwise owned by this engine until a network response is read.
+   */
+  private Response staleIfErrorResponse;
+
   /**
    * The user-visible response. This is derived from either the network response, cache response, or
    * both. It is customized to support OkHttp features like compression and caching.
@@ -158,6 +171,13 @@ public final class HttpEngine {
   private CacheRequest storeRequest;
   private CacheStrategy cacheStrategy;
 
+  /**
+   * This engine's claim on fetching its response after a cache miss, or null if it has none.
+   * Concurrent identical requests may wait for it to be closed. See {@link
+   * InternalCache#beginFetch}.
+   */
+  private Closeable fetchLease;
+
   /**
    * @param request the HTTP request without a body. The body must be written via the engine's
    * request body stream.
@@ -175,7 +195,7 @@ public final class HttpEngine {
     this.forWebSocket = forWebSocket;
     this.streamAllocation = streamAllocation != null
         ? streamAllocation
-        : new StreamAllocation(client.connectionPool(), createAddress(client, request));
+        : new StreamAllocation(client.connectionPool(), createAddress(client, request.url()));
     this.requestBodyOut = requestBodyOut;
     this.priorResponse = priorResponse;
   }
@@ -203,14 +223,27 @@ public final class HttpEngine {
 
     long now = System.currentTimeMillis();
     cacheStrategy = new CacheStrategy.Factory(now, request, cacheCandidate).get();
+
+    // On a miss, claim the fetch or wait for a concurrent identical request to complete its fetch.
+    if (responseCache != null && cacheCandidate == null && cacheStrategy.networkRequest != null
+        && !forWebSocket) {
+      fetchLease = responseCache.beginFetch(request, client.readTimeoutMillis());
+      if (fetchLease == null) {
+        cacheCandidate = responseCache.get(request);
+        now = System.currentTimeMillis();
+        cacheStrategy = new CacheStrategy.Factory(now, request, cacheCandidate).get();
+      }
+    }
+
     networkRequest = cacheStrategy.networkRequest;
     cacheResponse = cacheStrategy.cacheResponse;
+    staleIfErrorResponse = cacheStrategy.staleIfErrorResponse;
 
     if (responseCache != null) {
       responseCache.trackResponse(cacheStrategy);
     }
 
-    if (cacheCandidate != null && cacheResponse == null) {
+    if (cacheCandidate != null && cacheResponse == null && staleIfErrorResponse == null) {
       closeQuietly(cacheCandidate.body()); // The cache candidate wasn't applicable. Close it.
     }
 
@@ -235,6 +268,9 @@ public final class HttpEngine {
           .cacheResponse(stripBody(cacheResponse))
           .build();
       userResponse = unzip(userResponse);
+      if (cacheStrategy.revalidateInBackground) {
+        revalidateInBackground(responseCache);
+      }
       return;
     }
 
@@ -268,8 +304,9 @@ public final class HttpEngine {
       }
       success = true;
     } finally {
-      // If we're crashing on I/O or otherwise, don't leak the cache body.
-      if (!success && cacheCandidate != null) {
+      // If we're crashing on I/O or otherwise, don't leak the cache body. A stale response is
+      // kept until this engine is closed, in case the caller gives up and serves it instead.
+      if (!success && cacheCandidate != null && staleIfErrorResponse == null) {
         closeQuietly(cacheCandidate.body());
       }
     }
@@ -289,9 +326,64 @@ public final class HttpEngine {
 
   private HttpStream connect() throws RouteException, RequestException, IOException {
     boolean doExtensiveHealthChecks = !networkRequest.method().equals("GET");
-    return streamAllocation.newStream(client.connectTimeoutMillis(),
-        client.readTimeoutMillis(), client.writeTimeoutMillis(),
-        client.retryOnConnectionFailure(), doExtensiveHealthChecks);
+    return streamAllocation.newStream(client, doExtensiveHealthChecks);
+  }
+
+  /**
+   * Refreshes the cached response that was just served stale. The revalidation is an ordinary call
+   * on the client's dispatcher: it forbids stale responses so that it reaches the network, and
+   * consumes the response body so that the cache is updated. Only one revalidation of a response
+   * runs at a time; stale hits while it is in flight don't start another.
+   */
+  private void revalidateInBackground(InternalCache responseCache) throws IOException {
+    final Closeable lease = responseCache.beginRevalidation(userRequest);
+    if (lease == null) return; // Another call is already revalidating this response.
+
+    Request revalidation = userRequest.newBuilder()
+        .cacheControl(new CacheControl.Builder().maxAge(0, SECONDS).build())
+        .build();
+    boolean enqueued = false;
+    try {
+      client.newCall(revalidation).enqueue(new Callback() {
+        @Override public void onFailure(Call call, IOException e) {
+          // The stale response has already been served. The next request will try again.
+          closeQuietly(lease);
+        }
+
+        @Override public void onResponse(Call call, Response response) throws IOException {
+          BufferedSource source = response.body().source();
+          try {
+            Buffer buffer = new Buffer();
+            while (source.read(buffer, 8192) != -1) {
+              buffer.clear();
+            }
+          } finally {
+            closeQuietly(source);
+            closeQuietly(lease);
+          }
+        }
+      });
+      enqueued = true;
+    } catch (RejectedExecutionException e) {
+      // The dispatcher is shutting down. Serve the stale response; the next request will try again.
+    } finally {
+      if (!enqueued) closeQuietly(lease);
+    }
+  }
+
+  /**
+   * Returns the stale cached response permitted by {@code stale-if-error}, for use when the network
+   * request failed; or null if there is none. The caller owns the returned response's body.
+   */
+  public Response takeStaleIfErrorResponse() throws IOException {
+    if (staleIfErrorResponse == null) return null;
+    Response result = staleIfErrorResponse.newBuilder()
+        .request(userRequest)
+        .priorResponse(stripBody(priorResponse))
+        .cacheResponse(stripBody(staleIfErrorResponse))
+        .build();
+    staleIfErrorResponse = null;
+    return unzip(result);
   }
 
   private static Response stripBody(Response response) {
@@ -425,6 +517,13 @@ public final class HttpEngine {
       closeQuietly(requestBodyOut);
     }
 
+    if (staleIfErrorResponse != null) {
+      closeQuietly(staleIfErrorResponse.body());
+      staleIfErrorResponse = null;
+    }
+
+    endFetch();
+
     if (userResponse != null) {
       closeQuietly(userResponse.body());
     } else {
@@ -449,7 +548,7 @@ public final class HttpEngine {
    * attempt to decompress the zero-byte source.
    */
   private Response unzip(final Response response) throws IOException {
-    if (!transparentGzip || !"gzip".equalsIgnoreCase(userResponse.header("Content-Encoding"))) {
+    if (!transparentGzip || !"gzip".equalsIgnoreCase(response.header("Content-Encoding"))) {
       return response;
     }
 
@@ -600,6 +699,28 @@ public final class HttpEngine {
 
     receiveHeaders(networkResponse.headers());
 
+    // Mask a server error with the stale response if the cache permits that.
+    if (staleIfErrorResponse != null && isServerError(networkResponse.code())) {
+      userResponse = staleIfErrorResponse.newBuilder()
+          .request(userRequest)
+          .priorResponse(stripBody(priorResponse))
+          .cacheResponse(stripBody(staleIfErrorResponse))
+          .networkResponse(stripBody(networkResponse))
+          .build();
+      staleIfErrorResponse = null;
+      closeQuietly(networkResponse.body());
+      releaseStreamAllocation();
+      userResponse = unzip(userResponse);
+      endFetch();
+      return;
+    }
+
+    // The stale response is no longer needed. Close its body unless it's shared.
+    if (staleIfErrorResponse != null) {
+      if (cacheResponse == null) closeQuietly(staleIfErrorResponse.body());
+      staleIfErrorResponse = null;
+    }
+
     // If we have a cache response too, then we're doing a conditional get.
     if (cacheResponse != null) {
       if (validate(cacheResponse, networkResponse)) {
@@ -619,6 +740,7 @@ public final class HttpEngine {
         responseCache.trackConditionalCacheHit();
         responseCache.update(cacheResponse, stripBody(userResponse));
         userResponse = unzip(userResponse);
+        endFetch();
         return;
       } else {
         closeQuietly(cacheResponse.body());
@@ -636,6 +758,15 @@ public final class HttpEngine {
       maybeCache();
       userResponse = unzip(cacheWritingResponse(storeRequest, userResponse));
     }
+    endFetch();
+  }
+
+  /** Lets requests waiting on this engine's fetch proceed, unless the cache body has taken over. */
+  private void endFetch() {
+    if (fetchLease != null) {
+      closeQuietly(fetchLease);
+      fetchLease = null;
+    }
   }
 
   class NetworkInterceptorChain implements Interceptor.Chain {
@@ -767,6 +898,10 @@ public final class HttpEngine {
     final BufferedSource source = response.body().source();
     final BufferedSink cacheBody = Okio.buffer(cacheBodyUnbuffered);
 
+    // Requests waiting on this fetch can proceed once the cached response is complete or aborted.
+    final Closeable fetchLease = this.fetchLease;
+    this.fetchLease = null;
+
     Source cacheWritingSource = new Source() {
       boolean cacheRequestClosed;
 
@@ -778,6 +913,7 @@ public final class HttpEngine {
           if (!cacheRequestClosed) {
             cacheRequestClosed = true;
             cacheRequest.abort(); // Failed to write a complete cache response.
+            closeQuietly(fetchLease);
           }
           throw e;
         }
@@ -786,6 +922,7 @@ public final class HttpEngine {
           if (!cacheRequestClosed) {
             cacheRequestClosed = true;
             cacheBody.close(); // The cache response is complete!
+            closeQuietly(fetchLease);
           }
           return -1;
         }
@@ -805,6 +942,7 @@ public final class HttpEngine {
           cacheRequestClosed = true;
           cacheRequest.abort();
         }
+        closeQuietly(fetchLease);
         source.close();
       }
     };
@@ -814,6 +952,11 @@ public final class HttpEngine {
         .build();
   }
 
+  /** Returns true if {@code code} is an error that {@code stale-if-error} may mask. */
+  private static boolean isServerError(int code) {
+    return code == 500 || code == 502 || code == 503 || code == 504;
+  }
+
   /**
    * Returns true if {@code cached} should be used; false if {@code network} response should be
    * used.
@@ -978,17 +1121,18 @@ public final class HttpEngine {
         && url.scheme().equals(followUp.scheme());
   }
 
-  private static Address createAddress(OkHttpClient client, Request request) {
+  /** Returns the address that {@code client} uses to connect to {@code url}. */
+  public static Address createAddress(OkHttpClient client, HttpUrl url) {
     SSLSocketFactory sslSocketFactory = null;
     HostnameVerifier hostnameVerifier = null;
     CertificatePinner certificatePinner = null;
-    if (request.isHttps()) {
+    if (url.isHttps()) {
       sslSocketFactory = client.sslSocketFactory();
       hostnameVerifier = client.hostnameVerifier();
       certificatePinner = client.certificatePinner();
     }
 
-    return new Address(request.url().host(), request.url().port(), client.dns(),
+    return new Address(url.host(), url.port(), client.dns(),
         client.socketFactory(), sslSocketFactory, hostnameVerifier, certificatePinner,
         client.proxyAuthenticator(), client.proxy(), client.protocols(),
         client.connectionSpecs(), client.proxySelector());
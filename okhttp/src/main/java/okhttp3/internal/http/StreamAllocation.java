@@ -26,6 +26,7 @@ import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import okhttp3.Address;
 import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
 import okhttp3.Route;
 import okhttp3.internal.Internal;
 import okhttp3.internal.RouteDatabase;
@@ -90,12 +91,15 @@ public final class StreamAllocation {
     this.routeSelector = new RouteSelector(address, routeDatabase());
   }
 
-  public HttpStream newStream(int connectTimeout, int readTimeout, int writeTimeout,
-      boolean connectionRetryEnabled, boolean doExtensiveHealthChecks)
+  public HttpStream newStream(OkHttpClient client, boolean doExtensiveHealthChecks)
       throws RouteException, IOException {
+    int readTimeout = client.readTimeoutMillis();
+    int writeTimeout = client.writeTimeoutMillis();
     try {
-      RealConnection resultConnection = findHealthyConnection(connectTimeout, readTimeout,
-          writeTimeout, connectionRetryEnabled, doExtensiveHealthChecks);
+      long acquireStartNanos = System.nanoTime();
+      RealConnection resultConnection = findHealthyConnection(client, doExtensiveHealthChecks);
+      Internal.instance.connectionAcquired(
+          connectionPool, resultConnection, System.nanoTime() - acquireStartNanos);
 
       HttpStream resultStream;
       if (resultConnection.framedConnection != null) {
@@ -120,12 +124,10 @@ public final class StreamAllocation {
    * Finds a connection and returns it if it is healthy. If it is unhealthy the process is repeated
    * until a healthy connection is found.
    */
-  private RealConnection findHealthyConnection(int connectTimeout, int readTimeout,
-      int writeTimeout, boolean connectionRetryEnabled, boolean doExtensiveHealthChecks)
+  private RealConnection findHealthyConnection(OkHttpClient client, boolean doExtensiveHealthChecks)
       throws IOException, RouteException {
     while (true) {
-      RealConnection candidate = findConnection(connectTimeout, readTimeout, writeTimeout,
-          connectionRetryEnabled);
+      RealConnection candidate = findConnection(client);
 
       // If this is a brand new connection, we can skip the extensive health checks.
       synchronized (connectionPool) {
@@ -147,8 +149,7 @@ public final class StreamAllocation {
    * Returns a connection to host a new stream. This prefers the existing connection if it exists,
    * then the pool, finally building a new connection.
    */
-  private RealConnection findConnection(int connectTimeout, int readTimeout, int writeTimeout,
-      boolean connectionRetryEnabled) throws IOException, RouteException {
+  private RealConnection findConnection(OkHttpClient client) throws IOException, RouteException {
     Route selectedRoute;
     synchronized (connectionPool) {
       if (released) throw new IllegalStateException("released");
@@ -185,13 +186,41 @@ public final class StreamAllocation {
       if (canceled) throw new IOException("Canceled");
     }
 
-    newConnection.connect(connectTimeout, readTimeout, writeTimeout, address.connectionSpecs(),
-        connectionRetryEnabled);
+    newConnection.connect(client);
     routeDatabase().connected(newConnection.route());
 
     return newConnection;
   }
 
+  /**
+   * Connects a new connection to this allocation's address and releases it to the pool, where it
+   * stays idle until a call uses it. Unlike {@link #newStream} this never reuses a pooled
+   * connection. Routes are attempted in turn until one connects.
+   */
+  public void prewarm(OkHttpClient client) throws IOException {
+    while (true) {
+      Route selectedRoute = routeSelector.next();
+      RealConnection newConnection = new RealConnection(selectedRoute);
+      synchronized (connectionPool) {
+        if (released) throw new IllegalStateException("released");
+        route = selectedRoute;
+        acquire(newConnection);
+        Internal.instance.put(connectionPool, newConnection);
+        this.connection = newConnection;
+      }
+
+      try {
+        newConnection.connect(client);
+        routeDatabase().connected(selectedRoute);
+        release();
+        return;
+      } catch (RouteException e) {
+        IOException connectException = e.getLastConnectException();
+        if (!recover(connectException, null)) throw connectException;
+      }
+    }
+  }
+
   public void streamFinished(boolean noNewStreams, HttpStream stream) {
     synchronized (connectionPool) {
       if (stream == null || stream != this.stream) {
@@ -36,6 +36,7 @@ import okhttp3.Connection;
 import okhttp3.ConnectionSpec;
 import okhttp3.Handshake;
 import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
 import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -83,15 +84,17 @@ public final class RealConnection extends FramedConnection.Listener implements C
   public final List<Reference<StreamAllocation>> allocations = new ArrayList<>();
   public boolean noNewStreams;
   public long idleAtNanos = Long.MAX_VALUE;
+  public final long createdAtNanos = System.nanoTime();
 
   public RealConnection(Route route) {
     this.route = route;
   }
 
-  public void connect(int connectTimeout, int readTimeout, int writeTimeout,
-      List<ConnectionSpec> connectionSpecs, boolean connectionRetryEnabled) throws RouteException {
+  /** Connects to this route with the timeouts and other settings of {@code client}. */
+  public void connect(OkHttpClient client) throws RouteException {
     if (protocol != null) throw new IllegalStateException("already connected");
 
+    List<ConnectionSpec> connectionSpecs = route.address().connectionSpecs();
     RouteException routeException = null;
     ConnectionSpecSelector connectionSpecSelector = new ConnectionSpecSelector(connectionSpecs);
     Proxy proxy = route.proxy();
@@ -108,7 +111,7 @@ public final class RealConnection extends FramedConnection.Listener implements C
         rawSocket = proxy.type() == Proxy.Type.DIRECT || proxy.type() == Proxy.Type.HTTP
             ? address.socketFactory().createSocket()
             : new Socket(proxy);
-        connectSocket(connectTimeout, readTimeout, writeTimeout, connectionSpecSelector);
+        connectSocket(client, connectionSpecSelector);
       } catch (IOException e) {
         closeQuietly(socket);
         closeQuietly(rawSocket);
@@ -125,7 +128,7 @@ public final class RealConnection extends FramedConnection.Listener implements C
           routeException.addConnectException(e);
         }
 
-        if (!connectionRetryEnabled || !connectionSpecSelector.connectionFailed(e)) {
+        if (!client.retryOnConnectionFailure() || !connectionSpecSelector.connectionFailed(e)) {
           throw routeException;
         }
       }
@@ -133,8 +136,11 @@ public final class RealConnection extends FramedConnection.Listener implements C
   }
 
   /** Does all the work necessary to build a full HTTP or HTTPS connection on a raw socket. */
-  private void connectSocket(int connectTimeout, int readTimeout, int writeTimeout,
-      ConnectionSpecSelector connectionSpecSelector) throws IOException {
+  private void connectSocket(OkHttpClient client, ConnectionSpecSelector connectionSpecSelector)
+      throws IOException {
+    int connectTimeout = client.connectTimeoutMillis();
+    int readTimeout = client.readTimeoutMillis();
+    int writeTimeout = client.writeTimeoutMillis();
     rawSocket.setSoTimeout(readTimeout);
     try {
       Platform.get().connectSocket(rawSocket, route.socketAddress(), connectTimeout);
@@ -158,8 +164,18 @@ public final class RealConnection extends FramedConnection.Listener implements C
           .socket(socket, route.address().url().host(), source, sink)
           .protocol(protocol)
           .listener(this)
+          .virtualThreads(client.virtualThreads())
+          .streamWindowSize(client.http2StreamWindowSize())
+          .connectionWindowSize(client.http2ConnectionWindowSize())
+          .windowAutoTuning(client.http2WindowAutoTuning())
+          .writerThread(client.http2WriterThread())
           .build();
-      framedConnection.sendConnectionPreface();
+      try {
+        framedConnection.sendConnectionPreface();
+      } catch (IOException e) {
+        closeQuietly(framedConnection); // Release its threads along with the socket.
+        throw e;
+      }
 
       // Only assign the framed connection once the preface has been sent successfully.
       this.allocationLimit = framedConnection.maxConcurrentStreams();
@@ -369,6 +385,12 @@ public final class RealConnection extends FramedConnection.Listener implements C
     return framedConnection != null;
   }
 
+  /** Returns the bytes written but not yet acknowledged by the peer. Always 0 for HTTP/1. */
+  public long unacknowledgedBytesWritten() {
+    FramedConnection framedConnection = this.framedConnection;
+    return framedConnection != null ? framedConnection.unacknowledgedBytesWritten() : 0L;
+  }
+
   @Override public Protocol protocol() {
     if (framedConnection == null) {
       return protocol != null ? protocol : Protocol.HTTP_1_1;